@@ -0,0 +1,117 @@
+package kvstorage.loadgen;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+//picks record numbers in [0, inserted), implementations are shared by worker threads and keep no mutable state
+abstract class KeyChooser {
+    static final double ZIPFIAN_CONSTANT = 0.99;
+
+    abstract long next(SplittableRandom random);
+
+    static KeyChooser create(String distribution, long records, AtomicLong inserted) {
+        switch (distribution) {
+            case "uniform":
+                return new Uniform(inserted);
+            case "zipfian":
+                return new Scrambled(new Zipfian(records, ZIPFIAN_CONSTANT), inserted);
+            case "latest":
+                return new Latest(new Zipfian(records, ZIPFIAN_CONSTANT), inserted);
+            default:
+                throw new IllegalArgumentException("unknown key distribution " + distribution);
+        }
+    }
+
+    static final class Uniform extends KeyChooser {
+        private final AtomicLong inserted;
+
+        Uniform(AtomicLong inserted) {
+            this.inserted = inserted;
+        }
+
+        @Override long next(SplittableRandom random) {
+            return random.nextLong(inserted.get());
+        }
+    }
+
+    //ranks are hashed over the key space, so popular keys are not clustered at the start of the store
+    static final class Scrambled extends KeyChooser {
+        private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+        private static final long FNV_PRIME = 0x100000001b3L;
+
+        private final Zipfian zipfian;
+        private final AtomicLong inserted;
+
+        Scrambled(Zipfian zipfian, AtomicLong inserted) {
+            this.zipfian = zipfian;
+            this.inserted = inserted;
+        }
+
+        @Override long next(SplittableRandom random) {
+            long rank = zipfian.next(random);
+            return Math.floorMod(fnv(rank), inserted.get());
+        }
+
+        static long fnv(long value) {
+            long hash = FNV_OFFSET;
+            for (int i = 0; i < 8; i++) {
+                hash ^= value & 0xff;
+                hash *= FNV_PRIME;
+                value >>>= 8;
+            }
+            return hash;
+        }
+    }
+
+    //the most recently inserted records are the most popular
+    static final class Latest extends KeyChooser {
+        private final Zipfian zipfian;
+        private final AtomicLong inserted;
+
+        Latest(Zipfian zipfian, AtomicLong inserted) {
+            this.zipfian = zipfian;
+            this.inserted = inserted;
+        }
+
+        @Override long next(SplittableRandom random) {
+            long latest = inserted.get() - 1;
+            return Math.max(0, latest - zipfian.next(random));
+        }
+    }
+
+    //Gray et al., "Quickly generating billion-record synthetic databases", the generator YCSB uses
+    static final class Zipfian extends KeyChooser {
+        private final long items;
+        private final double theta;
+        private final double alpha;
+        private final double zetan;
+        private final double eta;
+
+        Zipfian(long items, double theta) {
+            if (items <= 0) throw new IllegalArgumentException("items " + items);
+            this.items = items;
+            this.theta = theta;
+            this.alpha = 1 / (1 - theta);
+            this.zetan = zeta(items, theta);
+            double zeta2 = zeta(2, theta);
+            this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan);
+        }
+
+        @Override long next(SplittableRandom random) {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1) return 0;
+            if (uz < 1 + Math.pow(0.5, theta)) return Math.min(1, items - 1);
+            long rank = (long) (items * Math.pow(eta * u - eta + 1, alpha));
+            return Math.min(rank, items - 1);
+        }
+
+        private static double zeta(long n, double theta) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+    }
+}
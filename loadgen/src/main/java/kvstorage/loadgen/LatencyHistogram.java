@@ -0,0 +1,71 @@
+package kvstorage.loadgen;
+
+//log-linear buckets, 64 per power of two above 128ns, so percentiles are within ~1.5% of the recorded value
+final class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int LINEAR_LIMIT = SUB_COUNT * 2;
+    private static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BITS) * SUB_COUNT;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total;
+    private long sum;
+    private long max;
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts[index(nanos)]++;
+        total++;
+        sum += nanos;
+        max = Math.max(max, nanos);
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    long count() {
+        return total;
+    }
+
+    long max() {
+        return max;
+    }
+
+    double mean() {
+        return total == 0 ? 0 : (double) sum / total;
+    }
+
+    long percentile(double percentile) {
+        if (percentile <= 0 || percentile > 100) throw new IllegalArgumentException("percentile " + percentile);
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(value(i), max);
+        }
+        return max;
+    }
+
+    static int index(long nanos) {
+        if (nanos < LINEAR_LIMIT) return (int) nanos;
+        int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS;
+        return LINEAR_LIMIT + (shift - 1) * SUB_COUNT + (int) (nanos >>> shift) - SUB_COUNT;
+    }
+
+    //midpoint of the bucket
+    static long value(int index) {
+        if (index < LINEAR_LIMIT) return index;
+        int shift = (index - LINEAR_LIMIT) / SUB_COUNT + 1;
+        long top = (index - LINEAR_LIMIT) % SUB_COUNT + SUB_COUNT;
+        return (top << shift) + (1L << (shift - 1));
+    }
+}
@@ -0,0 +1,254 @@
+package kvstorage.loadgen;
+
+import kvstorage.KVStorageAdapter;
+import kvstorage.StorageFactory;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//runs the workload for every store size and thread count, prints a summary and writes one csv row per operation
+public final class LoadGenerator {
+    enum Operation {READ, UPDATE, INSERT, DELETE}
+
+    private static final String CSV_HEADER = "mode,distribution,value_sizes,target_ops,cores,records,threads,"
+            + "operation,operations,errors,seconds,throughput_ops,mean_us,p50_us,p99_us,p999_us,max_us,store_bytes";
+
+    private final Workload workload;
+    private final int cores = Runtime.getRuntime().availableProcessors();
+
+    LoadGenerator(Workload workload) {
+        this.workload = workload;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Workload workload;
+        try {
+            workload = Workload.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("options: --records=10000,100000 --threads=1,2,4 --read=0.9 --update=0.1 --insert=0"
+                    + " --delete=0 --distribution=uniform|zipfian|latest --value-size=constant:100|uniform:10:1000"
+                    + "|zipfian:10:1000 --target=<ops/s, 0 unthrottled> --warmup=<s> --duration=<s>"
+                    + " --mode=file|double --strict=false --dir=<store directory> --csv=<report file>");
+            System.exit(2);
+            return;
+        }
+        List<String> rows = new LoadGenerator(workload).run();
+        try (PrintWriter out = new PrintWriter(new FileWriter(workload.csv))) {
+            out.println(CSV_HEADER);
+            rows.forEach(out::println);
+        }
+        System.out.println("report written to " + workload.csv.getAbsolutePath());
+    }
+
+    List<String> run() throws Exception {
+        File root = workload.directory != null ? workload.directory
+                : Files.createTempDirectory("kvstorage-loadgen").toFile();
+        if (!root.isDirectory() && !root.mkdirs()) throw new IOException("can't create " + root);
+        List<String> rows = new ArrayList<>();
+        System.out.printf(Locale.ROOT, "%-8s %-10s %-8s %-7s %12s %12s %10s %10s %10s %8s%n", "records", "threads",
+                "op", "errors", "operations", "ops/s", "p50 us", "p99 us", "p999 us", "store MB");
+        for (long records : workload.records) {
+            for (int threads : workload.threads) {
+                File directory = new File(root, "r" + records + "-t" + threads);
+                try {
+                    rows.addAll(run(directory, records, threads));
+                } finally {
+                    delete(directory);
+                }
+            }
+        }
+        if (workload.directory == null) {
+            delete(root);
+        }
+        return rows;
+    }
+
+    private List<String> run(File directory, long records, int threads) throws Exception {
+        if (!directory.mkdirs()) throw new IOException("can't create " + directory);
+        LongAdder errors = new LongAdder();
+        StorageFactory factory = new StorageFactory()
+                .setDoubleFileMode(workload.doubleFileMode)
+                .setStrictWriteMode(workload.strictWrite)
+                .setDafaultExceptionHandler(ex -> errors.increment());
+        byte[] values = new byte[Math.max(workload.valueSizes.max, 1)];
+        new Random(42).nextBytes(values);
+        AtomicLong inserted = new AtomicLong(records);
+        KeyChooser keys = KeyChooser.create(workload.keyDistribution, records, inserted);
+        Worker[] workers = new Worker[threads];
+        double seconds;
+        try (KVStorageAdapter storage = factory.newStorage(new File(directory, "store"))) {
+            load(storage, records, values);
+            errors.reset();
+            long start = System.nanoTime();
+            long measureFrom = start + workload.warmupMillis * 1_000_000;
+            long end = measureFrom + workload.durationMillis * 1_000_000;
+            long interval = workload.targetOpsPerSecond > 0 ? threads * 1_000_000_000L / workload.targetOpsPerSecond : 0;
+            Thread[] running = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Worker(storage, keys, inserted, values, new SplittableRandom(i * 31L + records),
+                        start, measureFrom, end, interval);
+                running[i] = new Thread(workers[i], "loadgen-" + i);
+                running[i].start();
+            }
+            for (Thread thread : running) {
+                thread.join();
+            }
+            seconds = workload.durationMillis / 1000.0;
+        }
+        long storeBytes = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                storeBytes += file.length();
+            }
+        }
+        List<String> rows = new ArrayList<>();
+        LatencyHistogram all = new LatencyHistogram();
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram merged = new LatencyHistogram();
+            for (Worker worker : workers) {
+                merged.add(worker.histograms[operation.ordinal()]);
+            }
+            all.add(merged);
+            if (merged.count() > 0) {
+                rows.add(row(records, threads, operation.name(), merged, 0, seconds, storeBytes));
+            }
+        }
+        rows.add(row(records, threads, "ALL", all, errors.sum(), seconds, storeBytes));
+        return rows;
+    }
+
+    private void load(KVStorageAdapter storage, long records, byte[] values) {
+        SplittableRandom random = new SplittableRandom(records);
+        KVStorageAdapter.BulkEditor editor = storage.bulkInsert().reserve((int) Math.min(records, 1 << 20));
+        for (long i = 0; i < records; i++) {
+            editor.put(key(i), Arrays.copyOf(values, workload.valueSizes.next(random)));
+        }
+        if (!editor.commit()) throw new IllegalStateException("can't load " + records + " records");
+    }
+
+    private String row(long records, int threads, String operation, LatencyHistogram histogram, long errors,
+                       double seconds, long storeBytes) {
+        double throughput = (double) histogram.count() / seconds;
+        System.out.printf(Locale.ROOT, "%-8d %-10d %-8s %-7d %12d %12.0f %10.1f %10.1f %10.1f %8.2f%n", records,
+                threads, operation, errors, histogram.count(), throughput, micros(histogram.percentile(50)),
+                micros(histogram.percentile(99)), micros(histogram.percentile(99.9)), storeBytes / 1048576.0);
+        return String.format(Locale.ROOT, "%s,%s,%s,%d,%d,%d,%d,%s,%d,%d,%.1f,%.1f,%.2f,%.2f,%.2f,%.2f,%.2f,%d",
+                workload.mode(), workload.keyDistribution, workload.valueSizesSpec, workload.targetOpsPerSecond,
+                cores, records, threads, operation, histogram.count(), errors, seconds, throughput,
+                histogram.mean() / 1000, micros(histogram.percentile(50)), micros(histogram.percentile(99)),
+                micros(histogram.percentile(99.9)), micros(histogram.max()), storeBytes);
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    static byte[] key(long record) {
+        return ("user" + record).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private final class Worker implements Runnable {
+        final LatencyHistogram[] histograms = new LatencyHistogram[Operation.values().length];
+        private final KVStorageAdapter storage;
+        private final KeyChooser keys;
+        private final AtomicLong inserted;
+        private final byte[] values;
+        private final SplittableRandom random;
+        private final long start;
+        private final long measureFrom;
+        private final long end;
+        private final long interval;
+
+        Worker(KVStorageAdapter storage, KeyChooser keys, AtomicLong inserted, byte[] values, SplittableRandom random,
+               long start, long measureFrom, long end, long interval) {
+            this.storage = storage;
+            this.keys = keys;
+            this.inserted = inserted;
+            this.values = values;
+            this.random = random;
+            this.start = start;
+            this.measureFrom = measureFrom;
+            this.end = end;
+            this.interval = interval;
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+        }
+
+        @Override public void run() {
+            long intended = start;
+            while (true) {
+                long now = System.nanoTime();
+                if (interval > 0) {
+                    if (intended > now) {
+                        LockSupport.parkNanos(intended - now);
+                    }
+                } else {
+                    intended = now;
+                }
+                if (intended >= end || now >= end) return;
+                Operation operation = nextOperation();
+                execute(operation);
+                //a throttled run measures from the scheduled start, so a stall also counts against queued requests
+                if (intended >= measureFrom) {
+                    histograms[operation.ordinal()].record(System.nanoTime() - intended);
+                }
+                intended += interval;
+            }
+        }
+
+        private Operation nextOperation() {
+            double choice = random.nextDouble();
+            if ((choice -= workload.readRatio) < 0) return Operation.READ;
+            if ((choice -= workload.updateRatio) < 0) return Operation.UPDATE;
+            if ((choice -= workload.insertRatio) < 0) return Operation.INSERT;
+            return workload.deleteRatio > 0 ? Operation.DELETE : Operation.READ;
+        }
+
+        private void execute(Operation operation) {
+            switch (operation) {
+                case READ:
+                    storage.getBytes(key(keys.next(random)));
+                    break;
+                case UPDATE:
+                    storage.put(key(keys.next(random)), value());
+                    break;
+                case INSERT:
+                    storage.put(key(inserted.getAndIncrement()), value());
+                    break;
+                case DELETE:
+                    storage.remove(key(keys.next(random)));
+                    break;
+            }
+        }
+
+        private byte[] value() {
+            return Arrays.copyOf(values, workload.valueSizes.next(random));
+        }
+    }
+}
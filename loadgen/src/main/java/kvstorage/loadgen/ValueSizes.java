@@ -0,0 +1,66 @@
+package kvstorage.loadgen;
+
+import java.util.SplittableRandom;
+
+//value length distribution, given as constant:<n>, uniform:<min>:<max> or zipfian:<min>:<max> (small values popular)
+abstract class ValueSizes {
+    final int max;
+
+    ValueSizes(int max) {
+        this.max = max;
+    }
+
+    abstract int next(SplittableRandom random);
+
+    static ValueSizes parse(String spec) {
+        String[] parts = spec.split(":");
+        try {
+            switch (parts[0]) {
+                case "constant":
+                    if (parts.length != 2) break;
+                    return constant(Integer.parseInt(parts[1]));
+                case "uniform":
+                    if (parts.length != 3) break;
+                    return uniform(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                case "zipfian":
+                    if (parts.length != 3) break;
+                    return zipfian(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("value sizes " + spec, ex);
+        }
+        throw new IllegalArgumentException("value sizes " + spec);
+    }
+
+    static ValueSizes constant(int length) {
+        check(length, length);
+        return new ValueSizes(length) {
+            @Override int next(SplittableRandom random) {
+                return length;
+            }
+        };
+    }
+
+    static ValueSizes uniform(int min, int max) {
+        check(min, max);
+        return new ValueSizes(max) {
+            @Override int next(SplittableRandom random) {
+                return random.nextInt(min, max + 1);
+            }
+        };
+    }
+
+    static ValueSizes zipfian(int min, int max) {
+        check(min, max);
+        KeyChooser.Zipfian zipfian = new KeyChooser.Zipfian(max - min + 1L, KeyChooser.ZIPFIAN_CONSTANT);
+        return new ValueSizes(max) {
+            @Override int next(SplittableRandom random) {
+                return min + (int) zipfian.next(random);
+            }
+        };
+    }
+
+    private static void check(int min, int max) {
+        if (min < 0 || max < min) throw new IllegalArgumentException("value sizes " + min + ".." + max);
+    }
+}
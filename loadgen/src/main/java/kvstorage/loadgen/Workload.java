@@ -0,0 +1,143 @@
+package kvstorage.loadgen;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+//run parameters, parsed from --name=value arguments
+final class Workload {
+    long[] records = {10_000};
+    int[] threads = defaultThreads();
+    double readRatio = 0.9;
+    double updateRatio = 0.1;
+    double insertRatio;
+    double deleteRatio;
+    String keyDistribution = "zipfian";
+    ValueSizes valueSizes = ValueSizes.constant(100);
+    String valueSizesSpec = "constant:100";
+    long targetOpsPerSecond;
+    long warmupMillis = 2_000;
+    long durationMillis = 10_000;
+    boolean doubleFileMode;
+    boolean strictWrite;
+    File directory;
+    File csv = new File("loadgen.csv");
+
+    static Workload parse(String... args) {
+        Workload workload = new Workload();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) throw new IllegalArgumentException("expected --name=value: " + arg);
+            String name = arg.substring(2, split);
+            String value = arg.substring(split + 1);
+            try {
+                workload.set(name, value);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(arg, ex);
+            }
+        }
+        workload.validate();
+        return workload;
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "records":
+                records = parseLongs(value);
+                break;
+            case "threads":
+                threads = parseInts(value);
+                break;
+            case "read":
+                readRatio = Double.parseDouble(value);
+                break;
+            case "update":
+                updateRatio = Double.parseDouble(value);
+                break;
+            case "insert":
+                insertRatio = Double.parseDouble(value);
+                break;
+            case "delete":
+                deleteRatio = Double.parseDouble(value);
+                break;
+            case "distribution":
+                keyDistribution = value;
+                break;
+            case "value-size":
+                valueSizes = ValueSizes.parse(value);
+                valueSizesSpec = value;
+                break;
+            case "target":
+                targetOpsPerSecond = Long.parseLong(value);
+                break;
+            case "warmup":
+                warmupMillis = Long.parseLong(value) * 1000;
+                break;
+            case "duration":
+                durationMillis = Long.parseLong(value) * 1000;
+                break;
+            case "mode":
+                if (!value.equals("file") && !value.equals("double"))
+                    throw new IllegalArgumentException("mode " + value);
+                doubleFileMode = value.equals("double");
+                break;
+            case "strict":
+                strictWrite = Boolean.parseBoolean(value);
+                break;
+            case "dir":
+                directory = new File(value);
+                break;
+            case "csv":
+                csv = new File(value);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option --" + name);
+        }
+    }
+
+    private void validate() {
+        double total = readRatio + updateRatio + insertRatio + deleteRatio;
+        if (readRatio < 0 || updateRatio < 0 || insertRatio < 0 || deleteRatio < 0 || total <= 0)
+            throw new IllegalArgumentException("operation ratios must be >= 0 with a positive sum");
+        readRatio /= total;
+        updateRatio /= total;
+        insertRatio /= total;
+        deleteRatio /= total;
+        for (long count : records) {
+            if (count <= 0) throw new IllegalArgumentException("records " + count);
+        }
+        for (int count : threads) {
+            if (count <= 0) throw new IllegalArgumentException("threads " + count);
+        }
+        if (targetOpsPerSecond < 0) throw new IllegalArgumentException("target " + targetOpsPerSecond);
+        if (durationMillis <= 0) throw new IllegalArgumentException("duration " + durationMillis);
+        if (warmupMillis < 0) throw new IllegalArgumentException("warmup " + warmupMillis);
+        KeyChooser.create(keyDistribution, 1, new AtomicLong(1));
+    }
+
+    String mode() {
+        return doubleFileMode ? "double" : "file";
+    }
+
+    private static int[] defaultThreads() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return cores > 4 ? new int[]{1, 2, 4, cores} : cores > 1 ? new int[]{1, cores} : new int[]{1};
+    }
+
+    private static long[] parseLongs(String value) {
+        String[] parts = value.split(",");
+        long[] result = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Long.parseLong(parts[i].trim());
+        }
+        return result;
+    }
+
+    private static int[] parseInts(String value) {
+        String[] parts = value.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,166 @@
+package kvstorage.loadgen;
+
+import kvstorage.KVStorageAdapter;
+import kvstorage.StorageFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.consumer.RecordingStream;
+
+//thousands of virtual threads writing and reading one store on a few carriers. the measure is carrier starvation:
+//how late a heartbeat virtual thread wakes up and the share of the run it spent waiting for a carrier, which grows
+//when blocked callers hold the carriers. jdk.VirtualThreadPinned events are counted alongside, but a pinned thread
+//that blocks only briefly starves no one. the monitor mode wraps every call in synchronized, the way the store
+//locked before
+public final class PinningBenchmark {
+    private static final String PINNED = "jdk.VirtualThreadPinned";
+
+    private final int threads;
+    private final int operations;
+    private final int keys;
+    private final byte[] value;
+
+    PinningBenchmark(int threads, int operations, int keys, int valueSize) {
+        this.threads = threads;
+        this.operations = operations;
+        this.keys = keys;
+        this.value = new byte[valueSize];
+        Arrays.fill(value, (byte) 'v');
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = 5000;
+        int operations = 10;
+        int keys = 1000;
+        int valueSize = 100;
+        int carriers = 2;
+        String[] modes = {"lock", "monitor"};
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) {
+                System.err.println("expected --name=value: " + arg);
+                System.err.println("options: --threads=5000 --operations=10 --keys=1000 --value-size=100"
+                        + " --carriers=2 --mode=lock,monitor");
+                System.exit(2);
+                return;
+            }
+            String value = arg.substring(split + 1);
+            switch (arg.substring(2, split)) {
+                case "threads" -> threads = Integer.parseInt(value);
+                case "operations" -> operations = Integer.parseInt(value);
+                case "keys" -> keys = Integer.parseInt(value);
+                case "value-size" -> valueSize = Integer.parseInt(value);
+                case "carriers" -> carriers = Integer.parseInt(value);
+                case "mode" -> modes = value.split(",");
+                default -> throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        //read when the first virtual thread starts; without a cap the scheduler adds carriers for pinned threads
+        //and hides the starvation
+        System.setProperty("jdk.virtualThreadScheduler.parallelism", String.valueOf(carriers));
+        System.setProperty("jdk.virtualThreadScheduler.maxPoolSize", String.valueOf(carriers));
+        PinningBenchmark benchmark = new PinningBenchmark(threads, operations, keys, valueSize);
+        System.out.printf(Locale.ROOT, "%-8s %-8s %12s %12s %14s %14s %10s %10s%n", "mode", "threads", "operations",
+                "ops/s", "beat p99 ms", "beat max ms", "starved %", "pinned");
+        for (String mode : modes) {
+            benchmark.run(mode);
+        }
+    }
+
+    void run(String mode) throws Exception {
+        Object monitor;
+        switch (mode) {
+            case "lock" -> monitor = null;
+            case "monitor" -> monitor = new Object();
+            default -> throw new IllegalArgumentException("unknown mode " + mode);
+        }
+        File directory = Files.createTempDirectory("kvstorage-pinning").toFile();
+        LongAdder pinned = new LongAdder();
+        LongAdder errors = new LongAdder();
+        StorageFactory factory = new StorageFactory().setDafaultExceptionHandler(ex -> errors.increment());
+        try (RecordingStream recording = new RecordingStream();
+             KVStorageAdapter storage = factory.newStorage(new File(directory, "store"))) {
+            recording.enable(PINNED).withoutThreshold().withStackTrace();
+            recording.onEvent(PINNED, event -> pinned.increment());
+            recording.startAsync();
+            Heartbeat heartbeat = new Heartbeat();
+            Thread beating = Thread.ofVirtual().name("heartbeat").start(heartbeat);
+            long start = System.nanoTime();
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < threads; i++) {
+                    int caller = i;
+                    executor.execute(() -> call(storage, monitor, caller));
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            heartbeat.running = false;
+            beating.join();
+            recording.stop();
+            long total = (long) threads * operations * 2;
+            System.out.printf(Locale.ROOT, "%-8s %-8d %12d %12.0f %14.2f %14.2f %10.1f %10d%n", mode, threads, total,
+                    total * 1e9 / elapsed, heartbeat.delays.percentile(99) / 1e6, heartbeat.delays.max() / 1e6,
+                    heartbeat.late * 100.0 / elapsed, pinned.sum());
+            if (errors.sum() > 0) {
+                System.out.println(errors.sum() + " operations failed");
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private void call(KVStorageAdapter storage, Object monitor, int caller) {
+        for (int i = 0; i < operations; i++) {
+            byte[] key = ("key" + (caller * operations + i) % keys).getBytes(StandardCharsets.UTF_8);
+            if (monitor != null) {
+                synchronized (monitor) {
+                    storage.put(key, value);
+                    storage.getBytes(key);
+                }
+            } else {
+                storage.put(key, value);
+                storage.getBytes(key);
+            }
+        }
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+    //sleeps a millisecond at a time and records how much later than that it gets to run again;
+    //read after the thread is joined
+    private static final class Heartbeat implements Runnable {
+        final LatencyHistogram delays = new LatencyHistogram();
+        volatile boolean running = true;
+        long late;
+
+        @Override public void run() {
+            while (running) {
+                long before = System.nanoTime();
+                try {
+                    TimeUnit.MILLISECONDS.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long delay = Math.max(System.nanoTime() - before - 1_000_000, 0);
+                delays.record(delay);
+                late += delay;
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package kvstorage.loadgen;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test public void testBucketsRoundTrip() {
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            long bucketValue = LatencyHistogram.value(LatencyHistogram.index(value));
+            assertTrue(value + " -> " + bucketValue, Math.abs(bucketValue - value) <= value / 64 + 1);
+        }
+        assertEquals(127, LatencyHistogram.index(127));
+        assertTrue(LatencyHistogram.index(Long.MAX_VALUE) > LatencyHistogram.index(Long.MAX_VALUE / 2));
+    }
+
+    @Test public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(500_000, histogram.percentile(50), 500_000 / 64);
+        assertEquals(990_000, histogram.percentile(99), 990_000 / 64);
+        assertEquals(1_000_000, histogram.percentile(100));
+        assertEquals(500_500, histogram.mean(), 0.001);
+
+        LatencyHistogram other = new LatencyHistogram();
+        other.record(5_000_000);
+        histogram.add(other);
+        assertEquals(1001, histogram.count());
+        assertEquals(5_000_000, histogram.max());
+        assertEquals(5_000_000, histogram.percentile(100));
+        assertEquals(0, new LatencyHistogram().percentile(99));
+    }
+}
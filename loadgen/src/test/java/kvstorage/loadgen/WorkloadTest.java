@@ -0,0 +1,76 @@
+package kvstorage.loadgen;
+
+import org.junit.Test;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class WorkloadTest {
+
+    @Test public void testParse() {
+        Workload workload = Workload.parse("--records=10,20", "--threads=1,8", "--read=3", "--update=1",
+                "--distribution=latest", "--value-size=uniform:5:10", "--mode=double", "--target=500");
+        assertArrayEquals(new long[]{10, 20}, workload.records);
+        assertArrayEquals(new int[]{1, 8}, workload.threads);
+        assertEquals(0.75, workload.readRatio, 1e-9);
+        assertEquals(0.25, workload.updateRatio, 1e-9);
+        assertEquals("double", workload.mode());
+        assertEquals(10, workload.valueSizes.max);
+        assertEquals(500, workload.targetOpsPerSecond);
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void testUnknownOption() {
+        Workload.parse("--reads=1");
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void testUnknownDistribution() {
+        Workload.parse("--distribution=hotspot");
+    }
+
+    @Test public void testZipfianSkew() {
+        KeyChooser.Zipfian zipfian = new KeyChooser.Zipfian(1000, KeyChooser.ZIPFIAN_CONSTANT);
+        SplittableRandom random = new SplittableRandom(1);
+        int[] counts = new int[1000];
+        for (int i = 0; i < 100_000; i++) {
+            counts[(int) zipfian.next(random)]++;
+        }
+        assertTrue(counts[0] > counts[1]);
+        assertTrue(counts[1] > counts[10]);
+        assertTrue(counts[0] > 100_000 / 20);
+    }
+
+    @Test public void testLatestFollowsInserts() {
+        AtomicLong inserted = new AtomicLong(1000);
+        KeyChooser latest = KeyChooser.create("latest", 1000, inserted);
+        SplittableRandom random = new SplittableRandom(2);
+        inserted.set(5000);
+        int recent = 0;
+        for (int i = 0; i < 1000; i++) {
+            long key = latest.next(random);
+            assertTrue(key >= 0 && key < 5000);
+            if (key >= 4990) recent++;
+        }
+        assertTrue(recent > 300);
+        KeyChooser uniform = KeyChooser.create("uniform", 1000, inserted);
+        for (int i = 0; i < 1000; i++) {
+            long key = uniform.next(random);
+            assertTrue(key >= 0 && key < 5000);
+        }
+    }
+
+    @Test public void testValueSizes() {
+        SplittableRandom random = new SplittableRandom(3);
+        assertEquals(7, ValueSizes.parse("constant:7").next(random));
+        ValueSizes zipfian = ValueSizes.parse("zipfian:10:20");
+        for (int i = 0; i < 100; i++) {
+            int size = zipfian.next(random);
+            assertTrue(size >= 10 && size <= 20);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void testBadValueSizes() {
+        ValueSizes.parse("uniform:10");
+    }
+}
@@ -0,0 +1,258 @@
+package kvstorage;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static kvstorage.ByteUtils.*;
+
+//append-only files next to the storage file, records keep a pointer: file id, offset, length
+final class BlobLog implements Closeable {
+    static final int POINTER_LENGTH = 16;
+    static final long MAX_FILE_LENGTH = 64L * 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final File directory;
+    private final String namePrefix;
+    private final int threshold;
+    private final boolean strictWrite;
+    private final Map<Integer, FileChannel> channels = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> lengths = new ConcurrentHashMap<>();
+    //readers pin the log while they read, files are only deleted when nobody holds a pin
+    private final ReadWriteLock pins = new ReentrantReadWriteLock();
+    private int activeId;
+
+    BlobLog(File file, int threshold, boolean strictWrite) {
+        if (threshold <= 0) throw new IllegalArgumentException("threshold " + threshold);
+        this.directory = file.getAbsoluteFile().getParentFile();
+        this.namePrefix = file.getName() + ".blob.";
+        this.threshold = threshold;
+        this.strictWrite = strictWrite;
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.startsWith(namePrefix)) continue;
+                try {
+                    int id = Integer.parseInt(name.substring(namePrefix.length()));
+                    if (id < 0) continue;
+                    lengths.put(id, new File(directory, name).length());
+                    activeId = Math.max(activeId, id);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+    }
+
+    int threshold() {
+        return threshold;
+    }
+
+    static int fileId(byte[] buffer, int pointer) {
+        return readInt(buffer, pointer);
+    }
+
+    static int length(byte[] buffer, int pointer) {
+        return readInt(buffer, pointer + 12);
+    }
+
+    List<Integer> fileIds() {
+        return new ArrayList<>(lengths.keySet());
+    }
+
+    //compacting the active file would only move its values to its own tail
+    boolean shouldCompact(int fileId, long liveBytes) {
+        Long length = lengths.get(fileId);
+        return fileId != activeId && length != null && liveBytes * 2 < length;
+    }
+
+    void pin() {
+        pins.readLock().lock();
+    }
+
+    void unpin() {
+        pins.readLock().unlock();
+    }
+
+    void append(byte[] value, byte[] dest, int destOffset) throws IOException {
+        FileChannel channel = activeChannel(value.length);
+        long offset = lengths.get(activeId);
+        ByteBuffer source = ByteBuffer.wrap(value);
+        while (source.hasRemaining()) {
+            channel.write(source, offset + source.position());
+        }
+        appended(channel, offset, value.length, dest, destOffset);
+    }
+
+    void append(InputStream in, int length, byte[] dest, int destOffset) throws IOException {
+        FileChannel channel = activeChannel(length);
+        long offset = lengths.get(activeId);
+        byte[] chunk = new byte[Math.min(length, COPY_BUFFER_SIZE)];
+        long position = offset;
+        int remaining = length;
+        while (remaining > 0) {
+            int count = in.read(chunk, 0, Math.min(chunk.length, remaining));
+            if (count < 0) throw new EOFException("value stream ended at " + (length - remaining) + " of " + length);
+            ByteBuffer source = ByteBuffer.wrap(chunk, 0, count);
+            while (source.hasRemaining()) {
+                position += channel.write(source, position);
+            }
+            remaining -= count;
+        }
+        appended(channel, offset, length, dest, destOffset);
+    }
+
+    //copies the value the pointer refers to into the active file and rewrites the pointer in place
+    void move(byte[] buffer, int pointer) throws IOException {
+        int length = length(buffer, pointer);
+        FileChannel source = channel(fileId(buffer, pointer));
+        FileChannel target = activeChannel(length);
+        long offset = lengths.get(activeId);
+        long position = readLong(buffer, pointer + 4);
+        long copied = 0;
+        while (copied < length) {
+            long count = source.transferTo(position + copied, length - copied, target.position(offset + copied));
+            if (count <= 0) throw new EOFException("blob ended at " + copied + " of " + length);
+            copied += count;
+        }
+        lengths.put(activeId, offset + length);
+        writePointer(buffer, pointer, activeId, offset, length);
+    }
+
+    void sync() throws IOException {
+        FileChannel channel = channels.get(activeId);
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    byte[] read(byte[] pointer) throws IOException {
+        int length = length(pointer, 0);
+        FileChannel channel = channel(fileId(pointer, 0));
+        long position = readLong(pointer, 4);
+        ByteBuffer result = ByteBuffer.allocate(length);
+        while (result.hasRemaining()) {
+            if (channel.read(result, position + result.position()) < 0)
+                throw new EOFException("blob ended at " + result.position() + " of " + length);
+        }
+        return result.array();
+    }
+
+    //the stream owns its channel, so it stays readable even if the file is collected meanwhile
+    InputStream open(byte[] pointer) throws IOException {
+        FileChannel channel = FileChannel.open(file(fileId(pointer, 0)).toPath(), StandardOpenOption.READ);
+        return new BlobInputStream(channel, readLong(pointer, 4), length(pointer, 0));
+    }
+
+    //returns false if a reader still pins the log, the file is retried on the next collection
+    boolean delete(int fileId) throws IOException {
+        if (!pins.writeLock().tryLock()) return false;
+        try {
+            FileChannel channel = channels.remove(fileId);
+            if (channel != null) {
+                channel.close();
+            }
+            File file = file(fileId);
+            if (file.exists() && !file.delete()) throw new IOException("can't delete " + file);
+            lengths.remove(fileId);
+            return true;
+        } finally {
+            pins.writeLock().unlock();
+        }
+    }
+
+    @Override public void close() throws IOException {
+        for (FileChannel channel : channels.values()) {
+            channel.close();
+        }
+        channels.clear();
+    }
+
+    private FileChannel activeChannel(int length) throws IOException {
+        Long current = lengths.get(activeId);
+        if (current != null && current > 0 && current + length > MAX_FILE_LENGTH) {
+            activeId++;
+        }
+        lengths.putIfAbsent(activeId, 0L);
+        return channel(activeId);
+    }
+
+    private void appended(FileChannel channel, long offset, int length, byte[] dest, int destOffset)
+            throws IOException {
+        if (strictWrite) {
+            channel.force(false);
+        }
+        lengths.put(activeId, offset + length);
+        writePointer(dest, destOffset, activeId, offset, length);
+    }
+
+    private FileChannel channel(int fileId) throws IOException {
+        FileChannel channel = channels.get(fileId);
+        if (channel != null) return channel;
+        if (!lengths.containsKey(fileId)) throw new IOException("missing blob file " + file(fileId));
+        synchronized (channels) {
+            channel = channels.get(fileId);
+            if (channel == null) {
+                channel = FileChannel.open(file(fileId).toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channels.put(fileId, channel);
+            }
+            return channel;
+        }
+    }
+
+    private File file(int fileId) {
+        return new File(directory, namePrefix + fileId);
+    }
+
+    private static void writePointer(byte[] dest, int offset, int fileId, long position, int length) {
+        writeInt(dest, offset, fileId);
+        writeLong(dest, offset + 4, position);
+        writeInt(dest, offset + 12, length);
+    }
+
+    private static final class BlobInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        BlobInputStream(FileChannel channel, long position, int length) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (remaining == 0) return -1;
+            int count = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (count < 0) throw new EOFException("blob ended with " + remaining + " bytes left");
+            position += count;
+            remaining -= count;
+            return count;
+        }
+
+        @Override public int available() {
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+
+        @Override public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package kvstorage;
+
+//released store buffers kept for the next mutation of the same length: an update of an equal-length value, or an
+//insert after a removal of the same size, gets the array of an earlier version instead of a new one.
+//not thread safe, used under the write lock
+final class BufferPool {
+    private final byte[][] spares;
+    private int next;
+
+    BufferPool(int capacity) {
+        spares = new byte[capacity][];
+    }
+
+    //the returned array holds stale bytes, the caller overwrites all of it
+    byte[] take(int length) {
+        for (int i = 0; i < spares.length; i++) {
+            byte[] spare = spares[i];
+            if (spare != null && spare.length == length) {
+                spares[i] = null;
+                return spare;
+            }
+        }
+        return new byte[length];
+    }
+
+    //replaces the oldest spare
+    void give(byte[] buffer) {
+        if (spares.length == 0 || buffer.length == 0) return;
+        spares[next] = buffer;
+        next = (next + 1) % spares.length;
+    }
+
+    void clear() {
+        for (int i = 0; i < spares.length; i++) {
+            spares[i] = null;
+        }
+    }
+}
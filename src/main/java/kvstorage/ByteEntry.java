@@ -3,76 +3,58 @@ package kvstorage;
 import static kvstorage.ByteUtils.*;
 
 final class ByteEntry {
-    static final int LENGTH = 14;
     static final int KEY_MAX_LENGTH = Short.MAX_VALUE;
 
     final int position;
     final long hash;
+    final int prefix;
+    final int headerLength;
     final int keyLength;
     final int valueLength;
-
-    private byte[] key;
-    private byte[] value;
+    final boolean blob;
 
     private int index = -1;
 
-    ByteEntry(int position, long hash, int keyLength, int valueLength) {
+    ByteEntry(int position, long hash, int prefix, int headerLength, int keyLength, int valueLength) {
+        this(position, hash, prefix, headerLength, keyLength, valueLength, false);
+    }
+
+    ByteEntry(int position, long hash, int prefix, int headerLength, int keyLength, int valueLength, boolean blob) {
         this.position = position;
         this.hash = hash;
+        this.prefix = prefix;
+        this.headerLength = headerLength;
         this.keyLength = keyLength;
         this.valueLength = valueLength;
+        this.blob = blob;
     }
 
-    static ByteEntry read(int position, byte[] bytes) {
-        long hash = readLong(bytes, position);
-        int keyLength = readShort(bytes, position + 8);
-        int valueLength = readInt(bytes, position + 10);
-        return new ByteEntry(position, hash, keyLength, valueLength);
-    }
-
-    int write(int position, byte[] out) {
-        writeLong(out, position, hash);
-        writeShort(out, position + 8, keyLength);
-        writeInt(out, position + 10, valueLength);
-        return position + LENGTH;
+    boolean isPrefixDefinition() {
+        return prefix < 0;
     }
 
     int entryLength() {
-        return LENGTH + keyLength + valueLength;
+        return headerLength + keyLength + valueLength;
     }
 
     int nextPosition() {
-        return position + LENGTH + keyLength + valueLength;
+        return position + headerLength + keyLength + valueLength;
+    }
+
+    int keyPosition() {
+        return position + headerLength;
     }
 
     int valuePosition() {
-        return position + LENGTH + keyLength;
+        return position + headerLength + keyLength;
     }
 
     byte[] readKey(byte[] in) {
-        return subArray(in, position + LENGTH, keyLength);
+        return subArray(in, keyPosition(), keyLength);
     }
 
     byte[] readValue(byte[] in) {
-        return subArray(in, position + LENGTH + keyLength, valueLength);
-    }
-
-    byte[] getOrReadKey(byte[] in) {
-        if (key == null) {
-            key = readKey(in);
-        }
-        return key;
-    }
-
-    byte[] getOrReadValue(byte[] in) {
-        if (value == null) {
-            value = readValue(in);
-        }
-        return value;
-    }
-
-    void setValue(byte[] value) {
-        this.value = value;
+        return subArray(in, valuePosition(), valueLength);
     }
 
     int getIndex() {
@@ -84,16 +66,10 @@ final class ByteEntry {
     }
 
     ByteEntry copyWithNewPosition(int newPosition) {
-        ByteEntry entry = new ByteEntry(newPosition, hash, keyLength, valueLength);
-        entry.key = key;
-        entry.value = value;
-        return entry;
+        return new ByteEntry(newPosition, hash, prefix, headerLength, keyLength, valueLength, blob);
     }
 
-    ByteEntry copyWithNewValue(byte[] value) {
-        ByteEntry entry = new ByteEntry(position, hash, keyLength, value.length);
-        entry.key = key;
-        entry.value = value;
-        return entry;
+    ByteEntry copyWithNewValue(int newValueLength, int newHeaderLength, boolean blob) {
+        return new ByteEntry(position, hash, prefix, newHeaderLength, keyLength, newValueLength, blob);
     }
 }
@@ -1,19 +1,28 @@
 package kvstorage;
 
 import java.io.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ByteFileStorage implements ByteStorage {
     private final File file;
     private final StreamWrapper streamWrapper;
     private final boolean strictWrite;
+    private final FramePipeline frames;
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean slotFiles;
 
     protected ByteFileStorage(File file) {
         this(file, false, null);
     }
 
     protected ByteFileStorage(File file, boolean strictWrite, StreamWrapper streamWrapper) {
+        this(file, strictWrite, streamWrapper, null);
+    }
+
+    ByteFileStorage(File file, boolean strictWrite, StreamWrapper streamWrapper, FramePipeline frames) {
         this.file = file;
         this.strictWrite = strictWrite;
+        this.frames = frames;
         this.streamWrapper = streamWrapper != null ? streamWrapper : new StreamWrapper() {
             @Override public InputStream input(InputStream is) throws IOException {
                 return is;
@@ -29,10 +38,36 @@ public class ByteFileStorage implements ByteStorage {
         return new KVByteStorage(this);
     }
 
+    //slots of DoubleFileStorage written at or after the file are read instead, the next write deletes them
     @Override public byte[] read() throws IOException {
+        lock.lock();
+        try {
+            File[] slots = {DoubleFileStorage.slotFile(file, 'a'), DoubleFileStorage.slotFile(file, 'b')};
+            long slotsModified = 0;
+            slotFiles = false;
+            for (File slot : slots) {
+                if (slot.length() > 0) {
+                    slotFiles = true;
+                    slotsModified = Math.max(slotsModified, slot.lastModified());
+                }
+            }
+            if (slotsModified > 0 && (!file.exists() || slotsModified >= file.lastModified())) {
+                try (DoubleFileStorage storage = new DoubleFileStorage(file, strictWrite, streamWrapper, frames)) {
+                    return storage.read();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return readFile();
+    }
+
+    byte[] readFile() throws IOException {
         byte[] result = null;
         try {
-            if (file.exists()) {
+            if (file.exists() && frames != null) {
+                result = readFramed();
+            } else if (file.exists()) {
                 InputStream stream = streamWrapper.input(new FileInputStream(file));
                 try {
                     int size = stream.available();
@@ -56,27 +91,61 @@ public class ByteFileStorage implements ByteStorage {
         }
     }
 
-    @Override public synchronized void write(byte[] bytes) throws IOException {
-        File tmpFile = tempFile();
-        boolean success;
+    //files written before frames were enabled are still read through the serial stream
+    private byte[] readFramed() throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(data);
+        }
+        if (FramePipeline.isFramed(data)) return frames.read(data);
+        try (InputStream stream = streamWrapper.input(new ByteArrayInputStream(data))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+            byte[] chunk = new byte[8192];
+            int count;
+            while ((count = stream.read(chunk)) != -1) {
+                out.write(chunk, 0, count);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Override public void write(byte[] bytes) throws IOException {
+        lock.lock();
         try {
-            writeBuffer(bytes, tmpFile);
-            success = tmpFile.renameTo(file);
-        } catch (IOException ex) {
-            throw new IOException("writeBuffer " + bytes.length, ex);
+            File tmpFile = tempFile();
+            boolean success;
+            try {
+                writeBuffer(bytes, tmpFile);
+                success = tmpFile.renameTo(file);
+            } catch (IOException ex) {
+                throw new IOException("writeBuffer " + bytes.length, ex);
+            } finally {
+                tmpFile.delete();
+            }
+            if (!success) {
+                throw new IOException("writeBuffer failed" + bytes.length);
+            }
+            if (slotFiles) {
+                for (char slot : new char[]{'a', 'b'}) {
+                    File slotFile = DoubleFileStorage.slotFile(file, slot);
+                    if (slotFile.exists() && !slotFile.delete()) throw new IOException("can't delete " + slotFile);
+                }
+                slotFiles = false;
+            }
         } finally {
-            tmpFile.delete();
-        }
-        if (!success) {
-            throw new IOException("writeBuffer failed" + bytes.length);
+            lock.unlock();
         }
     }
 
     private void writeBuffer(byte[] buffer, File out) throws IOException {
         FileOutputStream fos = new FileOutputStream(out);
-        OutputStream stream = streamWrapper.output(fos);
+        OutputStream stream = frames != null ? new BufferedOutputStream(fos) : streamWrapper.output(fos);
         try {
-            stream.write(buffer);
+            if (frames != null) {
+                frames.write(buffer, stream);
+            } else {
+                stream.write(buffer);
+            }
             stream.flush();
         } catch (Exception ex) {
             closeQuietly(stream);
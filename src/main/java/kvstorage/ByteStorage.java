@@ -5,6 +5,7 @@ import java.io.IOException;
 interface ByteStorage {
     byte[] read() throws IOException;
 
+    //the array may be kept until the next write, arrays of earlier writes are reused by the caller
     void write(byte[] bytes) throws IOException;
 
     class StorageSnapshot implements ByteStorage {
@@ -22,4 +23,17 @@ interface ByteStorage {
             throw new UnsupportedOperationException("snapshot can't be modified");
         }
     }
+
+    //keeps the bytes in memory only, e.g. for a follower that doesn't need its own file
+    class MemoryStorage implements ByteStorage {
+        private volatile byte[] data = new byte[0];
+
+        @Override public byte[] read() throws IOException {
+            return data;
+        }
+
+        @Override public void write(byte[] bytes) throws IOException {
+            data = bytes;
+        }
+    }
 }
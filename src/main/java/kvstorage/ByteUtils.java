@@ -1,5 +1,6 @@
 package kvstorage;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 
@@ -10,9 +11,42 @@ final class ByteUtils {
         return Arrays.equals(b1, b2);
     }
 
+    static int compare(byte[] b1, byte[] b2) {
+        int length = Math.min(b1.length, b2.length);
+        for (int i = 0; i < length; i++) {
+            int result = (b1[i] & 0xff) - (b2[i] & 0xff);
+            if (result != 0) return result;
+        }
+        return b1.length - b2.length;
+    }
+
+    static boolean equals(byte[] key, int offset, byte[] suffix) {
+        return equals(key, offset, suffix, 0, suffix.length);
+    }
+
+    static boolean equals(byte[] key, int offset, byte[] in, int position, int length) {
+        if (key.length - offset != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (key[offset + i] != in[position + i]) return false;
+        }
+        return true;
+    }
+
+    static boolean startsWith(byte[] key, byte[] prefix) {
+        if (key.length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
     static long hash(byte[] bytes) {
-        long result = 1;
-        for (int i = 0; i < bytes.length; i++) {
+        return hash(1, bytes, 0, bytes.length);
+    }
+
+    static long hash(long seed, byte[] bytes, int offset, int length) {
+        long result = seed;
+        for (int i = offset; i < offset + length; i++) {
             byte element = bytes[i];
             result = 31 * result + element;
         }
@@ -73,6 +107,34 @@ final class ByteUtils {
         return (short) ((in[offset] << 8) | (in[offset + 1] & 0xff));
     }
 
+    static int varIntSize(int v) {
+        int size = 1;
+        while ((v & ~0x7F) != 0) {
+            v >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static int writeVarInt(byte[] out, int offset, int v) {
+        while ((v & ~0x7F) != 0) {
+            out[offset++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out[offset++] = (byte) v;
+        return offset;
+    }
+
+    static int readVarInt(byte[] in, int offset, int limit) {
+        int result = 0;
+        for (int shift = 0; shift < 32 && offset < limit; shift += 7) {
+            byte b = in[offset++];
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) return result;
+        }
+        return -1;
+    }
+
     static String decodeString(byte[] in) {
         return new String(in, UTF8);
     }
@@ -81,6 +143,23 @@ final class ByteUtils {
         return in.getBytes(UTF8);
     }
 
+    static <T> byte[] encode(Codec<T> codec, T value) {
+        byte[] out = new byte[codec.length(value)];
+        encode(codec, value, out, 0, out.length);
+        return out;
+    }
+
+    static <T> void encode(Codec<T> codec, T value, byte[] dest, int offset, int length) {
+        ByteBuffer view = ByteBuffer.wrap(dest, offset, length).slice();
+        codec.encode(value, view);
+        if (view.hasRemaining())
+            throw new IllegalStateException("codec wrote " + view.position() + " of " + length + " bytes");
+    }
+
+    static <T> T decode(Codec<T> codec, byte[] src, int offset, int length) {
+        return codec.decode(ByteBuffer.wrap(src, offset, length).slice().asReadOnlyBuffer());
+    }
+
     static void copy(byte[] src, int pos, byte[] dest) {
         System.arraycopy(src, pos, dest, 0, dest.length);
     }
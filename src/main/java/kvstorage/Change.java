@@ -0,0 +1,40 @@
+package kvstorage;
+
+//one committed change of a store; a snapshot change carries the whole store as its value
+public final class Change {
+    public enum Type {PUT, REMOVE, REMOVE_ALL, CLEAR, SNAPSHOT}
+
+    final long sequence;
+    final Type type;
+    final byte[] key;
+    final byte[] value;
+
+    public Change(long sequence, Type type, byte[] key, byte[] value) {
+        if (type == null) throw new IllegalArgumentException("null type");
+        this.sequence = sequence;
+        this.type = type;
+        this.key = key;
+        this.value = value;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    //the key for put and remove, the prefix for remove all
+    public byte[] getKey() {
+        return key;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    @Override public String toString() {
+        return "Change{" + sequence + " " + type + (key != null ? " " + ByteUtils.decodeString(key) : "") + "}";
+    }
+}
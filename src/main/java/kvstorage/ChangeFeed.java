@@ -0,0 +1,240 @@
+package kvstorage;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+//streams the changes of a store to a follower. changes are queued and written by a thread of the feed, so a slow
+//follower doesn't hold up the writes of the store; a failed stream or a full queue drops the feed and is reported
+//by getError, the follower then needs a new snapshot
+public final class ChangeFeed implements ChangeListener, Closeable, Flushable {
+    static final long DELTA_MAGIC = 0x4b5644656c746121L;
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private final DataOutputStream out;
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition progress = lock.newCondition();
+    private final ArrayDeque<Change> queue = new ArrayDeque<>();
+    private final Thread writer;
+    private boolean writing;
+    private boolean closed;
+    private volatile IOException error;
+    private IOException closeFailure;
+
+    public ChangeFeed(OutputStream out) {
+        this(out, DEFAULT_CAPACITY);
+    }
+
+    public ChangeFeed(WritableByteChannel channel) {
+        this(Channels.newOutputStream(channel));
+    }
+
+    //capacity is the number of changes that may wait for the stream
+    public ChangeFeed(OutputStream out, int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity " + capacity);
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.capacity = capacity;
+        writer = Threads.blocking("kvstorage-change-feed").newThread(this::drain);
+        writer.start();
+    }
+
+    //keys and values of puts may be reused by the caller once the store returns, so they are copied
+    @Override public void onChange(Change change) {
+        if (change.type != Change.Type.SNAPSHOT) {
+            change = new Change(change.sequence, change.type, copy(change.key), copy(change.value));
+        }
+        lock.lock();
+        try {
+            if (error != null || closed) return;
+            if (queue.size() == capacity) {
+                error = new IOException("change feed overflow, " + capacity + " changes not written");
+                queue.clear();
+                progress.signalAll();
+                return;
+            }
+            queue.add(change);
+            progress.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public IOException getError() {
+        return error;
+    }
+
+    //waits until the queued changes are written or the feed failed
+    @Override public void flush() throws IOException {
+        lock.lock();
+        try {
+            while ((!queue.isEmpty() || writing) && error == null) {
+                try {
+                    progress.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for the change feed");
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //writes the queued changes before the stream is closed
+    @Override public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            progress.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted closing the change feed");
+        }
+        if (closeFailure != null) throw closeFailure;
+    }
+
+    //writes what is queued and flushes once the queue is empty; the stream is closed on this thread, piped
+    //streams fail the reader when the thread that wrote them ends before closing
+    private void drain() {
+        List<Change> batch = new ArrayList<>();
+        while (true) {
+            lock.lock();
+            try {
+                writing = false;
+                progress.signalAll();
+                while (queue.isEmpty() && !closed) {
+                    progress.awaitUninterruptibly();
+                }
+                if (queue.isEmpty()) break;
+                batch.addAll(queue);
+                queue.clear();
+                writing = true;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                for (Change change : batch) {
+                    write(out, change);
+                }
+                out.flush();
+            } catch (IOException ex) {
+                lock.lock();
+                try {
+                    error = ex;
+                    queue.clear();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            batch.clear();
+        }
+        try {
+            out.close();
+        } catch (IOException ex) {
+            closeFailure = ex;
+        }
+    }
+
+    private static byte[] copy(byte[] bytes) {
+        return bytes != null ? bytes.clone() : null;
+    }
+
+    //record: type, sequence, key length or -1, key, value length or -1, value
+    static void write(DataOutputStream out, Change change) throws IOException {
+        out.writeByte(change.type.ordinal());
+        out.writeLong(change.sequence);
+        writeBytes(out, change.key);
+        writeBytes(out, change.value);
+    }
+
+    //returns null at the end of the feed
+    static Change read(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0) return null;
+        Change.Type[] types = Change.Type.values();
+        if (type >= types.length) throw new IOException("unknown change type " + type);
+        long sequence = in.readLong();
+        byte[] key = readBytes(in);
+        byte[] value = readBytes(in);
+        return new Change(sequence, types[type], key, value);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < -1) throw new IOException("corrupted change feed, length " + length);
+        if (length == -1) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    //delta: magic, since, sequence to export from next time, then change records up to the end of the stream
+    static DataOutputStream beginDelta(OutputStream out, long since, long upTo) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeLong(DELTA_MAGIC);
+        data.writeLong(since);
+        data.writeLong(upTo);
+        return data;
+    }
+
+    static long exportSnapshot(KVStorage storage, long upTo, OutputStream out) throws IOException {
+        DataOutputStream data = beginDelta(out, 0, upTo);
+        write(data, new Change(upTo, Change.Type.SNAPSHOT, null, storage.snapshot()));
+        data.flush();
+        return upTo;
+    }
+
+    //puts and removes between two resets are applied as one batch. a delta since 0 starts with a snapshot and
+    //applies to any store, others only to a store that applied the delta up to their since, -1 if unknown
+    static long applyDelta(KVStorage storage, InputStream in, long appliedUpTo) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readLong() != DELTA_MAGIC) throw new IOException("not a delta");
+        long since = data.readLong();
+        if (since != 0 && since != appliedUpTo)
+            throw new IOException("delta since " + since + " doesn't follow " + appliedUpTo);
+        long upTo = data.readLong();
+        List<KVStorage.KeyValue> batch = new ArrayList<>();
+        Change change;
+        while ((change = read(data)) != null) {
+            if (change.type == Change.Type.PUT || change.type == Change.Type.REMOVE) {
+                batch.add(new KVStorage.KeyValue(change.key, change.value));
+                continue;
+            }
+            if (!batch.isEmpty()) {
+                storage.put(batch.toArray(new KVStorage.KeyValue[batch.size()]));
+                batch.clear();
+            }
+            if (change.type == Change.Type.REMOVE_ALL) {
+                storage.removeAll(change.key);
+            } else if (change.type == Change.Type.CLEAR) {
+                storage.clear();
+            } else {
+                storage.restoreFrom(new ByteArrayInputStream(change.value));
+            }
+        }
+        if (!batch.isEmpty()) {
+            storage.put(batch.toArray(new KVStorage.KeyValue[batch.size()]));
+        }
+        return upTo;
+    }
+}
@@ -0,0 +1,6 @@
+package kvstorage;
+
+//called under the write lock of the store in commit order, so it must not block or write to the same store
+public interface ChangeListener {
+    void onChange(Change change);
+}
@@ -0,0 +1,13 @@
+package kvstorage;
+
+import java.nio.ByteBuffer;
+
+public interface Codec<T> {
+    int length(T value);
+
+    //dest is a view over the storage buffer region for the value, exactly length(value) bytes must be written
+    void encode(T value, ByteBuffer dest);
+
+    //source is a read-only view over the stored value, it must not be kept after decode returns
+    T decode(ByteBuffer source);
+}
@@ -0,0 +1,35 @@
+package kvstorage;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+//runs the async commits of the adapters sharing it one after another. the thread is started by the first commit
+//and stops when idle; after shutdown the queued commits still run and new ones are rejected
+final class CommitExecutor implements Executor {
+    private ThreadPoolExecutor executor;
+    private boolean shutdown;
+
+    @Override public void execute(Runnable command) {
+        executor().execute(command);
+    }
+
+    private synchronized ThreadPoolExecutor executor() {
+        if (shutdown) throw new RejectedExecutionException("commit executor is shut down");
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    Threads.blocking("kvstorage-commit"));
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    synchronized void shutdown() {
+        shutdown = true;
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+}
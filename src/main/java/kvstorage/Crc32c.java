@@ -0,0 +1,62 @@
+package kvstorage;
+
+import java.util.zip.Checksum;
+
+//crc32c (castagnoli) of the record checksums, slicing by 8 bytes; java.util.zip.CRC32C is Java 9+,
+//the multi-release jar replaces this class on Java 21 with one that delegates to it
+final class Crc32c implements Checksum {
+    private static final int POLYNOMIAL = 0x82f63b78;
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            for (int t = 1; t < 8; t++) {
+                int previous = TABLES[t - 1][i];
+                TABLES[t][i] = (previous >>> 8) ^ TABLES[0][previous & 0xff];
+            }
+        }
+    }
+
+    private int crc = 0xffffffff;
+
+    static int compute(byte[] b, int off, int len) {
+        Crc32c checksum = new Crc32c();
+        checksum.update(b, off, len);
+        return (int) checksum.getValue();
+    }
+
+    @Override public void update(int b) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xff];
+    }
+
+    @Override public void update(byte[] b, int off, int len) {
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int value = crc;
+        int end = off + len;
+        for (; off + 8 <= end; off += 8) {
+            value ^= (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+            value = t7[value & 0xff] ^ t6[(value >>> 8) & 0xff] ^ t5[(value >>> 16) & 0xff] ^ t4[value >>> 24]
+                    ^ t3[b[off + 4] & 0xff] ^ t2[b[off + 5] & 0xff] ^ t1[b[off + 6] & 0xff] ^ t0[b[off + 7] & 0xff];
+        }
+        for (; off < end; off++) {
+            value = (value >>> 8) ^ t0[(value ^ b[off]) & 0xff];
+        }
+        crc = value;
+    }
+
+    @Override public long getValue() {
+        return ~crc & 0xffffffffL;
+    }
+
+    @Override public void reset() {
+        crc = 0xffffffff;
+    }
+}
@@ -0,0 +1,188 @@
+package kvstorage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static kvstorage.ByteUtils.*;
+
+//writes alternate between two slot files, the slot with the newest valid generation wins on open. a single file
+//modified after that slot, left by ByteFileStorage or dropped in from a StorageBuilder, is read instead, and the
+//first slot write deletes it
+final class DoubleFileStorage implements ByteStorage, Closeable {
+    static final long SLOT_MAGIC = 0x4b5653536c6f7421L;
+    static final int SLOT_HEADER_LENGTH = 24;
+
+    private final File file;
+    private final File[] slotFiles;
+    private final FileChannel[] slots = new FileChannel[2];
+    private final boolean strictWrite;
+    private final StreamWrapper streamWrapper;
+    private final FramePipeline frames;
+    private final ReentrantLock lock = new ReentrantLock();
+    private long generation;
+    private int current = -1;
+    private boolean singleFile;
+
+    DoubleFileStorage(File file, boolean strictWrite, StreamWrapper streamWrapper) throws IOException {
+        this(file, strictWrite, streamWrapper, null);
+    }
+
+    DoubleFileStorage(File file, boolean strictWrite, StreamWrapper streamWrapper, FramePipeline frames)
+            throws IOException {
+        this.file = file;
+        this.frames = frames;
+        this.slotFiles = new File[]{slotFile(file, 'a'), slotFile(file, 'b')};
+        this.strictWrite = strictWrite;
+        this.streamWrapper = streamWrapper;
+        this.singleFile = file.exists();
+        try {
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = FileChannel.open(slotFiles[i].toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    static File slotFile(File file, char slot) {
+        return new File(file.getAbsoluteFile().getParentFile(), file.getName() + "." + slot);
+    }
+
+    @Override public byte[] read() throws IOException {
+        lock.lock();
+        try {
+            byte[] result = null;
+            int slotsWritten = 0;
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i].size() == 0) continue;
+                slotsWritten++;
+                if (slots[i].size() < SLOT_HEADER_LENGTH) continue;
+                ByteBuffer header = ByteBuffer.allocate(SLOT_HEADER_LENGTH);
+                readFully(slots[i], header, 0);
+                byte[] headerBytes = header.array();
+                if (readLong(headerBytes, 0) != SLOT_MAGIC) continue;
+                long slotGeneration = readLong(headerBytes, 8);
+                int length = readInt(headerBytes, 16);
+                if (length < 0 || length > slots[i].size() - SLOT_HEADER_LENGTH) continue;
+                if (current != -1 && slotGeneration <= generation) continue;
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(slots[i], payload, SLOT_HEADER_LENGTH);
+                //a torn write fails the checksum, the other slot still holds the previous generation
+                if (checksum(slotGeneration, payload.array()) != readInt(headerBytes, 20)) continue;
+                result = payload.array();
+                generation = slotGeneration;
+                current = i;
+            }
+            singleFile = file.exists();
+            boolean singleFileNewer = singleFile
+                    && (result == null || file.lastModified() > slotFiles[current].lastModified());
+            if (!singleFileNewer) {
+                if (result != null) return unwrap(result);
+                //only the older slot is ever overwritten, so a single torn slot means the first write was lost
+                if (slotsWritten == slots.length) throw new IOException("no valid slot for " + file);
+            }
+            //the next write continues after the newest generation, so the slots still order right
+            return new ByteFileStorage(file, strictWrite, streamWrapper, frames).readFile();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override public void write(byte[] bytes) throws IOException {
+        lock.lock();
+        try {
+            byte[] payload = wrap(bytes);
+            int next = current == -1 ? 0 : 1 - current;
+            long nextGeneration = generation + 1;
+            byte[] header = new byte[SLOT_HEADER_LENGTH];
+            writeLong(header, 0, SLOT_MAGIC);
+            writeLong(header, 8, nextGeneration);
+            writeInt(header, 16, payload.length);
+            writeInt(header, 20, checksum(nextGeneration, payload));
+            FileChannel channel = slots[next];
+            long required = SLOT_HEADER_LENGTH + (long) payload.length;
+            if (channel.size() < required) {
+                //grow ahead of the payload, so most writes don't change the file length
+                channel.write(ByteBuffer.allocate(1), required + required / 2 - 1);
+            }
+            writeFully(channel, ByteBuffer.wrap(header), 0);
+            writeFully(channel, ByteBuffer.wrap(payload), SLOT_HEADER_LENGTH);
+            if (singleFile) {
+                channel.force(false);
+                if (file.exists() && !file.delete()) throw new IOException("can't delete " + file);
+                singleFile = false;
+            } else if (strictWrite) {
+                channel.force(false);
+            }
+            generation = nextGeneration;
+            current = next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override public void close() throws IOException {
+        lock.lock();
+        try {
+            for (FileChannel slot : slots) {
+                if (slot != null) {
+                    slot.close();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private byte[] wrap(byte[] bytes) throws IOException {
+        if (streamWrapper == null) return bytes;
+        if (frames != null) return frames.write(bytes);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+        try (OutputStream stream = streamWrapper.output(out)) {
+            stream.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] unwrap(byte[] payload) throws IOException {
+        if (streamWrapper == null) return payload;
+        if (frames != null && FramePipeline.isFramed(payload)) return frames.read(payload);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length);
+        try (InputStream stream = streamWrapper.input(new ByteArrayInputStream(payload))) {
+            byte[] chunk = new byte[8192];
+            int count;
+            while ((count = stream.read(chunk)) != -1) {
+                out.write(chunk, 0, count);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static int checksum(long generation, byte[] payload) {
+        byte[] fields = new byte[12];
+        writeLong(fields, 0, generation);
+        writeInt(fields, 8, payload.length);
+        CRC32 crc = new CRC32();
+        crc.update(fields);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dest, long position) throws IOException {
+        while (dest.hasRemaining()) {
+            if (channel.read(dest, position + dest.position()) < 0) throw new EOFException();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer source, long position) throws IOException {
+        while (source.hasRemaining()) {
+            channel.write(source, position + source.position());
+        }
+    }
+}
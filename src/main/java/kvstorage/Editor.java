@@ -1,6 +1,6 @@
 package kvstorage;
 
-public abstract class Editor<T extends Editor> {
+public abstract class Editor<T extends Editor<T>> {
     public final T put(String key, boolean value) {
         byte[] out = new byte[1];
         ByteUtils.writeBoolean(out, 0, value);
@@ -33,14 +33,66 @@ public abstract class Editor<T extends Editor> {
         return put(encodeKey(key), value);
     }
 
+    public final <V> T putObject(String key, V value, Codec<V> codec) {
+        return putObject(encodeKey(key), value, codec);
+    }
+
+    public final <V> T putObject(Key key, V value, Codec<V> codec) {
+        return putObject(key.bytes, value, codec);
+    }
+
+    public <V> T putObject(byte[] key, V value, Codec<V> codec) {
+        return put(key, value != null ? ByteUtils.encode(codec, value) : null);
+    }
+
     public final T remove(String key) {
         return remove(encodeKey(key));
     }
 
+    public final T put(Key key, boolean value) {
+        byte[] out = new byte[1];
+        ByteUtils.writeBoolean(out, 0, value);
+        return put(key, out);
+    }
+
+    public final T putInt(Key key, int value) {
+        byte[] out = new byte[4];
+        ByteUtils.writeInt(out, 0, value);
+        return put(key, out);
+    }
+
+    public final T putLong(Key key, long value) {
+        byte[] out = new byte[8];
+        ByteUtils.writeLong(out, 0, value);
+        return put(key, out);
+    }
+
+    public final T putDouble(Key key, double value) {
+        byte[] out = new byte[8];
+        ByteUtils.writeDouble(out, 0, value);
+        return put(key, out);
+    }
+
+    public final T put(Key key, String value) {
+        return put(key, encodeValue(value));
+    }
+
+    public T put(Key key, byte[] value) {
+        return put(key.bytes, value);
+    }
+
+    public final T remove(Key key) {
+        return remove(key.bytes);
+    }
+
     public abstract T put(byte[] key, byte[] value);
 
     public abstract T remove(byte[] key);
 
+    public final Key key(String key) {
+        return Key.of(encodeKey(key));
+    }
+
     protected byte[] encodeKey(String key) {
         return ByteUtils.encodeString(key);
     }
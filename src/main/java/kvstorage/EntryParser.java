@@ -0,0 +1,65 @@
+package kvstorage;
+
+import java.io.IOException;
+import java.util.OptionalInt;
+import java.util.stream.IntStream;
+
+final class EntryParser {
+    private static final int PARALLEL_VERIFY_BYTES = 1 << 20;
+
+    final StorageFormat format;
+    final KeyPrefixes prefixes;
+    final EntryTable entries;
+    private int offset;
+
+    EntryParser(StorageFormat format, EntryTable entries) {
+        this.format = format;
+        this.prefixes = format.keyPrefixes() ? new KeyPrefixes(format.keyDelimiter, format.prefixDepth) : null;
+        this.entries = entries;
+        this.offset = format.headerLength();
+    }
+
+    int parse(byte[] buffer, int limit, boolean complete) throws IOException {
+        ByteEntry entry;
+        while (offset < limit) {
+            entry = format.readEntry(buffer, offset, limit, prefixes);
+            if (entry == null || entry.nextPosition() > limit) {
+                if (!complete) return offset;
+                throw new IOException("corrupted buffer " + offset + " " + limit + " " + entries.size());
+            }
+            if (entry.keyLength <= 0)
+                throw new IOException("corrupted buffer " + offset + " " + limit + " keyLength " + entry.keyLength);
+            if (entry.valueLength < 0)
+                throw new IOException("corrupted buffer " + offset + " " + limit + " valueLength " + entry.valueLength);
+            if (entry.blob && entry.valueLength != BlobLog.POINTER_LENGTH)
+                throw new IOException("corrupted buffer " + offset + " " + limit + " blob " + entry.valueLength);
+            if (entry.isPrefixDefinition()) {
+                if (!format.checksumMatches(buffer, entry.position, entry.keyPosition(), entry.nextPosition()))
+                    throw new IOException("checksum mismatch " + offset + " prefix " + entry.prefix);
+                if (-entry.prefix != prefixes.size() + 1)
+                    throw new IOException("corrupted buffer " + offset + " " + limit + " prefix " + entry.prefix);
+                prefixes.add(entry.readKey(buffer), entry.hash);
+            } else {
+                if (entry.prefix != 0 && entry.prefix > prefixes.size())
+                    throw new IOException("corrupted buffer " + offset + " " + limit + " prefix " + entry.prefix);
+                entries.add(entry);
+            }
+            offset = entry.nextPosition();
+        }
+        return offset;
+    }
+
+    //checks the records of a parsed buffer, larger buffers are checked in parallel chunks of the entries;
+    //prefix definitions are checked by parse
+    void verify(byte[] buffer) throws IOException {
+        if (!format.checksums()) return;
+        IntStream indices = IntStream.range(0, entries.size());
+        if (buffer.length >= PARALLEL_VERIFY_BYTES) {
+            indices = indices.parallel();
+        }
+        OptionalInt corrupted = indices.filter(i -> !format.checksumMatches(buffer, entries.position(i),
+                entries.keyPosition(i), entries.position(i) + entries.entryLength(i))).findFirst();
+        if (corrupted.isPresent())
+            throw new IOException("checksum mismatch " + entries.position(corrupted.getAsInt()));
+    }
+}
@@ -0,0 +1,179 @@
+package kvstorage;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+//entry headers kept in parallel primitive arrays, ByteEntry views are only created for entries that are used
+final class EntryTable implements Iterable<ByteEntry> {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] hashes;
+    private int[] positions;
+    private int[] prefixes;
+    private int[] headerLengths;
+    private int[] keyLengths;
+    private int[] valueLengths;
+    private boolean[] blobs;
+    private int size;
+
+    EntryTable() {
+        this(INITIAL_CAPACITY);
+    }
+
+    EntryTable(int capacity) {
+        capacity = Math.max(capacity, 1);
+        hashes = new long[capacity];
+        positions = new int[capacity];
+        prefixes = new int[capacity];
+        headerLengths = new int[capacity];
+        keyLengths = new int[capacity];
+        valueLengths = new int[capacity];
+        blobs = new boolean[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    long hash(int index) {
+        return hashes[index];
+    }
+
+    int prefix(int index) {
+        return prefixes[index];
+    }
+
+    int position(int index) {
+        return positions[index];
+    }
+
+    int entryLength(int index) {
+        return headerLengths[index] + keyLengths[index] + valueLengths[index];
+    }
+
+    int keyPosition(int index) {
+        return positions[index] + headerLengths[index];
+    }
+
+    int keyLength(int index) {
+        return keyLengths[index];
+    }
+
+    boolean blob(int index) {
+        return blobs[index];
+    }
+
+    ByteEntry get(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException(index + " of " + size);
+        ByteEntry entry = new ByteEntry(positions[index], hashes[index], prefixes[index], headerLengths[index],
+                keyLengths[index], valueLengths[index], blobs[index]);
+        entry.setIndex(index);
+        return entry;
+    }
+
+    void add(ByteEntry entry) {
+        ensureCapacity(size + 1);
+        put(size++, entry);
+    }
+
+    void set(int index, ByteEntry entry) {
+        if (index >= size) throw new IndexOutOfBoundsException(index + " of " + size);
+        put(index, entry);
+    }
+
+    void remove(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException(index + " of " + size);
+        int tail = size - index - 1;
+        if (tail > 0) {
+            System.arraycopy(hashes, index + 1, hashes, index, tail);
+            System.arraycopy(positions, index + 1, positions, index, tail);
+            System.arraycopy(prefixes, index + 1, prefixes, index, tail);
+            System.arraycopy(headerLengths, index + 1, headerLengths, index, tail);
+            System.arraycopy(keyLengths, index + 1, keyLengths, index, tail);
+            System.arraycopy(valueLengths, index + 1, valueLengths, index, tail);
+            System.arraycopy(blobs, index + 1, blobs, index, tail);
+        }
+        size--;
+    }
+
+    //moves the positions of the entries from fromIndex on, the other fields don't change
+    void shift(int fromIndex, int delta) {
+        for (int i = fromIndex; i < size; i++) {
+            positions[i] += delta;
+        }
+    }
+
+    //appends the entries [fromIndex, toIndex) of source with their positions moved by delta
+    void addRange(EntryTable source, int fromIndex, int toIndex, int delta) {
+        int count = toIndex - fromIndex;
+        if (count <= 0) return;
+        ensureCapacity(size + count);
+        System.arraycopy(source.hashes, fromIndex, hashes, size, count);
+        System.arraycopy(source.positions, fromIndex, positions, size, count);
+        System.arraycopy(source.prefixes, fromIndex, prefixes, size, count);
+        System.arraycopy(source.headerLengths, fromIndex, headerLengths, size, count);
+        System.arraycopy(source.keyLengths, fromIndex, keyLengths, size, count);
+        System.arraycopy(source.valueLengths, fromIndex, valueLengths, size, count);
+        System.arraycopy(source.blobs, fromIndex, blobs, size, count);
+        if (delta != 0) {
+            for (int i = size; i < size + count; i++) {
+                positions[i] += delta;
+            }
+        }
+        size += count;
+    }
+
+    //takes over the arrays of the other table, which must not be used afterwards
+    void replaceWith(EntryTable other) {
+        hashes = other.hashes;
+        positions = other.positions;
+        prefixes = other.prefixes;
+        headerLengths = other.headerLengths;
+        keyLengths = other.keyLengths;
+        valueLengths = other.valueLengths;
+        blobs = other.blobs;
+        size = other.size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    @Override public Iterator<ByteEntry> iterator() {
+        return new Iterator<ByteEntry>() {
+            private int next;
+
+            @Override public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override public ByteEntry next() {
+                if (next >= size) throw new NoSuchElementException();
+                return get(next++);
+            }
+        };
+    }
+
+    private void put(int index, ByteEntry entry) {
+        hashes[index] = entry.hash;
+        positions[index] = entry.position;
+        prefixes[index] = entry.prefix;
+        headerLengths[index] = entry.headerLength;
+        keyLengths[index] = entry.keyLength;
+        valueLengths[index] = entry.valueLength;
+        blobs[index] = entry.blob;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= hashes.length) return;
+        int newCapacity = Math.max(capacity, hashes.length + (hashes.length >> 1));
+        hashes = Arrays.copyOf(hashes, newCapacity);
+        positions = Arrays.copyOf(positions, newCapacity);
+        prefixes = Arrays.copyOf(prefixes, newCapacity);
+        headerLengths = Arrays.copyOf(headerLengths, newCapacity);
+        keyLengths = Arrays.copyOf(keyLengths, newCapacity);
+        valueLengths = Arrays.copyOf(valueLengths, newCapacity);
+        blobs = Arrays.copyOf(blobs, newCapacity);
+    }
+}
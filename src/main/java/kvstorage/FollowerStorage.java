@@ -0,0 +1,203 @@
+package kvstorage;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BinaryOperator;
+import java.util.function.UnaryOperator;
+
+//read replica that applies the changes of a ChangeFeed, writes only come from the feed
+public final class FollowerStorage implements KVStorage {
+    private final DataInputStream feed;
+    private final KVStorage storage;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long sequence = -1;
+
+    public FollowerStorage(InputStream feed) throws IOException {
+        this(feed, new KVByteStorage(new ByteStorage.MemoryStorage()));
+    }
+
+    public FollowerStorage(ReadableByteChannel feed) throws IOException {
+        this(Channels.newInputStream(feed));
+    }
+
+    //the storage is overwritten by the first snapshot of the feed
+    public FollowerStorage(InputStream feed, KVStorage storage) {
+        this.feed = new DataInputStream(new BufferedInputStream(feed));
+        this.storage = storage;
+    }
+
+    //sequence number of the last applied change, -1 before the first one
+    public long getSequence() {
+        return sequence;
+    }
+
+    //blocks until the next change is applied, returns false at the end of the feed
+    public boolean applyNext() throws IOException {
+        lock.lock();
+        try {
+            Change change = ChangeFeed.read(feed);
+            if (change == null) return false;
+            apply(change);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void applyAll() throws IOException {
+        while (applyNext()) {
+        }
+    }
+
+    //applies the feed on a daemon thread until it ends or fails
+    public Thread start(ExceptionHandler exceptionHandler) {
+        Thread thread = Threads.blocking("kvstorage-follower").newThread(() -> {
+            try {
+                applyAll();
+            } catch (Exception ex) {
+                exceptionHandler.handleException(ex);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void apply(Change change) throws IOException {
+        long last = sequence;
+        if (change.type != Change.Type.SNAPSHOT && last >= 0 && change.sequence != last + 1)
+            throw new IOException("change " + change.sequence + " doesn't follow " + last);
+        switch (change.type) {
+            case PUT:
+                storage.put(change.key, change.value);
+                break;
+            case REMOVE:
+                storage.remove(change.key);
+                break;
+            case REMOVE_ALL:
+                storage.removeAll(change.key);
+                break;
+            case CLEAR:
+                storage.clear();
+                break;
+            case SNAPSHOT:
+                storage.restoreFrom(new ByteArrayInputStream(change.value));
+                break;
+        }
+        sequence = change.sequence;
+    }
+
+    @Override public byte[] get(byte[] key) throws IOException {
+        return storage.get(key);
+    }
+
+    @Override public byte[] get(Key key) throws IOException {
+        return storage.get(key);
+    }
+
+    @Override public <T> T getObject(byte[] key, Codec<T> codec) throws IOException {
+        return storage.getObject(key, codec);
+    }
+
+    @Override public void getAll(byte[][] keys, byte[][] values) throws IOException {
+        storage.getAll(keys, values);
+    }
+
+    @Override public InputStream openValue(byte[] key) throws IOException {
+        return storage.openValue(key);
+    }
+
+    @Override public byte[] snapshot() throws IOException {
+        return storage.snapshot();
+    }
+
+    @Override public void snapshotTo(OutputStream out) throws IOException {
+        storage.snapshotTo(out);
+    }
+
+    @Override public void snapshotUnder(byte[] prefix, OutputStream out) throws IOException {
+        storage.snapshotUnder(prefix, out);
+    }
+
+    @Override public long exportSince(long since, OutputStream out) throws IOException {
+        return storage.exportSince(since, out);
+    }
+
+    //followers of this follower get the changes as they are applied
+    @Override public void addChangeListener(ChangeListener listener, boolean snapshotFirst) throws IOException {
+        storage.addChangeListener(listener, snapshotFirst);
+    }
+
+    @Override public void removeChangeListener(ChangeListener listener) {
+        storage.removeChangeListener(listener);
+    }
+
+    @Override public void restoreFrom(InputStream in) {
+        throw readOnly();
+    }
+
+    @Override public long applyDelta(InputStream in) {
+        throw readOnly();
+    }
+
+    @Override public void put(byte[] key, byte[] value) {
+        throw readOnly();
+    }
+
+    @Override public void put(byte[] key, InputStream value, int length) {
+        throw readOnly();
+    }
+
+    @Override public void put(KeyValue... keyValues) {
+        throw readOnly();
+    }
+
+    @Override public boolean remove(byte[] key) {
+        throw readOnly();
+    }
+
+    @Override public boolean removeAll(byte[] prefix) {
+        throw readOnly();
+    }
+
+    @Override public byte[] putIfAbsent(byte[] key, byte[] value) {
+        throw readOnly();
+    }
+
+    @Override public boolean compareAndSet(byte[] key, byte[] expected, byte[] newValue) {
+        throw readOnly();
+    }
+
+    @Override public byte[] computeIfPresent(byte[] key, UnaryOperator<byte[]> function) {
+        throw readOnly();
+    }
+
+    @Override public byte[] merge(byte[] key, byte[] value, BinaryOperator<byte[]> function) {
+        throw readOnly();
+    }
+
+    @Override public int incrementAndGet(byte[] key, int delta) {
+        throw readOnly();
+    }
+
+    @Override public long incrementAndGet(byte[] key, long delta) {
+        throw readOnly();
+    }
+
+    @Override public void clear() {
+        throw readOnly();
+    }
+
+    @Override public void close() throws IOException {
+        try {
+            feed.close();
+        } finally {
+            storage.close();
+        }
+    }
+
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("follower is read-only");
+    }
+}
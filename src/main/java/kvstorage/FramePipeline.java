@@ -0,0 +1,222 @@
+package kvstorage;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static kvstorage.ByteUtils.*;
+
+//applies the stream wrapper to fixed-size frames instead of the whole file, so frames are transformed in parallel
+//and frames whose plain bytes didn't change since the last write or read are reused as they are.
+//only the encoded frames and a 64-bit checksum of the plain bytes of each are kept between writes, not the plain
+//bytes: callers reuse the arrays they pass to write and get from read
+final class FramePipeline {
+    static final long MAGIC = 0x4b5646726d657321L;
+    static final int HEADER_LENGTH = 12;
+    static final int FRAME_HEADER_LENGTH = 12;
+
+    private final StreamWrapper streamWrapper;
+    private final int frameSize;
+    private final ForkJoinPool pool;
+    private final ReentrantLock lock = new ReentrantLock();
+    private long[] previousChecksums;
+    private byte[][] previousFrames;
+
+    FramePipeline(StreamWrapper streamWrapper, int frameSize, ForkJoinPool pool) {
+        if (frameSize <= 0) throw new IllegalArgumentException("frame size " + frameSize);
+        this.streamWrapper = streamWrapper;
+        this.frameSize = frameSize;
+        this.pool = pool;
+    }
+
+    static boolean isFramed(byte[] data) {
+        return data.length >= HEADER_LENGTH && readLong(data, 0) == MAGIC;
+    }
+
+    void write(byte[] plain, OutputStream out) throws IOException {
+        lock.lock();
+        try {
+            int count = (plain.length + frameSize - 1) / frameSize;
+            byte[][] frames = new byte[count][];
+            long[] checksums = new long[count];
+            List<Integer> changed = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                int offset = i * frameSize;
+                checksums[i] = frameChecksum(plain, offset, Math.min(frameSize, plain.length - offset));
+                if (unchanged(plain, i, checksums[i])) {
+                    frames[i] = previousFrames[i];
+                } else {
+                    changed.add(i);
+                }
+            }
+            List<FrameTask> tasks = new ArrayList<>(changed.size());
+            for (int i : changed) {
+                int offset = i * frameSize;
+                int length = Math.min(frameSize, plain.length - offset);
+                tasks.add(() -> encode(plain, offset, length));
+            }
+            List<byte[]> encoded = invokeAll(tasks);
+            for (int i = 0; i < changed.size(); i++) {
+                frames[changed.get(i)] = encoded.get(i);
+            }
+            byte[] header = new byte[HEADER_LENGTH];
+            writeLong(header, 0, MAGIC);
+            writeInt(header, 8, frameSize);
+            out.write(header);
+            for (byte[] frame : frames) {
+                out.write(frame);
+            }
+            previousChecksums = checksums;
+            previousFrames = frames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    byte[] write(byte[] plain) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(plain.length / 2 + HEADER_LENGTH);
+        write(plain, out);
+        return out.toByteArray();
+    }
+
+    byte[] read(byte[] data) throws IOException {
+        lock.lock();
+        try {
+            if (!isFramed(data)) throw new IOException("not a framed file");
+            int storedFrameSize = readInt(data, 8);
+            List<int[]> frames = new ArrayList<>();
+            long total = 0;
+            int offset = HEADER_LENGTH;
+            while (offset < data.length) {
+                if (data.length - offset < FRAME_HEADER_LENGTH)
+                    throw new IOException("corrupted frame " + frames.size() + " at " + offset);
+                int plainLength = readInt(data, offset);
+                int encodedLength = readInt(data, offset + 4);
+                if (plainLength < 0 || plainLength > storedFrameSize || encodedLength < 0
+                        || encodedLength > data.length - offset - FRAME_HEADER_LENGTH)
+                    throw new IOException("corrupted frame " + frames.size() + " at " + offset);
+                frames.add(new int[]{offset, plainLength, (int) total});
+                total += plainLength;
+                offset += FRAME_HEADER_LENGTH + encodedLength;
+            }
+            if (total > Integer.MAX_VALUE) throw new IOException("framed file too large " + total);
+            byte[] plain = new byte[(int) total];
+            List<FrameTask> tasks = new ArrayList<>(frames.size());
+            for (int i = 0; i < frames.size(); i++) {
+                int index = i;
+                int[] frame = frames.get(i);
+                tasks.add(() -> decode(data, index, frame[0], plain, frame[2], frame[1]));
+            }
+            List<byte[]> encoded = invokeAll(tasks);
+            //reused only by a pipeline with the same frame size
+            if (storedFrameSize == frameSize) {
+                previousChecksums = new long[frames.size()];
+                for (int i = 0; i < frames.size(); i++) {
+                    previousChecksums[i] = frameChecksum(plain, frames.get(i)[2], frames.get(i)[1]);
+                }
+                previousFrames = encoded.toArray(new byte[encoded.size()][]);
+            } else {
+                previousChecksums = null;
+                previousFrames = null;
+            }
+            return plain;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //the encoded frame starts with its plain length
+    private boolean unchanged(byte[] plain, int index, long checksum) {
+        if (previousFrames == null || index >= previousFrames.length) return false;
+        int length = Math.min(frameSize, plain.length - index * frameSize);
+        return readInt(previousFrames[index], 0) == length && previousChecksums[index] == checksum;
+    }
+
+    //crc32 and crc32c of the plain bytes, two polynomials so that a changed frame is missed with a 2^-64 chance
+    private static long frameChecksum(byte[] plain, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(plain, offset, length);
+        return crc.getValue() << 32 | Crc32c.compute(plain, offset, length) & 0xffffffffL;
+    }
+
+    //frame: plain length, encoded length, crc32 of the encoded bytes, encoded bytes
+    private byte[] encode(byte[] plain, int offset, int length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + FRAME_HEADER_LENGTH);
+        out.write(new byte[FRAME_HEADER_LENGTH]);
+        try (OutputStream stream = streamWrapper.output(out)) {
+            stream.write(plain, offset, length);
+        }
+        byte[] frame = out.toByteArray();
+        int encodedLength = frame.length - FRAME_HEADER_LENGTH;
+        writeInt(frame, 0, length);
+        writeInt(frame, 4, encodedLength);
+        writeInt(frame, 8, checksum(frame, FRAME_HEADER_LENGTH, encodedLength));
+        return frame;
+    }
+
+    //returns the frame bytes for reuse by the next write
+    private byte[] decode(byte[] data, int index, int offset, byte[] plain, int plainOffset, int plainLength)
+            throws IOException {
+        int encodedLength = readInt(data, offset + 4);
+        if (checksum(data, offset + FRAME_HEADER_LENGTH, encodedLength) != readInt(data, offset + 8))
+            throw new IOException("corrupted frame " + index + " at " + offset + ": checksum mismatch");
+        InputStream in = new ByteArrayInputStream(data, offset + FRAME_HEADER_LENGTH, encodedLength);
+        try (InputStream stream = streamWrapper.input(in)) {
+            int read = 0;
+            while (read < plainLength) {
+                int count = stream.read(plain, plainOffset + read, plainLength - read);
+                if (count < 0) throw new EOFException("frame " + index + " ended at " + read + " of " + plainLength);
+                read += count;
+            }
+        }
+        return subArray(data, offset, FRAME_HEADER_LENGTH + encodedLength);
+    }
+
+    private List<byte[]> invokeAll(List<FrameTask> tasks) throws IOException {
+        List<byte[]> results = new ArrayList<>(tasks.size());
+        if (tasks.size() == 1) {
+            results.add(tasks.get(0).run());
+            return results;
+        }
+        List<Callable<byte[]>> callables = new ArrayList<>(tasks.size());
+        for (FrameTask task : tasks) {
+            callables.add(() -> {
+                try {
+                    return task.run();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        }
+        try {
+            for (Future<byte[]> future : pool.invokeAll(callables)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("frame transform interrupted");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+        return results;
+    }
+
+    private static int checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private interface FrameTask {
+        byte[] run() throws IOException;
+    }
+}
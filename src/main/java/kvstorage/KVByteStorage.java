@@ -1,184 +1,1571 @@
 package kvstorage;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BinaryOperator;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 import static kvstorage.ByteUtils.*;
 
 public final class KVByteStorage implements KVStorage {
-    private final List<ByteEntry> entries = new ArrayList<>();
+    private static final int RESTORE_CHUNK = 64 * 1024;
+    private static final int REMOVAL_LOG_LIMIT = 4096;
+    private static final int BUFFER_SPARES = 2;
+
+    private final EntryTable entries = new EntryTable();
 
     private final ByteStorage byteStorage;
+    //a lock rather than a monitor, so writers blocked on file I/O don't pin virtual threads to their carriers
+    private final ReentrantLock writeLock = new ReentrantLock();
+    //guards buffer, entries, format and prefixes: readers share it, a mutation holds it alone while it builds the
+    //new buffer. no monitor either, readers waiting for a mutation park instead of pinning their carriers
+    private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private final BlobLog blobLog;
+    //set when a blob entry is replaced, removed or the entries are read again, the blob files are only collected
+    //after such a change. guarded by writeLock, starts set so files left dead by an earlier run are dropped
+    private boolean blobsDropped = true;
+    private final Map<ByteBuffer, Counter> counters = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile long counterFlushMillis;
+    private volatile ExceptionHandler flushFailures;
+    private volatile ScheduledFuture<?> scheduledFlush;
+    private volatile boolean closed;
+    //changes whenever entry indices may shift, Key slot hints from other versions are ignored
+    private long layoutVersion;
+    //numbers the committed changes, guarded by writeLock
+    private long sequence;
+    //sequence written to the records and the header by the running change, the last one of a batch
+    private long stamp;
+    //the sequence of the source the last delta was applied up to and this store's sequence after it,
+    //in memory only, so a reopened store takes a full delta first
+    private long appliedUpTo = -1;
+    private long appliedAt = -1;
+    //removals after removalsFrom, so an export doesn't need the full key set to carry them
+    private final ArrayDeque<Change> removals = new ArrayDeque<>();
+    private long removalsFrom;
+    //earlier buffers, reused by mutations of the same length once no reader holds them, guarded by writeLock
+    private final BufferPool pool = new BufferPool(BUFFER_SPARES);
+    //buffers read outside stateLock, counted per array; arrays hash by identity
+    private final Map<byte[], Integer> leases = new ConcurrentHashMap<>();
+    private StorageFormat format;
+    private KeyPrefixes prefixes;
     private byte[] buffer;
 
     public KVByteStorage(ByteStorage byteStorage) throws IOException {
+        this(byteStorage, null);
+    }
+
+    public KVByteStorage(ByteStorage byteStorage, StorageFormat format) throws IOException {
+        this(byteStorage, format, null);
+    }
+
+    KVByteStorage(ByteStorage byteStorage, StorageFormat format, BlobLog blobLog) throws IOException {
         this.byteStorage = byteStorage;
+        this.blobLog = blobLog;
         byte[] buffer = byteStorage.read();
-        readEntries(buffer);
+        readEntries(buffer).verify(buffer);
+        if (blobLog != null) {
+            format = (format != null ? format : this.format).withBlobValues();
+        }
+        if (format != null && !format.equals(this.format)) {
+            buffer = convert(buffer, format);
+        }
         this.buffer = buffer;
+        if (this.format.sequences()) {
+            sequence = readLong(buffer, StorageFormat.LAST_SEQUENCE);
+            removalsFrom = sequence;
+        }
     }
 
-    private void readEntries(byte[] buffer) throws IOException {
+    private EntryParser readEntries(byte[] buffer) throws IOException {
         entries.clear();
-        int size = buffer.length;
-        int offset = 0;
-        ByteEntry entry;
-        while (offset < size) {
-            int remainingSize = size - offset;
-            if (remainingSize < ByteEntry.LENGTH) {
-                throw new IOException("corrupted buffer " + offset + " " + size + " " + entries.size());
+        blobsDropped = true;
+        layoutVersion++;
+        EntryParser parser = new EntryParser(StorageFormat.read(buffer), entries);
+        parser.parse(buffer, buffer.length, true);
+        format = parser.format;
+        prefixes = parser.prefixes;
+        return parser;
+    }
+
+    private byte[] convert(byte[] buffer, StorageFormat target) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(buffer.length);
+        RecordWriter writer = new RecordWriter(target, out, fileHeader(buffer, format, target));
+        for (ByteEntry entry : entries) {
+            long entrySequence = format.readSequence(buffer, entry.keyPosition());
+            if (entry.blob) {
+                writer.write(fullKey(entry, buffer), blobs().read(entry.readValue(buffer)), entrySequence);
+            } else {
+                writer.write(fullKey(entry, buffer), buffer, entry.valuePosition(), entry.valueLength, entrySequence);
+            }
+        }
+        byte[] result = out.toByteArray();
+        readEntries(result);
+        return result;
+    }
+
+    //keeps the header sequences when both formats have them
+    private static byte[] fileHeader(byte[] buffer, StorageFormat source, StorageFormat target) {
+        byte[] header = target.newBuffer();
+        if (source.sequences() && target.sequences()) {
+            copy(buffer, StorageFormat.LAST_SEQUENCE, header, StorageFormat.LAST_SEQUENCE,
+                    target.headerLength() - StorageFormat.LAST_SEQUENCE);
+        }
+        return header;
+    }
+
+    private byte[] fullKey(ByteEntry entry, byte[] buffer) {
+        if (entry.prefix == 0) return entry.readKey(buffer);
+        byte[] prefix = prefixes.get(entry.prefix);
+        byte[] key = new byte[prefix.length + entry.keyLength];
+        fill(prefix, key, 0);
+        copy(buffer, entry.keyPosition(), key, prefix.length, entry.keyLength);
+        return key;
+    }
+
+    //copies of the entries under the prefix with the prefix cut off; namespaces read them from a snapshot,
+    //which has its blob values inlined
+    KeyValue[] entriesUnder(byte[] prefix) throws IOException {
+        flushCounters();
+        stateLock.readLock().lock();
+        try {
+            List<KeyValue> result = new ArrayList<>();
+            for (ByteEntry entry : entries) {
+                byte[] key = fullKey(entry, buffer);
+                if (key.length <= prefix.length || !startsWith(key, prefix)) continue;
+                if (entry.blob) throw new IOException("blob value in a snapshot");
+                result.add(new KeyValue(subArray(key, prefix.length, key.length - prefix.length),
+                        entry.readValue(buffer)));
+            }
+            return result.toArray(new KeyValue[result.size()]);
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    //the entries under the prefix with the prefix cut off as a store of the same format, streamed from the leased
+    //buffer with the blob values inlined
+    @Override public void snapshotUnder(byte[] prefix, OutputStream out) throws IOException {
+        flushCounters();
+        byte[] current;
+        StorageFormat currentFormat;
+        List<ByteEntry> matched = new ArrayList<>();
+        List<byte[]> keys = new ArrayList<>();
+        boolean pinned = false;
+        stateLock.readLock().lock();
+        try {
+            current = lease();
+            currentFormat = format;
+            for (ByteEntry entry : entries) {
+                byte[] key = fullKey(entry, current);
+                if (key.length <= prefix.length || !startsWith(key, prefix)) continue;
+                matched.add(entry);
+                keys.add(subArray(key, prefix.length, key.length - prefix.length));
+                pinned |= entry.blob && blobLog != null;
+            }
+            if (pinned) {
+                blobLog.pin();
             }
-            entries.add(entry = ByteEntry.read(offset, buffer));
-            if (entry.keyLength <= 0)
-                throw new IOException("corrupted buffer " + offset + " " + size + " keyLength " + entry.keyLength);
-            if (entry.valueLength < 0)
-                throw new IOException("corrupted buffer " + offset + " " + size + " valueLength " + entry.valueLength);
-            offset = entry.nextPosition();
+        } finally {
+            stateLock.readLock().unlock();
         }
+        try {
+            RecordWriter writer = new RecordWriter(currentFormat, out);
+            for (int i = 0; i < matched.size(); i++) {
+                ByteEntry entry = matched.get(i);
+                if (!entry.blob) {
+                    writer.write(keys.get(i), current, entry.valuePosition(), entry.valueLength);
+                } else if (blobLog != null) {
+                    writer.write(keys.get(i), blobLog.read(entry.readValue(current)));
+                } else {
+                    throw new IOException("blob value in a snapshot");
+                }
+            }
+        } finally {
+            if (pinned) {
+                blobLog.unpin();
+            }
+            release(current);
+        }
+    }
+
+    //counters accumulate in memory, the store only sees them when they are flushed
+    void setCounterFlushInterval(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("flush interval " + millis);
+        counterFlushMillis = millis;
     }
 
-    @Override public byte[] get(byte[] key) {
+    //gets the failures of scheduled counter flushes, which have no caller to throw to
+    void setFlushFailureHandler(ExceptionHandler handler) {
+        flushFailures = handler;
+    }
+
+    @Override public byte[] get(byte[] key) throws IOException {
+        return get(key, hash(key), null);
+    }
+
+    @Override public byte[] get(Key key) throws IOException {
+        return get(key.bytes, key.hash, key);
+    }
+
+    private byte[] get(byte[] key, long hash, Key handle) throws IOException {
+        byte[] counter = counterValue(key);
+        if (counter != null) return counter;
+        byte[] pointer;
+        stateLock.readLock().lock();
+        try {
+            ByteEntry entry = handle != null ? find(handle, buffer) : find(key, hash, buffer);
+            if (entry == null) return null;
+            if (!entry.blob) return entry.readValue(buffer);
+            pointer = entry.readValue(buffer);
+            blobs().pin();
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        try {
+            return blobLog.read(pointer);
+        } finally {
+            blobLog.unpin();
+        }
+    }
+
+    //a leased buffer isn't modified, so the value is decoded in place outside stateLock
+    @Override public <T> T getObject(byte[] key, Codec<T> codec) throws IOException {
+        byte[] counter = counterValue(key);
+        if (counter != null) return decode(codec, counter, 0, counter.length);
+        byte[] source;
+        int offset;
+        int length;
+        stateLock.readLock().lock();
+        try {
+            ByteEntry entry = find(key, hash(key), buffer);
+            if (entry == null) return null;
+            source = entry.blob ? null : lease();
+            offset = entry.valuePosition();
+            length = entry.valueLength;
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        if (source != null) {
+            try {
+                return decode(codec, source, offset, length);
+            } finally {
+                release(source);
+            }
+        }
+        byte[] value = get(key);
+        return value != null ? decode(codec, value, 0, value.length) : null;
+    }
+
+    @Override public void getAll(byte[][] keys, byte[][] values) throws IOException {
+        if (keys.length != values.length)
+            throw new IllegalArgumentException(keys.length + " keys, " + values.length + " values");
+        int count = keys.length;
+        long[] hashes = new long[count];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = hash(keys[i]);
+        }
+        byte[][] pointers = null;
+        stateLock.readLock().lock();
+        try {
+            boolean[] skip = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = counterValue(keys[i]);
+                skip[i] = values[i] != null;
+            }
+            ByteEntry[] found = findAll(keys, hashes, skip, buffer);
+            for (int i = 0; i < count; i++) {
+                ByteEntry entry = found[i];
+                if (entry == null || skip[i]) continue;
+                if (entry.blob) {
+                    if (pointers == null) {
+                        pointers = new byte[count][];
+                    }
+                    pointers[i] = entry.readValue(buffer);
+                } else {
+                    values[i] = entry.readValue(buffer);
+                }
+            }
+            if (pointers != null) {
+                blobs().pin();
+            }
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        if (pointers == null) return;
+        try {
+            for (int i = 0; i < count; i++) {
+                if (pointers[i] != null) {
+                    values[i] = blobLog.read(pointers[i]);
+                }
+            }
+        } finally {
+            blobLog.unpin();
+        }
+    }
+
+    //one pass over the entries, matched against the sorted hashes of the keys; sets the index of found entries
+    private ByteEntry[] findAll(byte[][] keys, long[] hashes, boolean[] skip, byte[] buffer) {
+        int count = keys.length;
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (i1, i2) -> Long.compare(hashes[i1], hashes[i2]));
+        long[] sorted = new long[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = hashes[order[i]];
+        }
+        ByteEntry[] found = new ByteEntry[count];
+        int[] prefixIds = new int[count];
+        int pending = 0;
+        for (int i = 0; i < count; i++) {
+            if (skip != null && skip[i]) continue;
+            prefixIds[i] = prefixes != null ? prefixes.lookup(keys[i]) : 0;
+            pending++;
+        }
+        for (int e = 0; e < entries.size() && pending > 0; e++) {
+            long hash = entries.hash(e);
+            int slot = Arrays.binarySearch(sorted, hash);
+            if (slot < 0) continue;
+            while (slot > 0 && sorted[slot - 1] == hash) {
+                slot--;
+            }
+            int prefix = entries.prefix(e);
+            for (; slot < count && sorted[slot] == hash; slot++) {
+                int i = order[slot];
+                if (found[i] != null || (skip != null && skip[i]) || prefixIds[i] != prefix) continue;
+                int offset = prefix != 0 ? prefixes.length(prefix) : 0;
+                if (!ByteUtils.equals(keys[i], offset, buffer, entries.keyPosition(e), entries.keyLength(e))) continue;
+                found[i] = entries.get(e);
+                pending--;
+            }
+        }
+        return found;
+    }
+
+    @Override public InputStream openValue(byte[] key) throws IOException {
+        byte[] counter = counterValue(key);
+        if (counter != null) return new ByteArrayInputStream(counter);
         long hash = hash(key);
-        synchronized (this) {
+        byte[] pointer;
+        stateLock.readLock().lock();
+        try {
             ByteEntry entry = find(key, hash, buffer);
             if (entry == null) return null;
-            return entry.getOrReadValue(buffer);
+            //the leased buffer isn't reused until the stream is closed
+            if (!entry.blob) return new LeasedValueStream(lease(), entry.valuePosition(), entry.valueLength);
+            pointer = entry.readValue(buffer);
+            blobs().pin();
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        try {
+            return blobLog.open(pointer);
+        } finally {
+            blobLog.unpin();
+        }
+    }
+
+    @Override public byte[] snapshot() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] current = currentOrInlined(out);
+        if (current == null) return out.toByteArray();
+        try {
+            return subArray(current, 0, current.length);
+        } finally {
+            release(current);
+        }
+    }
+
+    //the leased buffer isn't modified, so it can be streamed without the lock
+    @Override public void snapshotTo(OutputStream out) throws IOException {
+        byte[] current = currentOrInlined(out);
+        if (current == null) return;
+        try {
+            out.write(current);
+        } finally {
+            release(current);
         }
     }
 
-    @Override public synchronized byte[] snapshot() {
-        return subArray(buffer, 0, buffer.length);
+    @Override public void snapshotTo(WritableByteChannel channel) throws IOException {
+        byte[] current = currentOrInlined(Channels.newOutputStream(channel));
+        if (current == null) return;
+        try {
+            ByteBuffer source = ByteBuffer.wrap(current);
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        } finally {
+            release(current);
+        }
+    }
+
+    //snapshots carry blob values inline, so they don't depend on files that may be collected later;
+    //returns the current buffer leased if there is nothing to inline
+    private byte[] currentOrInlined(OutputStream out) throws IOException {
+        flushCounters();
+        byte[] current;
+        StorageFormat currentFormat;
+        List<ByteEntry> snapshot = new ArrayList<>();
+        List<byte[]> keys = new ArrayList<>();
+        stateLock.readLock().lock();
+        try {
+            current = lease();
+            currentFormat = format;
+            if (blobLog == null || !format.blobValues()) return current;
+            boolean blobs = false;
+            for (ByteEntry entry : entries) {
+                snapshot.add(entry);
+                keys.add(fullKey(entry, current));
+                blobs |= entry.blob;
+            }
+            if (!blobs) return current;
+            blobLog.pin();
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        try {
+            RecordWriter writer = new RecordWriter(currentFormat, out, fileHeader(current, currentFormat, currentFormat));
+            for (int i = 0; i < snapshot.size(); i++) {
+                ByteEntry entry = snapshot.get(i);
+                long entrySequence = currentFormat.readSequence(current, entry.keyPosition());
+                if (entry.blob) {
+                    writer.write(keys.get(i), blobLog.read(entry.readValue(current)), entrySequence);
+                } else {
+                    writer.write(keys.get(i), current, entry.valuePosition(), entry.valueLength, entrySequence);
+                }
+            }
+            return null;
+        } finally {
+            blobLog.unpin();
+            release(current);
+        }
+    }
+
+    //a delta applies only on top of the previous one; any write in between, also of a delta that failed halfway,
+    //moves the sequence and makes the next delta fail
+    @Override public long applyDelta(InputStream in) throws IOException {
+        writeLock.lock();
+        try {
+            long expected = sequence == appliedAt ? appliedUpTo : -1;
+            long upTo = ChangeFeed.applyDelta(this, in, expected);
+            appliedUpTo = upTo;
+            appliedAt = sequence;
+            return upTo;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //records stamped after since and the removals since then; a full snapshot if a reset or
+    //removals that are no longer logged lie after since
+    @Override public long exportSince(long since, OutputStream out) throws IOException {
+        flushCounters();
+        byte[] current;
+        StorageFormat currentFormat;
+        long last;
+        List<ByteEntry> changed = new ArrayList<>();
+        List<byte[]> keys = new ArrayList<>();
+        List<Change> removed = new ArrayList<>();
+        boolean pinned = false;
+        writeLock.lock();
+        try {
+            stateLock.readLock().lock();
+            try {
+                current = lease();
+            } finally {
+                stateLock.readLock().unlock();
+            }
+            currentFormat = format;
+            last = format.sequences() ? readLong(current, StorageFormat.LAST_SEQUENCE) : 0;
+            boolean complete = format.sequences() && since > 0
+                    && since >= readLong(current, StorageFormat.RESET_SEQUENCE)
+                    && (since >= removalsFrom || readLong(current, StorageFormat.REMOVAL_SEQUENCE) <= since);
+            if (!complete) {
+                changed = null;
+            } else {
+                for (Change removal : removals) {
+                    if (removal.sequence > since) {
+                        removed.add(removal);
+                    }
+                }
+                for (int i = 0; i < entries.size(); i++) {
+                    if (format.readSequence(current, entries.keyPosition(i)) > since) {
+                        ByteEntry entry = entries.get(i);
+                        changed.add(entry);
+                        keys.add(fullKey(entry, current));
+                        pinned |= entry.blob;
+                    }
+                }
+                if (pinned) {
+                    blobLog.pin();
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (changed == null) {
+            release(current);
+            return ChangeFeed.exportSnapshot(this, last, out);
+        }
+        try {
+            DataOutputStream data = ChangeFeed.beginDelta(out, since, last);
+            for (Change removal : removed) {
+                ChangeFeed.write(data, removal);
+            }
+            for (int i = 0; i < changed.size(); i++) {
+                ByteEntry entry = changed.get(i);
+                byte[] value = entry.blob ? blobLog.read(entry.readValue(current)) : entry.readValue(current);
+                long entrySequence = currentFormat.readSequence(current, entry.keyPosition());
+                ChangeFeed.write(data, new Change(entrySequence, Change.Type.PUT, keys.get(i), value));
+            }
+            data.flush();
+            return last;
+        } finally {
+            if (pinned) {
+                blobLog.unpin();
+            }
+            release(current);
+        }
+    }
+
+    @Override public void restoreFrom(InputStream in) throws IOException {
+        byte[] data = new byte[RESTORE_CHUNK];
+        int size = 0;
+        EntryParser parser = null;
+        int read;
+        while (true) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            read = in.read(data, size, data.length - size);
+            if (read == -1) break;
+            size += read;
+            if (parser == null && size >= StorageFormat.HEADER_LENGTH) {
+                parser = new EntryParser(StorageFormat.read(data), new EntryTable());
+            }
+            if (parser != null) {
+                parser.parse(data, size, false);
+            }
+        }
+        byte[] restored = size == data.length ? data : subArray(data, 0, size);
+        if (parser == null) {
+            parser = new EntryParser(StorageFormat.read(restored), new EntryTable());
+        }
+        parser.parse(restored, size, true);
+        parser.verify(restored);
+        EntryParser result = parser;
+        writeLock.lock();
+        try {
+            mutate(buffer -> {
+                entries.replaceWith(result.entries);
+                layoutVersion++;
+                blobsDropped = true;
+                format = result.format;
+                prefixes = result.prefixes;
+                //the restored records keep their sequences, a reset makes exports before it complete
+                if (format.sequences()) {
+                    sequence = Math.max(sequence, readLong(restored, StorageFormat.LAST_SEQUENCE));
+                    stamp = sequence + 1;
+                    writeLong(restored, StorageFormat.RESET_SEQUENCE, stamp);
+                }
+                return restored;
+            });
+            dropCounters(key -> true);
+            //listeners get a copy, the restored buffer goes back to the pool once replaced
+            emit(Change.Type.SNAPSHOT, null, listeners.isEmpty() ? null : subArray(restored, 0, restored.length));
+        } finally {
+            writeLock.unlock();
+        }
     }
 
     @Override public void put(KeyValue... keyValues) throws IOException {
         if (keyValues.length == 0) return;
-        byte[] currentBuffer;
-        synchronized (this) {
-            currentBuffer = buffer;
+        writeLock.lock();
+        try {
+            //large values are appended up front, a failed batch only leaves dead bytes in the blob log
+            byte[][] pointers = new byte[keyValues.length][];
+            for (int i = 0; i < keyValues.length; i++) {
+                byte[] value = keyValues[i].value;
+                if (value != null && separate(value.length)) {
+                    pointers[i] = new byte[BlobLog.POINTER_LENGTH];
+                    blobLog.append(value, pointers[i], 0);
+                }
+            }
+            List<KeyValue> applied = applied(keyValues);
+            stamp = sequence + applied.size();
+            if (keyValues.length == 1) {
+                boolean blob = pointers[0] != null;
+                mutate(buffer -> writeToBuffer(keyValues[0].key, blob ? pointers[0] : keyValues[0].value, blob, buffer));
+            } else {
+                mutate(buffer -> writeBatch(keyValues, pointers, buffer));
+            }
             for (KeyValue kv : keyValues) {
-                currentBuffer = writeToBuffer(kv.key, kv.value, currentBuffer);
+                dropCounter(kv.key);
+            }
+            for (KeyValue kv : applied) {
+                emit(kv.value != null ? Change.Type.PUT : Change.Type.REMOVE, kv.key, kv.value);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //called under writeLock: the last write per key, in batch order, without removals of missing keys, so
+    //listeners and exports only see what the batch changes
+    private List<KeyValue> applied(KeyValue[] keyValues) {
+        Map<ByteBuffer, KeyValue> last = new LinkedHashMap<>();
+        for (KeyValue kv : keyValues) {
+            ByteBuffer key = ByteBuffer.wrap(kv.key);
+            last.remove(key);
+            last.put(key, kv);
+        }
+        List<KeyValue> applied = new ArrayList<>(last.size());
+        stateLock.readLock().lock();
+        try {
+            for (Map.Entry<ByteBuffer, KeyValue> write : last.entrySet()) {
+                KeyValue kv = write.getValue();
+                if (kv.value != null || counters.containsKey(write.getKey())
+                        || find(kv.key, hash(kv.key), buffer) != null) {
+                    applied.add(kv);
+                }
             }
+        } finally {
+            stateLock.readLock().unlock();
         }
-        writeNewBufferInternal(currentBuffer);
+        return applied;
     }
 
     @Override public void put(byte[] key, byte[] value) throws IOException {
-        byte[] newBuff = writeToBuffer(key, value, buffer);
-        writeNewBufferInternal(newBuff);
+        put(key, null, value);
+    }
+
+    @Override public void put(Key key, byte[] value) throws IOException {
+        put(key.bytes, key, value);
+    }
+
+    private void put(byte[] key, Key handle, byte[] value) throws IOException {
+        writeLock.lock();
+        try {
+            stamp = sequence + 1;
+            if (value != null && separate(value.length)) {
+                putValue(key, BlobLog.POINTER_LENGTH, true, (dest, offset) -> blobLog.append(value, dest, offset),
+                        value);
+                return;
+            }
+            boolean changed;
+            if (handle != null) {
+                changed = mutate(buffer -> writeToBuffer(key, handle.hash, handle, value, false, buffer));
+            } else {
+                changed = mutate(buffer -> writeToBuffer(key, value, false, buffer));
+            }
+            //removing a missing key changes nothing, so followers don't get a change for it
+            if (dropCounter(key) || changed) {
+                emit(value != null ? Change.Type.PUT : Change.Type.REMOVE, key, value);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override public <T> void putObject(byte[] key, T value, Codec<T> codec) throws IOException {
+        if (value == null) {
+            put(key, (byte[]) null);
+            return;
+        }
+        int length = codec.length(value);
+        writeLock.lock();
+        try {
+            if (separate(length)) {
+                put(key, encode(codec, value));
+                return;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        putValue(key, length, (dest, offset) -> encode(codec, value, dest, offset, length));
+    }
+
+    @Override public void put(byte[] key, InputStream value, int length) throws IOException {
+        writeLock.lock();
+        try {
+            if (separate(length)) {
+                putValue(key, BlobLog.POINTER_LENGTH, true, (dest, offset) -> blobLog.append(value, length, dest, offset),
+                        null);
+                return;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        putValue(key, length, (dest, offset) -> {
+            int read = 0;
+            while (read < length) {
+                int count = value.read(dest, offset + read, length - read);
+                if (count < 0) throw new EOFException("value stream ended at " + read + " of " + length);
+                read += count;
+            }
+        });
     }
 
     @Override public boolean remove(byte[] key) throws IOException {
-        byte[] newBuff;
-        synchronized (this) {
-            newBuff = writeToBuffer(key, null, buffer);
+        writeLock.lock();
+        try {
+            stamp = sequence + 1;
+            boolean removed = mutate(buffer -> writeToBuffer(key, null, false, buffer));
+            removed = dropCounter(key) || removed;
+            if (removed) {
+                emit(Change.Type.REMOVE, key, null);
+            }
+            return removed;
+        } finally {
+            writeLock.unlock();
         }
-        if (buffer != newBuff) {
-            writeNewBufferInternal(newBuff);
+    }
+
+    //writers are serialized by writeLock, so the value can't change between the read and the single write
+    @Override public boolean removeAll(byte[] prefix) throws IOException {
+        if (prefix.length == 0) throw new IllegalArgumentException("empty prefix");
+        writeLock.lock();
+        try {
+            stamp = sequence + 1;
+            boolean removed = mutate(buffer -> removeMatching(prefix, buffer));
+            removed = dropCounters(key -> startsWith(key.array(), prefix)) || removed;
+            if (removed) {
+                emit(Change.Type.REMOVE_ALL, prefix, null);
+            }
+            return removed;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override public byte[] putIfAbsent(byte[] key, byte[] value) throws IOException {
+        if (value == null) throw new IllegalArgumentException("null value");
+        writeLock.lock();
+        try {
+            byte[] current = get(key);
+            if (current == null) {
+                put(key, value);
+            }
+            return current;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //a null expected value means absent, a null new value removes the key
+    @Override public boolean compareAndSet(byte[] key, byte[] expected, byte[] newValue) throws IOException {
+        writeLock.lock();
+        try {
+            byte[] current = get(key);
+            if (!Arrays.equals(current, expected)) return false;
+            if (!Arrays.equals(current, newValue)) {
+                put(key, newValue);
+            }
             return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override public byte[] computeIfPresent(byte[] key, UnaryOperator<byte[]> function) throws IOException {
+        writeLock.lock();
+        try {
+            byte[] current = get(key);
+            if (current == null) return null;
+            //the function may change the array it gets in place, current is kept to compare with
+            byte[] updated = function.apply(current.clone());
+            if (!Arrays.equals(updated, current)) {
+                put(key, updated);
+            }
+            return updated;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override public byte[] merge(byte[] key, byte[] value, BinaryOperator<byte[]> function) throws IOException {
+        if (value == null) throw new IllegalArgumentException("null value");
+        writeLock.lock();
+        try {
+            byte[] current = get(key);
+            byte[] updated = current == null ? value : function.apply(current.clone(), value);
+            if (!Arrays.equals(updated, current)) {
+                put(key, updated);
+            }
+            return updated;
+        } finally {
+            writeLock.unlock();
         }
-        return false;
     }
 
     @Override public void clear() throws IOException {
-        synchronized (this) {
-            entries.clear();
+        writeLock.lock();
+        try {
+            stamp = sequence + 1;
+            mutate(buffer -> {
+                entries.clear();
+                layoutVersion++;
+                blobsDropped = true;
+                prefixes = format.keyPrefixes() ? new KeyPrefixes(format.keyDelimiter, format.prefixDepth) : null;
+                byte[] newBuff = format.newBuffer();
+                stampHeader(newBuff, StorageFormat.RESET_SEQUENCE);
+                return newBuff;
+            });
+            dropCounters(key -> true);
+            pool.clear();
+            emit(Change.Type.CLEAR, null, null);
+        } finally {
+            writeLock.unlock();
         }
-        writeNewBufferInternal(new byte[0]);
     }
 
-    private byte[] writeToBuffer(byte[] key, byte[] value, byte[] buffer) {
+    @Override public int incrementAndGet(byte[] key, int delta) throws IOException {
+        return (int) increment(key, delta, 4);
+    }
+
+    @Override public long incrementAndGet(byte[] key, long delta) throws IOException {
+        return increment(key, delta, 8);
+    }
+
+    //a counter dropped by a write of its key is loaded again from the written value; an add that lands on a
+    //counter dropped after the check overlapped the write and is ordered before it, so the write replaces it
+    private long increment(byte[] key, long delta, int width) throws IOException {
+        Counter counter;
+        do {
+            counter = counters.get(ByteBuffer.wrap(key));
+            if (counter == null) {
+                counter = loadCounter(key, width);
+            }
+            if (counter.width != width) throw new IllegalArgumentException("counter of " + counter.width + " bytes");
+        } while (counter.dropped);
+        long value = counter.value.addAndGet(delta);
+        counter.dirty = true;//set after the add, so a flush that misses the add sees the flag
+        long interval = counterFlushMillis;
+        if (interval == 0) {
+            flushCounters();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            scheduleFlush(interval);
+        }
+        return value;
+    }
+
+    private void scheduleFlush(long interval) {
+        if (closed) return;
+        scheduledFlush = FlushScheduler.INSTANCE.schedule(() -> runScheduledFlush(interval), interval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    //a failed flush leaves the counters dirty, it's retried after another interval and reported
+    private void runScheduledFlush(long interval) {
+        flushScheduled.set(false);
+        try {
+            flushCounters();
+        } catch (IOException | RuntimeException ex) {
+            if (flushScheduled.compareAndSet(false, true)) {
+                scheduleFlush(interval);
+            }
+            ExceptionHandler handler = flushFailures;
+            if (handler != null) {
+                handler.handleException(ex);
+            }
+        }
+    }
+
+    private Counter loadCounter(byte[] key, int width) throws IOException {
+        checkKey(key);
+        writeLock.lock();
+        try {
+            ByteBuffer wrapped = ByteBuffer.wrap(key.clone());
+            Counter counter = counters.get(wrapped);
+            if (counter != null) return counter;
+            byte[] current = get(key);
+            if (current != null && current.length != width)
+                throw new IllegalArgumentException("value of " + current.length + " bytes isn't a counter");
+            long value = current == null ? 0 : width == 4 ? readInt(current, 0) : readLong(current, 0);
+            counter = new Counter(value, width);
+            counters.put(wrapped, counter);
+            return counter;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private byte[] counterValue(byte[] key) {
+        if (counters.isEmpty()) return null;
+        Counter counter = counters.get(ByteBuffer.wrap(key));
+        return counter != null ? counter.encode() : null;
+    }
+
+    //called under writeLock after the key was overwritten, increments racing with the write are ordered before it
+    private boolean dropCounter(byte[] key) {
+        if (counters.isEmpty()) return false;
+        Counter counter = counters.remove(ByteBuffer.wrap(key));
+        if (counter == null) return false;
+        counter.dropped = true;
+        return true;
+    }
+
+    private boolean dropCounters(Predicate<ByteBuffer> matches) {
+        boolean dropped = false;
+        for (Iterator<Map.Entry<ByteBuffer, Counter>> it = counters.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<ByteBuffer, Counter> counter = it.next();
+            if (matches.test(counter.getKey())) {
+                counter.getValue().dropped = true;
+                it.remove();
+                dropped = true;
+            }
+        }
+        return dropped;
+    }
+
+    //dirty counters cost one buffer copy per flush, equal-length values are patched at valuePosition
+    void flushCounters() throws IOException {
+        if (counters.isEmpty()) return;
+        writeLock.lock();
+        try {
+            List<Map.Entry<ByteBuffer, Counter>> dirty = new ArrayList<>();
+            for (Map.Entry<ByteBuffer, Counter> counter : counters.entrySet()) {
+                if (counter.getValue().dirty) {
+                    counter.getValue().dirty = false;
+                    dirty.add(counter);
+                }
+            }
+            if (dirty.isEmpty()) return;
+            stamp = sequence + dirty.size();
+            byte[][] values = new byte[dirty.size()][];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = dirty.get(i).getValue().encode();
+            }
+            try {
+                mutate(buffer -> {
+                    byte[] newBuff = pool.take(buffer.length);
+                    copy(buffer, 0, newBuff);
+                    for (int i = 0; i < values.length; i++) {
+                        byte[] key = dirty.get(i).getKey().array();
+                        byte[] value = values[i];
+                        ByteEntry current = find(key, hash(key), newBuff);
+                        if (current != null && !current.blob && current.valueLength == value.length) {
+                            fill(value, newBuff, current.valuePosition());
+                            format.writeSequence(newBuff, current.keyPosition(), stamp);
+                            format.writeChecksum(newBuff, current);
+                        } else {
+                            newBuff = writeToBuffer(key, value, false, newBuff);
+                        }
+                    }
+                    return newBuff;
+                });
+            } catch (IOException | RuntimeException ex) {
+                for (Map.Entry<ByteBuffer, Counter> counter : dirty) {
+                    counter.getValue().dirty = true;
+                }
+                throw ex;
+            }
+            for (int i = 0; i < values.length; i++) {
+                emit(Change.Type.PUT, dirty.get(i).getKey().array(), values[i]);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override public void addChangeListener(ChangeListener listener, boolean snapshotFirst) throws IOException {
+        if (listener == null) throw new IllegalArgumentException("null listener");
+        writeLock.lock();
+        try {
+            if (snapshotFirst) {
+                byte[] snapshot = snapshot();
+                listener.onChange(new Change(sequence, Change.Type.SNAPSHOT, null, snapshot));
+            }
+            listeners.add(listener);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override public void removeChangeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    //called under writeLock once the change is on disk, so listeners see the changes in commit order
+    private void emit(Change.Type type, byte[] key, byte[] value) {
+        long number = ++sequence;
+        if (type == Change.Type.CLEAR || type == Change.Type.SNAPSHOT) {
+            removals.clear();
+            removalsFrom = number;
+        } else if (type == Change.Type.REMOVE || type == Change.Type.REMOVE_ALL) {
+            removals.add(new Change(number, type, key, null));
+            if (removals.size() > REMOVAL_LOG_LIMIT) {
+                removalsFrom = removals.poll().sequence;
+            }
+        }
+        if (listeners.isEmpty()) return;
+        Change change = new Change(number, type, key, value);
+        for (ChangeListener listener : listeners) {
+            listener.onChange(change);
+        }
+    }
+
+    //header sequences are only kept by formats with sequences
+    private void stampHeader(byte[] newBuff, int field) {
+        if (format.sequences()) {
+            writeLong(newBuff, field, stamp);
+        }
+    }
+
+    private boolean mutate(Mutation mutation) throws IOException {
+        writeLock.lock();
+        try {
+            byte[] current;
+            byte[] newBuffer;
+            stateLock.writeLock().lock();
+            try {
+                current = buffer;
+                try {
+                    newBuffer = mutation.apply(current);
+                } catch (RuntimeException ex) {
+                    readEntries(current);
+                    throw ex;
+                }
+                if (newBuffer == current) return false;
+                stampHeader(newBuffer, StorageFormat.LAST_SEQUENCE);
+                buffer = newBuffer;
+            } finally {
+                stateLock.writeLock().unlock();
+            }
+            persist(current, newBuffer);
+            recycle(current);
+            collectBlobs();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void persist(byte[] current, byte[] newBuffer) throws IOException {
+        try {
+            byteStorage.write(newBuffer);
+        } catch (Exception ex) {
+            stateLock.writeLock().lock();
+            try {
+                buffer = current;
+                readEntries(current);
+            } finally {
+                stateLock.writeLock().unlock();
+            }
+            throw ex;
+        }
+    }
+
+    //called under stateLock, the buffer isn't reused until released
+    private byte[] lease() {
+        leases.merge(buffer, 1, Integer::sum);
+        return buffer;
+    }
+
+    private void release(byte[] leased) {
+        leases.computeIfPresent(leased, (array, count) -> count > 1 ? count - 1 : null);
+    }
+
+    //reads a value in place from a leased buffer, close gives the lease back
+    private final class LeasedValueStream extends ByteArrayInputStream {
+        private boolean released;
+
+        LeasedValueStream(byte[] leased, int offset, int length) {
+            super(leased, offset, length);
+        }
+
+        @Override public void close() {
+            if (!released) {
+                released = true;
+                release(buf);
+            }
+        }
+    }
+
+    //called under writeLock once a newer buffer is on disk; storages keep at most the last written array
+    private void recycle(byte[] old) {
+        stateLock.readLock().lock();
+        try {
+            if (old == buffer || leases.containsKey(old)) return;
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        pool.give(old);
+    }
+
+    //called under writeLock once the new buffer is on disk, so no persisted record points to a dropped file
+    private void collectBlobs() {
+        if (blobLog == null || !blobsDropped) return;
+        blobsDropped = false;
+        Map<Integer, Long> live = new HashMap<>();
+        stateLock.readLock().lock();
+        try {
+            for (ByteEntry entry : entries) {
+                if (entry.blob) {
+                    long length = BlobLog.length(buffer, entry.valuePosition());
+                    live.merge(BlobLog.fileId(buffer, entry.valuePosition()), length, Long::sum);
+                }
+            }
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        try {
+            for (int fileId : blobLog.fileIds()) {
+                Long liveBytes = live.get(fileId);
+                if (liveBytes == null) {
+                    //a pinned file is retried by the next commit
+                    blobsDropped |= !blobLog.delete(fileId);
+                } else if (blobLog.shouldCompact(fileId, liveBytes)) {
+                    relocateBlobs(fileId);
+                }
+            }
+        } catch (IOException ex) {
+            //dead values stay on disk until the next collection
+            blobsDropped = true;
+        }
+    }
+
+    private void relocateBlobs(int fileId) throws IOException {
+        byte[] current;
+        List<ByteEntry> moved = new ArrayList<>();
+        stateLock.readLock().lock();
+        try {
+            current = buffer;
+            for (ByteEntry entry : entries) {
+                if (entry.blob && BlobLog.fileId(current, entry.valuePosition()) == fileId) {
+                    moved.add(entry);
+                }
+            }
+        } finally {
+            stateLock.readLock().unlock();
+        }
+        //pointers keep their size, so only the pointer bytes of the copy change
+        byte[] newBuff = pool.take(current.length);
+        copy(current, 0, newBuff);
+        for (ByteEntry entry : moved) {
+            blobLog.move(newBuff, entry.valuePosition());
+            format.writeChecksum(newBuff, entry);
+        }
+        blobLog.sync();
+        stateLock.writeLock().lock();
+        try {
+            buffer = newBuff;
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        persist(current, newBuff);
+        recycle(current);
+        blobsDropped |= !blobLog.delete(fileId);
+    }
+
+    private boolean separate(int length) {
+        return blobLog != null && format.blobValues() && length >= blobLog.threshold();
+    }
+
+    private BlobLog blobs() throws IOException {
+        if (blobLog == null) throw new IOException("blob values are not configured");
+        return blobLog;
+    }
+
+    void putValue(byte[] key, int length, ValueWriter writer) throws IOException {
+        putValue(key, length, false, writer, null);
+    }
+
+    //the value is written straight into the new buffer outside stateLock, readers keep the current buffer meanwhile
+    //the plain value is passed on to change listeners if the caller has it, otherwise it is read back
+    void putValue(byte[] key, int length, boolean blob, ValueWriter writer, byte[] value) throws IOException {
+        checkKey(key);
+        if (length < 0) throw new IllegalArgumentException("value length " + length);
+        long hash = hash(key);
+        writeLock.lock();
+        try {
+            stamp = sequence + 1;
+            byte[] current;
+            ByteEntry previous;
+            int prefix;
+            stateLock.writeLock().lock();
+            try {
+                current = buffer;
+                previous = find(key, hash, current);
+                prefix = prefixes != null ? prefixes.assign(key) : 0;
+            } finally {
+                stateLock.writeLock().unlock();
+            }
+            int position = current.length;
+            if (previous != null) {
+                position -= previous.entryLength();
+            }
+            ByteEntry definition = null;
+            if (prefix < 0) {
+                byte[] prefixBytes = prefixes.get(-prefix);
+                definition = format.newEntry(position, hash(prefixBytes), prefix, prefixBytes.length, 0);
+                position = definition.nextPosition();
+                prefix = -prefix;
+            }
+            int offset = prefix != 0 ? prefixes.length(prefix) : 0;
+            ByteEntry entry = format.newEntry(position, hash, prefix, key.length - offset, length, blob);
+            byte[] newBuff = pool.take(entry.nextPosition());
+            if (previous == null) {
+                fill(current, newBuff, 0);
+            } else {
+                copy(current, 0, newBuff, 0, previous.position);
+                copy(current, previous.nextPosition(), newBuff, previous.position,
+                        current.length - previous.nextPosition());
+            }
+            if (definition != null) {
+                int prefixPos = format.writeEntry(newBuff, definition.position, definition);
+                copy(key, 0, newBuff, prefixPos, offset);
+                format.writeChecksum(newBuff, definition);
+            }
+            int keyPos = format.writeEntry(newBuff, entry.position, entry, stamp);
+            copy(key, offset, newBuff, keyPos, entry.keyLength);
+            stampHeader(newBuff, StorageFormat.LAST_SEQUENCE);
+            //a pooled array has stale bytes where the writer may leave some unwritten
+            Arrays.fill(newBuff, entry.valuePosition(), entry.nextPosition(), (byte) 0);
+            try {
+                writer.write(newBuff, entry.valuePosition());
+                format.writeChecksum(newBuff, entry);
+            } catch (IOException | RuntimeException ex) {
+                blobsDropped |= blob;
+                if (definition != null) {
+                    stateLock.writeLock().lock();
+                    try {
+                        readEntries(current);
+                    } finally {
+                        stateLock.writeLock().unlock();
+                    }
+                }
+                throw ex;
+            }
+            stateLock.writeLock().lock();
+            try {
+                if (previous != null) {
+                    blobsDropped |= previous.blob;
+                    entries.remove(previous.getIndex());
+                    layoutVersion++;
+                    entries.shift(previous.getIndex(), -previous.entryLength());
+                }
+                entries.add(entry);
+                buffer = newBuff;
+            } finally {
+                stateLock.writeLock().unlock();
+            }
+            persist(current, newBuff);
+            recycle(current);
+            dropCounter(key);
+            if (!listeners.isEmpty() && value == null) {
+                byte[] stored = subArray(newBuff, entry.valuePosition(), length);
+                value = blob ? blobLog.read(stored) : stored;
+            }
+            emit(Change.Type.PUT, key, value);
+            collectBlobs();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static void checkKey(byte[] key) {
         if (key.length == 0) throw new IllegalArgumentException("zero key length");
         if (key.length > ByteEntry.KEY_MAX_LENGTH)
             throw new IllegalArgumentException("key length > " + ByteEntry.KEY_MAX_LENGTH);
-        long hash = hash(key);
-        ByteEntry current = find(key, hash, buffer);
+    }
+
+    private byte[] writeToBuffer(byte[] key, byte[] value, boolean blob, byte[] buffer) {
+        checkKey(key);
+        return writeToBuffer(key, hash(key), null, value, blob, buffer);
+    }
+
+    private byte[] writeToBuffer(byte[] key, long hash, Key handle, byte[] value, boolean blob, byte[] buffer) {
+        ByteEntry current = handle != null ? find(handle, buffer) : find(key, hash, buffer);
         if (current != null) {
             if (value == null) {
                 return removeEntry(current, buffer);
             } else {
-                return replaceEntry(current, value, buffer);
+                return replaceEntry(current, value, blob, buffer);
             }
         } else {
             if (value == null) return buffer;
-            return addEntry(key, hash, value, buffer);
+            return addEntry(key, hash, value, blob, buffer);
         }
     }
 
-    private void writeNewBufferInternal(byte[] newBuffer) throws IOException {
-        byte[] current = buffer;
-        try {
-            byteStorage.write(newBuffer);
-            buffer = newBuffer;
-        } catch (Exception ex) {
-            synchronized (this) {
-                readEntries(current);
+    //the last write per key wins; untouched ranges are copied once, replaced records are rewritten in place
+    //and new records appended, instead of one buffer copy per key
+    private byte[] writeBatch(KeyValue[] keyValues, byte[][] pointers, byte[] buffer) {
+        Map<ByteBuffer, Integer> last = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i++) {
+            checkKey(keyValues[i].key);
+            last.put(ByteBuffer.wrap(keyValues[i].key), i);
+        }
+        int count = last.size();
+        byte[][] keys = new byte[count][];
+        byte[][] values = new byte[count][];
+        boolean[] blobs = new boolean[count];
+        long[] hashes = new long[count];
+        int n = 0;
+        for (int i = 0; i < keyValues.length; i++) {
+            if (last.get(ByteBuffer.wrap(keyValues[i].key)) != i) continue;
+            keys[n] = keyValues[i].key;
+            blobs[n] = pointers[i] != null;
+            values[n] = blobs[n] ? pointers[i] : keyValues[i].value;
+            hashes[n] = hash(keys[n]);
+            n++;
+        }
+        ByteEntry[] existing = findAll(keys, hashes, null, buffer);
+        List<Integer> changed = new ArrayList<>();
+        ByteEntry[] updated = new ByteEntry[count];
+        int length = buffer.length;
+        for (int i = 0; i < count; i++) {
+            ByteEntry old = existing[i];
+            if (old == null) continue;
+            changed.add(i);
+            blobsDropped |= old.blob;
+            length -= old.entryLength();
+            if (values[i] != null) {
+                updated[i] = old.copyWithNewValue(values[i].length,
+                        format.entryHeaderLength(old.prefix, old.keyLength, values[i].length), blobs[i]);
+                length += updated[i].entryLength();
             }
-            throw ex;
         }
+        changed.sort((i1, i2) -> existing[i1].getIndex() - existing[i2].getIndex());
+        List<ByteEntry> added = new ArrayList<>();
+        List<byte[]> addedKeys = new ArrayList<>();
+        List<byte[]> addedValues = new ArrayList<>();
+        int position = length;
+        for (int i = 0; i < count; i++) {
+            if (existing[i] != null || values[i] == null) continue;
+            int prefix = prefixes != null ? prefixes.assign(keys[i]) : 0;
+            if (prefix < 0) {
+                byte[] prefixBytes = prefixes.get(-prefix);
+                ByteEntry definition = format.newEntry(position, hash(prefixBytes), prefix, prefixBytes.length, 0);
+                added.add(definition);
+                addedKeys.add(prefixBytes);
+                addedValues.add(null);
+                position = definition.nextPosition();
+                prefix = -prefix;
+            }
+            int offset = prefix != 0 ? prefixes.length(prefix) : 0;
+            ByteEntry entry = format.newEntry(position, hashes[i], prefix, keys[i].length - offset, values[i].length,
+                    blobs[i]);
+            added.add(entry);
+            addedKeys.add(keys[i]);
+            addedValues.add(values[i]);
+            position = entry.nextPosition();
+        }
+        if (changed.isEmpty() && added.isEmpty()) return buffer;
+
+        byte[] newBuff = pool.take(position);
+        EntryTable newEntries = new EntryTable(entries.size() + added.size());
+        int src = 0;
+        int dst = 0;
+        int next = 0;
+        for (int i : changed) {
+            ByteEntry old = existing[i];
+            next = copyRange(buffer, src, old.position, newBuff, dst, next, old.getIndex(), newEntries);
+            dst += old.position - src;
+            if (updated[i] != null) {
+                ByteEntry entry = updated[i].copyWithNewPosition(dst);
+                int keyPos = format.writeEntry(newBuff, dst, entry, stamp);
+                copy(buffer, old.keyPosition(), newBuff, keyPos, old.keyLength);
+                fill(values[i], newBuff, entry.valuePosition());
+                format.writeChecksum(newBuff, entry);
+                newEntries.add(entry);
+                dst = entry.nextPosition();
+            } else {
+                stampHeader(newBuff, StorageFormat.REMOVAL_SEQUENCE);
+            }
+            src = old.nextPosition();
+            next++;
+        }
+        copyRange(buffer, src, buffer.length, newBuff, dst, next, entries.size(), newEntries);
+        for (int i = 0; i < added.size(); i++) {
+            ByteEntry entry = added.get(i);
+            byte[] key = addedKeys.get(i);
+            int keyPos = format.writeEntry(newBuff, entry.position, entry, entry.isPrefixDefinition() ? 0 : stamp);
+            copy(key, key.length - entry.keyLength, newBuff, keyPos, entry.keyLength);
+            if (entry.isPrefixDefinition()) {
+                format.writeChecksum(newBuff, entry);
+                continue;
+            }
+            fill(addedValues.get(i), newBuff, entry.valuePosition());
+            format.writeChecksum(newBuff, entry);
+            newEntries.add(entry);
+        }
+        entries.replaceWith(newEntries);
+        layoutVersion++;
+        return newBuff;
+    }
+
+    //copies buffer[from, to) and moves the entries in [fromIndex, toIndex) by the same distance
+    private int copyRange(byte[] buffer, int from, int to, byte[] newBuff, int dst, int fromIndex, int toIndex,
+                          EntryTable newEntries) {
+        if (to > from) {
+            copy(buffer, from, newBuff, dst, to - from);
+        }
+        newEntries.addRange(entries, fromIndex, toIndex, dst - from);
+        return toIndex;
+    }
+
+    //one pass: the spans between matching entries are copied as they are, prefix definitions included
+    private byte[] removeMatching(byte[] prefix, byte[] buffer) {
+        List<Integer> matching = new ArrayList<>();
+        int length = buffer.length;
+        for (int i = 0; i < entries.size(); i++) {
+            if (keyStartsWith(i, prefix, buffer)) {
+                matching.add(i);
+                blobsDropped |= entries.blob(i);
+                length -= entries.entryLength(i);
+            }
+        }
+        if (matching.isEmpty()) return buffer;
+        byte[] newBuff = pool.take(length);
+        EntryTable newEntries = new EntryTable(entries.size() - matching.size());
+        int src = 0;
+        int dst = 0;
+        int next = 0;
+        for (int i : matching) {
+            int position = entries.position(i);
+            next = copyRange(buffer, src, position, newBuff, dst, next, i, newEntries);
+            dst += position - src;
+            src = position + entries.entryLength(i);
+            next++;
+        }
+        copyRange(buffer, src, buffer.length, newBuff, dst, next, entries.size(), newEntries);
+        entries.replaceWith(newEntries);
+        layoutVersion++;
+        stampHeader(newBuff, StorageFormat.REMOVAL_SEQUENCE);
+        return newBuff;
+    }
+
+    private boolean keyStartsWith(int index, byte[] prefix, byte[] buffer) {
+        int entryPrefix = entries.prefix(index);
+        byte[] head = entryPrefix != 0 ? prefixes.get(entryPrefix) : null;
+        int headLength = head != null ? head.length : 0;
+        if (headLength + entries.keyLength(index) < prefix.length) return false;
+        int i = 0;
+        for (; i < prefix.length && i < headLength; i++) {
+            if (prefix[i] != head[i]) return false;
+        }
+        int keyPosition = entries.keyPosition(index) - headLength;
+        for (; i < prefix.length; i++) {
+            if (prefix[i] != buffer[keyPosition + i]) return false;
+        }
+        return true;
+    }
+
+    //a slot hint from the current layout version skips the probe, a removal invalidates every hint
+    private ByteEntry find(Key key, byte[] buffer) {
+        Key.Slot slot = key.slot;
+        if (slot != null && slot.owner == this && slot.version == layoutVersion) return entries.get(slot.index);
+        ByteEntry entry = find(key.bytes, key.hash, buffer);
+        if (entry != null) {
+            key.slot = new Key.Slot(this, layoutVersion, entry.getIndex());
+        }
+        return entry;
     }
 
     private ByteEntry find(byte[] key, long hash, byte[] buffer) {
+        int prefix = prefixes != null ? prefixes.lookup(key) : 0;
+        int offset = prefix != 0 ? prefixes.length(prefix) : 0;
         for (int i = 0; i < entries.size(); i++) {
-            ByteEntry entry = entries.get(i);
-            if (hash == entry.hash) {
-                byte[] entryKey = entry.getOrReadKey(buffer);
-                if (ByteUtils.equals(key, entryKey)) {
-                    entry.setIndex(i);
-                    return entry;
-                }
+            if (hash == entries.hash(i) && prefix == entries.prefix(i)
+                    && ByteUtils.equals(key, offset, buffer, entries.keyPosition(i), entries.keyLength(i))) {
+                return entries.get(i);
             }
         }
         return null;
     }
 
-    private byte[] addEntry(byte[] key, long hash, byte[] value, byte[] buffer) {
-        ByteEntry byteEntry = new ByteEntry(buffer.length, hash, key.length, value.length);
-        byte[] newBuff = new byte[byteEntry.nextPosition()];
+    private byte[] addEntry(byte[] key, long hash, byte[] value, boolean blob, byte[] buffer) {
+        int position = buffer.length;
+        int prefix = prefixes != null ? prefixes.assign(key) : 0;
+        ByteEntry definition = null;
+        if (prefix < 0) {
+            byte[] prefixBytes = prefixes.get(-prefix);
+            definition = format.newEntry(position, hash(prefixBytes), prefix, prefixBytes.length, 0);
+            position = definition.nextPosition();
+            prefix = -prefix;
+        }
+        int offset = prefix != 0 ? prefixes.length(prefix) : 0;
+        ByteEntry byteEntry = format.newEntry(position, hash, prefix, key.length - offset, value.length, blob);
+        byte[] newBuff = pool.take(byteEntry.nextPosition());
         fill(buffer, newBuff, 0);
-        int keyPos = byteEntry.write(byteEntry.position, newBuff);
-        fill(key, newBuff, keyPos);
+        if (definition != null) {
+            int prefixPos = format.writeEntry(newBuff, definition.position, definition);
+            copy(key, 0, newBuff, prefixPos, offset);
+            format.writeChecksum(newBuff, definition);
+        }
+        int keyPos = format.writeEntry(newBuff, byteEntry.position, byteEntry, stamp);
+        copy(key, offset, newBuff, keyPos, byteEntry.keyLength);
         fill(value, newBuff, byteEntry.valuePosition());
+        format.writeChecksum(newBuff, byteEntry);
         entries.add(byteEntry);
         return newBuff;
     }
 
-    private byte[] replaceEntry(ByteEntry current, byte[] value, byte[] buffer) {
+    private byte[] replaceEntry(ByteEntry current, byte[] value, boolean blob, byte[] buffer) {
+        blobsDropped |= current.blob;
         byte[] newBuff;
-        if (current.valueLength == value.length) {
-            newBuff = new byte[buffer.length];
+        if (current.valueLength == value.length && current.blob == blob) {
+            newBuff = pool.take(buffer.length);
             copy(buffer, 0, newBuff);
             fill(value, newBuff, current.valuePosition());
-            current.setValue(value);
+            format.writeSequence(newBuff, current.keyPosition(), stamp);
+            format.writeChecksum(newBuff, current);
         } else {
-            newBuff = new byte[buffer.length - current.valueLength + value.length];
-            copy(buffer, 0, newBuff, 0, current.valuePosition());
-            ByteEntry newEntry = current.copyWithNewValue(value);
-            newEntry.write(current.position, newBuff);
-            fill(value, newBuff, current.valuePosition());
-            if (current.getIndex() < entries.size() - 1) {
-                int destPos = current.valuePosition() + value.length;
+            ByteEntry newEntry = current.copyWithNewValue(value.length,
+                    format.entryHeaderLength(current.prefix, current.keyLength, value.length), blob);
+            int delta = newEntry.entryLength() - current.entryLength();
+            newBuff = pool.take(buffer.length + delta);
+            copy(buffer, 0, newBuff, 0, current.position);
+            int keyPos = format.writeEntry(newBuff, current.position, newEntry, stamp);
+            copy(buffer, current.keyPosition(), newBuff, keyPos, current.keyLength);
+            fill(value, newBuff, newEntry.valuePosition());
+            format.writeChecksum(newBuff, newEntry);
+            int destPos = newEntry.nextPosition();
+            if (destPos < newBuff.length) {
                 copy(buffer, current.nextPosition(), newBuff, destPos, newBuff.length - destPos);
-                ListIterator<ByteEntry> iterator = entries.listIterator(current.getIndex());
-                ByteEntry previous = current;
-                while (iterator.hasNext()) {
-                    ByteEntry next = iterator.next();
-                    if (next == current) {
-                        iterator.set(previous = newEntry);
-                    } else {
-                        iterator.set(previous = next.copyWithNewPosition(previous.nextPosition()));
-                    }
-                }
-            } else {
-                entries.set(current.getIndex(), newEntry);
             }
+            entries.set(current.getIndex(), newEntry);
+            entries.shift(current.getIndex() + 1, delta);
         }
         return newBuff;
     }
 
     private byte[] removeEntry(ByteEntry current, byte[] buffer) {
-        byte[] newBuff = new byte[buffer.length - current.entryLength()];
+        blobsDropped |= current.blob;
+        byte[] newBuff = pool.take(buffer.length - current.entryLength());
         if (current.position > 0) {
             copy(buffer, 0, newBuff, 0, current.position);
         }
@@ -186,18 +1573,66 @@ public final class KVByteStorage implements KVStorage {
             copy(buffer, current.nextPosition(), newBuff, current.position, buffer.length - current.nextPosition());
         }
         entries.remove(current.getIndex());
-        if (entries.size() > current.getIndex()) {
-            ListIterator<ByteEntry> iterator = entries.listIterator(current.getIndex());
-            ByteEntry previous = null;
-            while (iterator.hasNext()) {
-                ByteEntry next = iterator.next();
-                if (previous == null) {
-                    iterator.set(previous = next.copyWithNewPosition(current.position));
-                } else {
-                    iterator.set(previous = next.copyWithNewPosition(previous.nextPosition()));
-                }
+        layoutVersion++;
+        entries.shift(current.getIndex(), -current.entryLength());
+        stampHeader(newBuff, StorageFormat.REMOVAL_SEQUENCE);
+        return newBuff;
+    }
+
+    @Override public void close() throws IOException {
+        closed = true;
+        ScheduledFuture<?> flush = scheduledFlush;
+        if (flush != null) {
+            flush.cancel(false);
+        }
+        flushCounters();
+        if (blobLog != null) {
+            blobLog.close();
+        }
+        if (byteStorage instanceof Closeable) {
+            ((Closeable) byteStorage).close();
+        }
+    }
+
+    private static final class Counter {
+        final AtomicLong value;
+        final int width;
+        volatile boolean dirty;
+        volatile boolean dropped;
+
+        Counter(long value, int width) {
+            this.value = new AtomicLong(value);
+            this.width = width;
+        }
+
+        byte[] encode() {
+            byte[] out = new byte[width];
+            if (width == 4) {
+                writeInt(out, 0, (int) value.get());
+            } else {
+                writeLong(out, 0, value.get());
             }
+            return out;
         }
-        return newBuff;
+    }
+
+    //cancelled flushes leave the queue, so it doesn't keep closed stores
+    private static final class FlushScheduler {
+        static final ScheduledThreadPoolExecutor INSTANCE = newScheduler();
+
+        private static ScheduledThreadPoolExecutor newScheduler() {
+            ScheduledThreadPoolExecutor executor =
+                    new ScheduledThreadPoolExecutor(1, Threads.daemon("kvstorage-flusher"));
+            executor.setRemoveOnCancelPolicy(true);
+            return executor;
+        }
+    }
+
+    private interface Mutation {
+        byte[] apply(byte[] buffer);
+    }
+
+    interface ValueWriter {
+        void write(byte[] dest, int offset) throws IOException;
     }
 }
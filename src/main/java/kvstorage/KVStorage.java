@@ -1,21 +1,115 @@
 package kvstorage;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.BinaryOperator;
+import java.util.function.UnaryOperator;
 
-public interface KVStorage {
+public interface KVStorage extends Closeable {
 
     byte[] get(byte[] key) throws IOException;
 
+    default byte[] get(Key key) throws IOException {
+        return get(key.bytes);
+    }
+
+    default <T> T getObject(byte[] key, Codec<T> codec) throws IOException {
+        byte[] value = get(key);
+        return value != null ? ByteUtils.decode(codec, value, 0, value.length) : null;
+    }
+
+    void getAll(byte[][] keys, byte[][] values) throws IOException;
+
+    default byte[][] getAll(byte[]... keys) throws IOException {
+        byte[][] values = new byte[keys.length][];
+        getAll(keys, values);
+        return values;
+    }
+
+    //the stream holds the value it was opened on until closed
+    InputStream openValue(byte[] key) throws IOException;
+
     byte[] snapshot() throws IOException;
 
+    void snapshotTo(OutputStream out) throws IOException;
+
+    default void snapshotTo(WritableByteChannel channel) throws IOException {
+        snapshotTo(Channels.newOutputStream(channel));
+    }
+
+    //the keys starting with the prefix, with the prefix cut off, as a snapshot in the format of the store
+    default void snapshotUnder(byte[] prefix, OutputStream out) throws IOException {
+        new KVByteStorage(new ByteStorage.StorageSnapshot(snapshot())).snapshotUnder(prefix, out);
+    }
+
+    void restoreFrom(InputStream in) throws IOException;
+
+    default void restoreFrom(ReadableByteChannel channel) throws IOException {
+        restoreFrom(Channels.newInputStream(channel));
+    }
+
+    //writes the changes after the since sequence and returns the sequence to pass next time, 0 exports everything
+    long exportSince(long since, OutputStream out) throws IOException;
+
+    //stores that don't track the deltas they applied take only full ones, exported since 0
+    long applyDelta(InputStream in) throws IOException;
+
     void put(byte[] key, byte[] value) throws IOException;
 
+    default void put(Key key, byte[] value) throws IOException {
+        put(key.bytes, value);
+    }
+
+    default <T> void putObject(byte[] key, T value, Codec<T> codec) throws IOException {
+        put(key, value != null ? ByteUtils.encode(codec, value) : null);
+    }
+
+    void put(byte[] key, InputStream value, int length) throws IOException;
+
     void put(KeyValue... keyValues) throws IOException;
 
     boolean remove(byte[] key) throws IOException;
 
+    //removes every key starting with the prefix in a single rewrite
+    boolean removeAll(byte[] prefix) throws IOException;
+
+    //keys starting with a zero byte are reserved for namespace prefixes. a namespace is only a key prefix,
+    //dropping it is a removeAll that scans every entry
+    default KVStorage namespace(String name) {
+        return new NamespaceStorage(this, NamespaceStorage.prefix(name));
+    }
+
+    default boolean dropNamespace(String name) throws IOException {
+        return removeAll(NamespaceStorage.prefix(name));
+    }
+
+    byte[] putIfAbsent(byte[] key, byte[] value) throws IOException;
+
+    boolean compareAndSet(byte[] key, byte[] expected, byte[] newValue) throws IOException;
+
+    byte[] computeIfPresent(byte[] key, UnaryOperator<byte[]> function) throws IOException;
+
+    byte[] merge(byte[] key, byte[] value, BinaryOperator<byte[]> function) throws IOException;
+
+    int incrementAndGet(byte[] key, int delta) throws IOException;
+
+    long incrementAndGet(byte[] key, long delta) throws IOException;
+
     void clear() throws IOException;
 
+    //with snapshotFirst the listener gets the current contents as one SNAPSHOT change before the next change
+    void addChangeListener(ChangeListener listener, boolean snapshotFirst) throws IOException;
+
+    void removeChangeListener(ChangeListener listener);
+
+    @Override default void close() throws IOException {
+    }
+
     final class KeyValue {
         final byte[] key;
         final byte[] value;
@@ -1,24 +1,46 @@
 package kvstorage;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BinaryOperator;
+import java.util.function.UnaryOperator;
 
-public class KVStorageAdapter extends Editor {
+public class KVStorageAdapter extends Editor<KVStorageAdapter> implements Closeable {
     private final KVStorage storage;
     private final ExceptionHandler exceptionHandler;
+    private final CommitExecutor commitExecutor;
+    private final boolean ownsCommitExecutor;
 
     public KVStorageAdapter(KVStorage storage) {
-        this(storage, ex -> {
-            throw new RuntimeException(ex);
-        });
+        this(storage, KVStorageAdapter::rethrow);
     }
 
     public KVStorageAdapter(KVStorage storage, ExceptionHandler exceptionHandler) {
+        this(storage, exceptionHandler, new CommitExecutor(), true);
+    }
+
+    //an adapter shuts down the commit executor it owns when closed, a shared one belongs to the factory
+    KVStorageAdapter(KVStorage storage, ExceptionHandler exceptionHandler, CommitExecutor commitExecutor,
+                     boolean ownsCommitExecutor) {
         if (storage == null) throw new IllegalArgumentException();
         if (exceptionHandler == null) throw new IllegalArgumentException();
         this.storage = storage;
         this.exceptionHandler = exceptionHandler;
+        this.commitExecutor = commitExecutor;
+        this.ownsCommitExecutor = ownsCommitExecutor;
+    }
+
+    static void rethrow(Exception ex) {
+        throw new RuntimeException(ex);
     }
 
     public final KVStorageAdapter snapshot() {
@@ -31,6 +53,65 @@ public class KVStorageAdapter extends Editor {
         }
     }
 
+    public final boolean snapshotTo(OutputStream out) {
+        try {
+            storage.snapshotTo(out);
+            return true;
+        } catch (Exception ex) {
+            exceptionHandler.handleException(ex);
+        }
+        return false;
+    }
+
+    public final boolean snapshotTo(WritableByteChannel channel) {
+        try {
+            storage.snapshotTo(channel);
+            return true;
+        } catch (Exception ex) {
+            exceptionHandler.handleException(ex);
+        }
+        return false;
+    }
+
+    public final boolean restoreFrom(InputStream in) {
+        try {
+            storage.restoreFrom(in);
+            return true;
+        } catch (Exception ex) {
+            exceptionHandler.handleException(ex);
+        }
+        return false;
+    }
+
+    public final boolean restoreFrom(ReadableByteChannel channel) {
+        try {
+            storage.restoreFrom(channel);
+            return true;
+        } catch (Exception ex) {
+            exceptionHandler.handleException(ex);
+        }
+        return false;
+    }
+
+    //returns the sequence for the next export, -1 if it failed
+    public final long exportSince(long since, OutputStream out) {
+        try {
+            return storage.exportSince(since, out);
+        } catch (Exception ex) {
+            exceptionHandler.handleException(ex);
+        }
+        return -1;
+    }
+
+    public final long applyDelta(InputStream in) {
+        try {
+            return storage.applyDelta(in);
+        } catch (Exception ex) {
+            exceptionHandler.handleException(ex);
+        }
+        return -1;
+    }
+
     public final boolean getBoolean(String key) {
         return getBoolean(key, false);
     }
@@ -85,8 +166,132 @@ public class KVStorageAdapter extends Editor {
         return getValueSafe(key);
     }
 
+    public final boolean getBoolean(Key key) {
+        return getBoolean(key, false);
+    }
+
+    public final boolean getBoolean(Key key, boolean defValue) {
+        byte[] value = getValueSafe(key);
+        if (value == null) return defValue;
+        return ByteUtils.readBoolean(value, 0);
+    }
+
+    public final int getInt(Key key) {
+        return getInt(key, 0);
+    }
+
+    public final int getInt(Key key, int defValue) {
+        byte[] value = getValueSafe(key);
+        if (value == null) return defValue;
+        return ByteUtils.readInt(value, 0);
+    }
+
+    public final long getLong(Key key) {
+        return getLong(key, 0);
+    }
+
+    public final long getLong(Key key, long defValue) {
+        byte[] value = getValueSafe(key);
+        if (value == null) return defValue;
+        return ByteUtils.readLong(value, 0);
+    }
+
+    public final double getDouble(Key key) {
+        return getDouble(key, 0);
+    }
+
+    public final double getDouble(Key key, double defValue) {
+        byte[] value = getValueSafe(key);
+        if (value == null) return defValue;
+        return ByteUtils.readDouble(value, 0);
+    }
+
+    public final String getString(Key key) {
+        byte[] value = getValueSafe(key);
+        if (value == null) return null;
+        return decodeValue(value);
+    }
+
+    public final byte[] getBytes(Key key) {
+        return getValueSafe(key);
+    }
+
+    public final <T> T getObject(String key, Codec<T> codec) {
+        return getObject(encodeKey(key), codec);
+    }
+
+    public final <T> T getObject(Key key, Codec<T> codec) {
+        return getObject(key.bytes, codec);
+    }
+
+    public final <T> T getObject(byte[] key, Codec<T> codec) {
+        try {
+            return storage.getObject(checkKey(key), codec);
+        } catch (Exception e) {
+            exceptionHandler.handleException(e);
+        }
+        return null;
+    }
+
+    public final byte[][] getAll(String... keys) {
+        byte[][] encoded = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            encoded[i] = encodeKey(keys[i]);
+        }
+        byte[][] values = new byte[keys.length][];
+        getAll(encoded, values);
+        return values;
+    }
+
+    public final String[] getStrings(String... keys) {
+        byte[][] values = getAll(keys);
+        String[] result = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                result[i] = decodeValue(values[i]);
+            }
+        }
+        return result;
+    }
+
+    public final boolean getAll(byte[][] keys, byte[][] values) {
+        try {
+            for (byte[] key : keys) {
+                checkKey(key);
+            }
+            storage.getAll(keys, values);
+            return true;
+        } catch (Exception e) {
+            exceptionHandler.handleException(e);
+        }
+        return false;
+    }
+
+    public final InputStream openValue(String key) {
+        return openValue(encodeKey(key));
+    }
+
+    public final InputStream openValue(byte[] key) {
+        try {
+            return storage.openValue(checkKey(key));
+        } catch (Exception e) {
+            exceptionHandler.handleException(e);
+        }
+        return null;
+    }
+
     private byte[] getValueSafe(byte[] key) {
         try {
+            return storage.get(checkKey(key));
+        } catch (Exception e) {
+            exceptionHandler.handleException(e);
+        }
+        return null;
+    }
+
+    private byte[] getValueSafe(Key key) {
+        try {
+            checkKey(key.bytes);
             return storage.get(key);
         } catch (Exception e) {
             exceptionHandler.handleException(e);
@@ -94,8 +299,18 @@ public class KVStorageAdapter extends Editor {
         return null;
     }
 
-    @Override public Editor put(byte[] key, byte[] value) {
+    @Override public <V> KVStorageAdapter putObject(byte[] key, V value, Codec<V> codec) {
+        try {
+            storage.putObject(checkKey(key), value, codec);
+        } catch (Exception e) {
+            exceptionHandler.handleException(e);
+        }
+        return this;
+    }
+
+    @Override public KVStorageAdapter put(Key key, byte[] value) {
         try {
+            checkKey(key.bytes);
             storage.put(key, value);
         } catch (Exception e) {
             exceptionHandler.handleException(e);
@@ -103,16 +318,108 @@ public class KVStorageAdapter extends Editor {
         return this;
     }
 
-    @Override public Editor remove(byte[] key) {
+    @Override public KVStorageAdapter put(byte[] key, byte[] value) {
+        try {
+            storage.put(checkKey(key), value);
+        } catch (Exception e) {
+            exceptionHandler.handleException(e);
+        }
+        return this;
+    }
+
+    public final KVStorageAdapter put(String key, InputStream value, int length) {
+        return put(encodeKey(key), value, length);
+    }
+
+    public final KVStorageAdapter put(byte[] key, InputStream value, int length) {
+        try {
+            storage.put(checkKey(key), value, length);
+        } catch (Exception e) {
+            exceptionHandler.handleException(e);
+        }
+        return this;
+    }
+
+    @Override public KVStorageAdapter remove(byte[] key) {
         try {
-            storage.remove(key);
+            storage.remove(checkKey(key));
         } catch (Exception e) {
             exceptionHandler.handleException(e);
         }
         return this;
     }
 
-    public final Editor clear() {
+    public final boolean putIfAbsent(String key, byte[] value) {
+        return putIfAbsent(encodeKey(key), value);
+    }
+
+    public final boolean putIfAbsent(byte[] key, byte[] value) {
+        try {
+            return storage.putIfAbsent(checkKey(key), value) == null;
+        } catch (Exception e) {
+            exceptionHandler.handleException(e);
+        }
+        return false;
+    }
+
+    public final boolean compareAndSet(String key, byte[] expected, byte[] newValue) {
+        return compareAndSet(encodeKey(key), expected, newValue);
+    }
+
+    public final boolean compareAndSet(byte[] key, byte[] expected, byte[] newValue) {
+        try {
+            return storage.compareAndSet(checkKey(key), expected, newValue);
+        } catch (Exception e) {
+            exceptionHandler.handleException(e);
+        }
+        return false;
+    }
+
+    public final byte[] computeIfPresent(String key, UnaryOperator<byte[]> function) {
+        return computeIfPresent(encodeKey(key), function);
+    }
+
+    public final byte[] computeIfPresent(byte[] key, UnaryOperator<byte[]> function) {
+        try {
+            return storage.computeIfPresent(checkKey(key), function);
+        } catch (Exception e) {
+            exceptionHandler.handleException(e);
+        }
+        return null;
+    }
+
+    public final byte[] merge(String key, byte[] value, BinaryOperator<byte[]> function) {
+        return merge(encodeKey(key), value, function);
+    }
+
+    public final byte[] merge(byte[] key, byte[] value, BinaryOperator<byte[]> function) {
+        try {
+            return storage.merge(checkKey(key), value, function);
+        } catch (Exception e) {
+            exceptionHandler.handleException(e);
+        }
+        return null;
+    }
+
+    public final int incrementAndGet(String key, int delta) {
+        try {
+            return storage.incrementAndGet(checkKey(encodeKey(key)), delta);
+        } catch (Exception e) {
+            exceptionHandler.handleException(e);
+        }
+        return 0;
+    }
+
+    public final long incrementAndGet(String key, long delta) {
+        try {
+            return storage.incrementAndGet(checkKey(encodeKey(key)), delta);
+        } catch (Exception e) {
+            exceptionHandler.handleException(e);
+        }
+        return 0;
+    }
+
+    public final KVStorageAdapter clear() {
         try {
             storage.clear();
         } catch (Exception e) {
@@ -121,31 +428,114 @@ public class KVStorageAdapter extends Editor {
         return this;
     }
 
+    @Override public final void close() {
+        if (ownsCommitExecutor) {
+            commitExecutor.shutdown();
+        }
+        try {
+            storage.close();
+        } catch (Exception e) {
+            exceptionHandler.handleException(e);
+        }
+    }
+
+    //the namespace adapter shares the store and the exception handler, closing it leaves the store open
+    public final KVStorageAdapter namespace(String name) {
+        return new KVStorageAdapter(storage.namespace(name), exceptionHandler, commitExecutor, false);
+    }
+
+    public final boolean dropNamespace(String name) {
+        try {
+            return storage.dropNamespace(name);
+        } catch (Exception e) {
+            exceptionHandler.handleException(e);
+        }
+        return false;
+    }
+
+    public final boolean addChangeListener(ChangeListener listener, boolean snapshotFirst) {
+        try {
+            storage.addChangeListener(listener, snapshotFirst);
+            return true;
+        } catch (Exception e) {
+            exceptionHandler.handleException(e);
+        }
+        return false;
+    }
+
+    public final void removeChangeListener(ChangeListener listener) {
+        storage.removeChangeListener(listener);
+    }
+
     public final BulkEditor bulkInsert() {
         return new BulkEditor();
     }
 
     public class BulkEditor extends Editor<BulkEditor> {
-        List<KVStorage.KeyValue> list = new ArrayList<>(4);
+        //one operation per key, a later put or remove replaces the earlier one. keys are copied, the caller may
+        //reuse its array before the commit
+        private Map<ByteBuffer, KVStorage.KeyValue> operations = new LinkedHashMap<>();
 
         @Override public BulkEditor put(byte[] key, byte[] value) {
-            list.add(new KVStorage.KeyValue(key, value));
+            byte[] copy = checkKey(key).clone();
+            operations.put(ByteBuffer.wrap(copy), new KVStorage.KeyValue(copy, value));
             return this;
         }
 
         @Override public BulkEditor remove(byte[] key) {
-            list.add(new KVStorage.KeyValue(key, null));
+            byte[] copy = checkKey(key).clone();
+            operations.put(ByteBuffer.wrap(copy), new KVStorage.KeyValue(copy, null));
             return this;
         }
 
+        public final BulkEditor reserve(int count) {
+            if (count < 0) throw new IllegalArgumentException("count " + count);
+            Map<ByteBuffer, KVStorage.KeyValue> resized = new LinkedHashMap<>((int) (count / 0.75f) + 1);
+            resized.putAll(operations);
+            operations = resized;
+            return this;
+        }
+
+        public final int size() {
+            return operations.size();
+        }
+
         public final boolean commit() {
             try {
-                storage.put(list.toArray(new KVStorage.KeyValue[list.size()]));
+                storage.put(batch());
                 return true;
             } catch (IOException e) {
                 exceptionHandler.handleException(e);
             }
             return false;
         }
+
+        //the batch is taken now, commits run one after another on the commit thread of the factory, or of the
+        //adapter when it was created directly
+        public final CompletableFuture<Boolean> commitAsync() {
+            KVStorage.KeyValue[] batch = batch();
+            try {
+                return CompletableFuture.supplyAsync(() -> {
+                    try {
+                        storage.put(batch);
+                        return true;
+                    } catch (IOException e) {
+                        exceptionHandler.handleException(e);
+                    }
+                    return false;
+                }, commitExecutor);
+            } catch (RejectedExecutionException e) {
+                exceptionHandler.handleException(e);
+            }
+            return CompletableFuture.completedFuture(false);
+        }
+
+        private KVStorage.KeyValue[] batch() {
+            return operations.values().toArray(new KVStorage.KeyValue[operations.size()]);
+        }
+    }
+
+    private static byte[] checkKey(byte[] key) {
+        return NamespaceStorage.checkKey(key);
     }
 }
@@ -0,0 +1,57 @@
+package kvstorage;
+
+import java.util.Arrays;
+
+//encoded once with its hash, meant to be kept in a static field for keys used on hot paths
+public final class Key {
+    final byte[] bytes;
+    final long hash;
+    volatile Slot slot;
+
+    private Key(byte[] bytes) {
+        if (bytes.length == 0) throw new IllegalArgumentException("zero key length");
+        if (bytes.length > ByteEntry.KEY_MAX_LENGTH)
+            throw new IllegalArgumentException("key length > " + ByteEntry.KEY_MAX_LENGTH);
+        this.bytes = bytes;
+        this.hash = ByteUtils.hash(bytes);
+    }
+
+    public static Key of(String key) {
+        return new Key(ByteUtils.encodeString(key));
+    }
+
+    public static Key of(byte[] key) {
+        return new Key(key.clone());
+    }
+
+    public byte[] toByteArray() {
+        return bytes.clone();
+    }
+
+    @Override public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Key)) return false;
+        return Arrays.equals(bytes, ((Key) o).bytes);
+    }
+
+    @Override public int hashCode() {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override public String toString() {
+        return ByteUtils.decodeString(bytes);
+    }
+
+    //index of the key in a store's entry list, valid while the store's layout version is unchanged
+    static final class Slot {
+        final Object owner;
+        final long version;
+        final int index;
+
+        Slot(Object owner, long version, int index) {
+            this.owner = owner;
+            this.version = version;
+            this.index = index;
+        }
+    }
+}
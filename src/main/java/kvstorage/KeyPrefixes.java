@@ -0,0 +1,85 @@
+package kvstorage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static kvstorage.ByteUtils.*;
+
+final class KeyPrefixes {
+    static final int MAX_PREFIXES = Short.MAX_VALUE;
+
+    private final byte delimiter;
+    private final int depth;
+    private final List<byte[]> prefixes = new ArrayList<>();
+    private final List<Long> hashes = new ArrayList<>();
+    private final Map<Long, Integer> ids = new HashMap<>();
+
+    KeyPrefixes(byte delimiter, int depth) {
+        this.delimiter = delimiter;
+        this.depth = depth;
+    }
+
+    //a prefix is never the whole key
+    int prefixLength(byte[] key) {
+        if (depth == 0) {
+            for (int i = key.length - 2; i > 0; i--) {
+                if (key[i] == delimiter) return i + 1;
+            }
+            return 0;
+        }
+        int found = 0;
+        for (int i = 1; i < key.length - 1; i++) {
+            if (key[i] == delimiter && ++found == depth) return i + 1;
+        }
+        return 0;
+    }
+
+    int find(byte[] key, int length, long hash) {
+        Integer id = ids.get(hash);
+        if (id == null) return 0;
+        byte[] prefix = prefixes.get(id - 1);
+        if (prefix.length == length && startsWith(key, prefix)) return id;
+        return -1;//hash collision, key stays uncompressed
+    }
+
+    int lookup(byte[] key) {
+        int length = prefixLength(key);
+        if (length == 0) return 0;
+        return Math.max(0, find(key, length, ByteUtils.hash(1, key, 0, length)));
+    }
+
+    int assign(byte[] key) {
+        int length = prefixLength(key);
+        if (length == 0) return 0;
+        long hash = ByteUtils.hash(1, key, 0, length);
+        int id = find(key, length, hash);
+        if (id > 0) return id;
+        if (id < 0 || prefixes.size() >= MAX_PREFIXES) return 0;//the key is written whole
+        return -add(subArray(key, 0, length), hash);//new prefix, definition must be written
+    }
+
+    int add(byte[] prefix, long hash) {
+        prefixes.add(prefix);
+        hashes.add(hash);
+        ids.put(hash, prefixes.size());
+        return prefixes.size();
+    }
+
+    byte[] get(int id) {
+        return prefixes.get(id - 1);
+    }
+
+    long hash(int id) {
+        return hashes.get(id - 1);
+    }
+
+    int length(int id) {
+        return id == 0 ? 0 : prefixes.get(id - 1).length;
+    }
+
+    int size() {
+        return prefixes.size();
+    }
+}
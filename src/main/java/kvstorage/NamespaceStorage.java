@@ -0,0 +1,277 @@
+package kvstorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.function.BinaryOperator;
+import java.util.function.UnaryOperator;
+
+import static kvstorage.ByteUtils.startsWith;
+
+//view of the keys under one namespace prefix \0 name \0. keys starting with a zero byte are reserved for the
+//prefixes, so they are rejected here and by KVStorageAdapter. there's no index of the keys per namespace, clear,
+//dropNamespace and snapshot scan all entries of the store
+final class NamespaceStorage implements KVStorage {
+    private static final byte MARK = 0;
+
+    private final KVStorage storage;
+    private final byte[] prefix;
+
+    NamespaceStorage(KVStorage storage, byte[] prefix) {
+        this.storage = storage;
+        this.prefix = prefix;
+    }
+
+    static byte[] prefix(String name) {
+        if (name == null || name.isEmpty()) throw new IllegalArgumentException("empty namespace name");
+        if (name.indexOf('\0') >= 0) throw new IllegalArgumentException("namespace name contains \\0");
+        byte[] encoded = ByteUtils.encodeString(name);
+        byte[] result = new byte[encoded.length + 2];
+        result[0] = MARK;
+        ByteUtils.fill(encoded, result, 1);
+        result[result.length - 1] = MARK;
+        return result;
+    }
+
+    static byte[] checkKey(byte[] key) {
+        if (key.length > 0 && key[0] == MARK) throw new IllegalArgumentException("key starts with \\0");
+        return key;
+    }
+
+    private byte[] key(byte[] key) {
+        if (key.length == 0) throw new IllegalArgumentException("zero key length");
+        return prefixed(checkKey(key));
+    }
+
+    private byte[] prefixed(byte[] key) {
+        byte[] result = new byte[prefix.length + key.length];
+        ByteUtils.fill(prefix, result, 0);
+        ByteUtils.fill(key, result, prefix.length);
+        return result;
+    }
+
+    @Override public byte[] get(byte[] key) throws IOException {
+        return storage.get(key(key));
+    }
+
+    @Override public byte[] get(Key key) throws IOException {
+        return storage.get(key(key.bytes));
+    }
+
+    @Override public <T> T getObject(byte[] key, Codec<T> codec) throws IOException {
+        return storage.getObject(key(key), codec);
+    }
+
+    @Override public void getAll(byte[][] keys, byte[][] values) throws IOException {
+        byte[][] prefixed = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            prefixed[i] = key(keys[i]);
+        }
+        storage.getAll(prefixed, values);
+    }
+
+    @Override public InputStream openValue(byte[] key) throws IOException {
+        return storage.openValue(key(key));
+    }
+
+    //the keys of the namespace and its nested namespaces, without the prefix, in the format of the store
+    @Override public byte[] snapshot() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        snapshotTo(out);
+        return out.toByteArray();
+    }
+
+    @Override public void snapshotTo(OutputStream out) throws IOException {
+        storage.snapshotUnder(prefix, out);
+    }
+
+    @Override public void snapshotUnder(byte[] keyPrefix, OutputStream out) throws IOException {
+        storage.snapshotUnder(prefixed(checkKey(keyPrefix)), out);
+    }
+
+    //replaces the keys of the namespace with a removal and one batch of puts, readers can see the namespace empty
+    //in between
+    @Override public void restoreFrom(InputStream in) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            data.write(chunk, 0, read);
+        }
+        KeyValue[] restored = snapshotOf(data.toByteArray()).entriesUnder(new byte[0]);
+        for (int i = 0; i < restored.length; i++) {
+            restored[i] = new KeyValue(prefixed(restored[i].key), restored[i].value);
+        }
+        storage.removeAll(prefix);
+        storage.put(restored);
+    }
+
+    //the changes of the parent since then that fall under the namespace, with the keys of the namespace
+    @Override public long exportSince(long since, OutputStream out) throws IOException {
+        ByteArrayOutputStream parent = new ByteArrayOutputStream();
+        storage.exportSince(since, parent);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(parent.toByteArray()));
+        if (in.readLong() != ChangeFeed.DELTA_MAGIC) throw new IOException("not a delta");
+        long parentSince = in.readLong();
+        long upTo = in.readLong();
+        DataOutputStream delta = ChangeFeed.beginDelta(out, parentSince, upTo);
+        Change change;
+        while ((change = ChangeFeed.read(in)) != null) {
+            Change scoped = scoped(change);
+            if (scoped != null) {
+                ChangeFeed.write(delta, scoped);
+            }
+        }
+        delta.flush();
+        return upTo;
+    }
+
+    //the namespace doesn't know which delta it applied last, so it takes only full ones
+    @Override public long applyDelta(InputStream in) throws IOException {
+        return ChangeFeed.applyDelta(this, in, -1);
+    }
+
+    @Override public void addChangeListener(ChangeListener listener, boolean snapshotFirst) throws IOException {
+        if (listener == null) throw new IllegalArgumentException("null listener");
+        storage.addChangeListener(new ScopedListener(listener), snapshotFirst);
+    }
+
+    @Override public void removeChangeListener(ChangeListener listener) {
+        storage.removeChangeListener(new ScopedListener(listener));
+    }
+
+    //null for changes outside the namespace. keys lose the prefix, and a removal of a shorter prefix that
+    //covers the namespace clears it
+    private Change scoped(Change change) throws IOException {
+        switch (change.type) {
+            case PUT:
+            case REMOVE:
+                return startsWith(change.key, prefix) ? new Change(change.sequence, change.type, strip(change.key),
+                        change.value) : null;
+            case REMOVE_ALL:
+                if (startsWith(prefix, change.key)) return new Change(change.sequence, Change.Type.CLEAR, null, null);
+                return startsWith(change.key, prefix) ? new Change(change.sequence, change.type, strip(change.key),
+                        null) : null;
+            case CLEAR:
+                return change;
+            default:
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                snapshotOf(change.value).snapshotUnder(prefix, out);
+                return new Change(change.sequence, change.type, null, out.toByteArray());
+        }
+    }
+
+    private byte[] strip(byte[] key) {
+        return Arrays.copyOfRange(key, prefix.length, key.length);
+    }
+
+    private static KVByteStorage snapshotOf(byte[] data) throws IOException {
+        return new KVByteStorage(new ByteStorage.StorageSnapshot(data));
+    }
+
+    @Override public void put(byte[] key, byte[] value) throws IOException {
+        storage.put(key(key), value);
+    }
+
+    @Override public void put(Key key, byte[] value) throws IOException {
+        storage.put(key(key.bytes), value);
+    }
+
+    @Override public <T> void putObject(byte[] key, T value, Codec<T> codec) throws IOException {
+        storage.putObject(key(key), value, codec);
+    }
+
+    @Override public void put(byte[] key, InputStream value, int length) throws IOException {
+        storage.put(key(key), value, length);
+    }
+
+    @Override public void put(KeyValue... keyValues) throws IOException {
+        KeyValue[] prefixed = new KeyValue[keyValues.length];
+        for (int i = 0; i < keyValues.length; i++) {
+            prefixed[i] = new KeyValue(key(keyValues[i].key), keyValues[i].value);
+        }
+        storage.put(prefixed);
+    }
+
+    @Override public boolean remove(byte[] key) throws IOException {
+        return storage.remove(key(key));
+    }
+
+    @Override public boolean removeAll(byte[] keyPrefix) throws IOException {
+        return storage.removeAll(key(keyPrefix));
+    }
+
+    @Override public byte[] putIfAbsent(byte[] key, byte[] value) throws IOException {
+        return storage.putIfAbsent(key(key), value);
+    }
+
+    @Override public boolean compareAndSet(byte[] key, byte[] expected, byte[] newValue) throws IOException {
+        return storage.compareAndSet(key(key), expected, newValue);
+    }
+
+    @Override public byte[] computeIfPresent(byte[] key, UnaryOperator<byte[]> function) throws IOException {
+        return storage.computeIfPresent(key(key), function);
+    }
+
+    @Override public byte[] merge(byte[] key, byte[] value, BinaryOperator<byte[]> function) throws IOException {
+        return storage.merge(key(key), value, function);
+    }
+
+    @Override public int incrementAndGet(byte[] key, int delta) throws IOException {
+        return storage.incrementAndGet(key(key), delta);
+    }
+
+    @Override public long incrementAndGet(byte[] key, long delta) throws IOException {
+        return storage.incrementAndGet(key(key), delta);
+    }
+
+    //nested namespaces extend this prefix
+    @Override public KVStorage namespace(String name) {
+        return new NamespaceStorage(storage, prefixed(prefix(name)));
+    }
+
+    @Override public boolean dropNamespace(String name) throws IOException {
+        return storage.removeAll(prefixed(prefix(name)));
+    }
+
+    @Override public void clear() throws IOException {
+        storage.removeAll(prefix);
+    }
+
+    //equal for the same listener and namespace, so removing it finds the registered one
+    private final class ScopedListener implements ChangeListener {
+        final ChangeListener listener;
+        final byte[] scope = prefix;
+
+        ScopedListener(ChangeListener listener) {
+            this.listener = listener;
+        }
+
+        @Override public void onChange(Change change) {
+            Change scoped;
+            try {
+                scoped = scoped(change);
+            } catch (IOException ex) {
+                throw new IllegalStateException("corrupted snapshot", ex);
+            }
+            if (scoped != null) {
+                listener.onChange(scoped);
+            }
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof ScopedListener)) return false;
+            ScopedListener other = (ScopedListener) o;
+            return listener.equals(other.listener) && Arrays.equals(scope, other.scope);
+        }
+
+        @Override public int hashCode() {
+            return 31 * listener.hashCode() + Arrays.hashCode(scope);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package kvstorage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static kvstorage.ByteUtils.*;
+
+final class RecordWriter {
+    private final StorageFormat format;
+    private final KeyPrefixes prefixes;
+    private final OutputStream out;
+    private final byte[] header = new byte[StorageFormat.MAX_ENTRY_HEADER_LENGTH];
+    private long position;
+
+    RecordWriter(StorageFormat format, OutputStream out) throws IOException {
+        this(format, out, format.newBuffer());
+    }
+
+    //the file header may carry sequences of the store that is written
+    RecordWriter(StorageFormat format, OutputStream out, byte[] fileHeader) throws IOException {
+        this.format = format;
+        this.prefixes = format.keyPrefixes() ? new KeyPrefixes(format.keyDelimiter, format.prefixDepth) : null;
+        this.out = out;
+        out.write(fileHeader);
+        position = fileHeader.length;
+    }
+
+    void write(byte[] key, byte[] value) throws IOException {
+        write(key, value, 0, value.length, 0);
+    }
+
+    void write(byte[] key, byte[] value, long sequence) throws IOException {
+        write(key, value, 0, value.length, sequence);
+    }
+
+    void write(byte[] key, byte[] value, int valueOffset, int valueLength) throws IOException {
+        write(key, value, valueOffset, valueLength, 0);
+    }
+
+    void write(byte[] key, byte[] value, int valueOffset, int valueLength, long sequence) throws IOException {
+        int prefix = prefixes != null ? prefixes.assign(key) : 0;
+        if (prefix < 0) {
+            byte[] prefixBytes = prefixes.get(-prefix);
+            writeRecord(format.newEntry(0, hash(prefixBytes), prefix, prefixBytes.length, 0), prefixBytes, 0, 0,
+                    prefixBytes, 0);
+            prefix = -prefix;
+        }
+        int offset = prefixes != null ? prefixes.length(prefix) : 0;
+        writeRecord(format.newEntry(0, hash(key), prefix, key.length - offset, valueLength), key, offset, sequence,
+                value, valueOffset);
+    }
+
+    private void writeRecord(ByteEntry entry, byte[] key, int keyOffset, long sequence, byte[] value,
+                             int valueOffset) throws IOException {
+        int length = format.writeEntry(header, 0, entry, sequence);
+        if (format.checksums()) {
+            int at = format.checksumPosition(length);
+            Crc32c checksum = new Crc32c();
+            checksum.update(header, 0, at);
+            checksum.update(header, at + StorageFormat.CHECKSUM_LENGTH, length - at - StorageFormat.CHECKSUM_LENGTH);
+            checksum.update(key, keyOffset, entry.keyLength);
+            checksum.update(value, valueOffset, entry.valueLength);
+            writeInt(header, at, (int) checksum.getValue());
+        }
+        out.write(header, 0, length);
+        out.write(key, keyOffset, entry.keyLength);
+        out.write(value, valueOffset, entry.valueLength);
+        position += length + entry.keyLength + entry.valueLength;
+    }
+
+    long position() {
+        return position;
+    }
+}
@@ -0,0 +1,245 @@
+package kvstorage;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Stream;
+
+public final class StorageBuilder {
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private StorageFormat format = StorageFormat.LEGACY;
+    private StreamWrapper streamWrapper;
+    private long memoryLimit = 64L * 1024 * 1024;
+
+    public StorageBuilder(File file) {
+        if (file == null) throw new IllegalArgumentException();
+        this.file = file;
+    }
+
+    public StorageBuilder setStorageFormat(StorageFormat format) {
+        if (format == null) throw new IllegalArgumentException();
+        this.format = format;
+        return this;
+    }
+
+    public StorageBuilder setStreamWrapper(StreamWrapper wrapper) {
+        streamWrapper = wrapper;
+        return this;
+    }
+
+    public StorageBuilder setMemoryLimit(long bytes) {
+        if (bytes <= 0) throw new IllegalArgumentException("memoryLimit " + bytes);
+        memoryLimit = bytes;
+        return this;
+    }
+
+    public void build(Stream<KVStorage.KeyValue> input) throws IOException {
+        build(input.iterator());
+    }
+
+    public void build(Iterator<KVStorage.KeyValue> input) throws IOException {
+        List<File> runs = new ArrayList<>();
+        try {
+            List<KVStorage.KeyValue> run = new ArrayList<>();
+            long runSize = 0;
+            while (input.hasNext()) {
+                KVStorage.KeyValue kv = input.next();
+                checkKey(kv.key);
+                run.add(kv);
+                runSize += kv.key.length + (kv.value != null ? kv.value.length : 0) + ENTRY_OVERHEAD;
+                if (runSize >= memoryLimit) {
+                    runs.add(spill(sortRun(run)));
+                    run = new ArrayList<>();
+                    runSize = 0;
+                }
+            }
+            if (runs.isEmpty()) {
+                writeStorage(sortRun(run).iterator());
+            } else {
+                if (!run.isEmpty()) {
+                    runs.add(spill(sortRun(run)));
+                }
+                List<RunReader> readers = new ArrayList<>(runs.size());
+                try {
+                    for (File runFile : runs) {
+                        readers.add(new RunReader(runFile, readers.size()));
+                    }
+                    writeStorage(new MergeIterator(readers));
+                } catch (UncheckedIOException ex) {
+                    throw ex.getCause();
+                } finally {
+                    for (RunReader reader : readers) {
+                        closeQuietly(reader);
+                    }
+                }
+            }
+        } finally {
+            for (File run : runs) {
+                run.delete();
+            }
+        }
+    }
+
+    private static void checkKey(byte[] key) {
+        if (key.length == 0) throw new IllegalArgumentException("zero key length");
+        if (key.length > ByteEntry.KEY_MAX_LENGTH)
+            throw new IllegalArgumentException("key length > " + ByteEntry.KEY_MAX_LENGTH);
+    }
+
+    //stable sort keeps input order for equal keys, so the last write wins
+    private static List<KVStorage.KeyValue> sortRun(List<KVStorage.KeyValue> run) {
+        run.sort((kv1, kv2) -> ByteUtils.compare(kv1.key, kv2.key));
+        List<KVStorage.KeyValue> result = new ArrayList<>(run.size());
+        for (int i = 0; i < run.size(); i++) {
+            if (i + 1 < run.size() && ByteUtils.equals(run.get(i).key, run.get(i + 1).key)) continue;
+            result.add(run.get(i));
+        }
+        return result;
+    }
+
+    private File spill(List<KVStorage.KeyValue> run) throws IOException {
+        File runFile = File.createTempFile(file.getName(), ".run", file.getAbsoluteFile().getParentFile());
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(runFile), IO_BUFFER_SIZE))) {
+            for (KVStorage.KeyValue kv : run) {
+                out.writeInt(kv.key.length);
+                out.writeInt(kv.value != null ? kv.value.length : -1);
+                out.write(kv.key);
+                if (kv.value != null) {
+                    out.write(kv.value);
+                }
+            }
+        } catch (IOException ex) {
+            runFile.delete();
+            throw ex;
+        }
+        return runFile;
+    }
+
+    private void writeStorage(Iterator<KVStorage.KeyValue> sorted) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        File tmpFile = File.createTempFile(file.getName(), ".t", directory);
+        try {
+            try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                OutputStream stream = new BufferedOutputStream(new ChannelOutputStream(channel), IO_BUFFER_SIZE);
+                if (streamWrapper != null) {
+                    stream = streamWrapper.output(stream);
+                }
+                RecordWriter writer = new RecordWriter(format, stream);
+                while (sorted.hasNext()) {
+                    KVStorage.KeyValue kv = sorted.next();
+                    if (kv.value == null) continue;
+                    writer.write(kv.key, kv.value);
+                    if (writer.position() > Integer.MAX_VALUE)
+                        throw new IOException("storage too large " + writer.position());
+                }
+                stream.close();//flushes wrapper trailers, the channel stays open
+                channel.force(true);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final class ChannelOutputStream extends OutputStream {
+        private final OutputStream out;
+
+        ChannelOutputStream(FileChannel channel) {
+            this.out = Channels.newOutputStream(channel);
+        }
+
+        @Override public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+    }
+
+    private static final class RunReader implements Closeable {
+        final int order;
+        final DataInputStream in;
+        KVStorage.KeyValue current;
+
+        RunReader(File run, int order) throws IOException {
+            this.order = order;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), IO_BUFFER_SIZE));
+        }
+
+        boolean advance() throws IOException {
+            int keyLength;
+            try {
+                keyLength = in.readInt();
+            } catch (EOFException ex) {
+                current = null;
+                return false;
+            }
+            int valueLength = in.readInt();
+            byte[] key = new byte[keyLength];
+            in.readFully(key);
+            byte[] value = null;
+            if (valueLength >= 0) {
+                value = new byte[valueLength];
+                in.readFully(value);
+            }
+            current = new KVStorage.KeyValue(key, value);
+            return true;
+        }
+
+        @Override public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    //later runs hold later writes, so for equal keys the highest order wins
+    private static final class MergeIterator implements Iterator<KVStorage.KeyValue> {
+        private final PriorityQueue<RunReader> queue = new PriorityQueue<>((r1, r2) -> {
+            int result = ByteUtils.compare(r1.current.key, r2.current.key);
+            return result != 0 ? result : r2.order - r1.order;
+        });
+
+        MergeIterator(List<RunReader> readers) throws IOException {
+            for (RunReader reader : readers) {
+                if (reader.advance()) queue.add(reader);
+            }
+        }
+
+        @Override public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override public KVStorage.KeyValue next() {
+            if (queue.isEmpty()) throw new NoSuchElementException();
+            try {
+                RunReader reader = queue.poll();
+                KVStorage.KeyValue result = reader.current;
+                if (reader.advance()) queue.add(reader);
+                while (!queue.isEmpty() && ByteUtils.equals(queue.peek().current.key, result.key)) {
+                    RunReader stale = queue.poll();
+                    if (stale.advance()) queue.add(stale);
+                }
+                return result;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+}
@@ -2,11 +2,40 @@ package kvstorage;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BinaryOperator;
+import java.util.function.UnaryOperator;
 
 public class StorageFactory {
+    private final Map<String, StorageProxy> storages = new HashMap<>();
+
     private ExceptionHandler exceptionHandler;
     private StreamWrapper streamWrapper;
     private boolean strictWriteMode;
+    private StorageFormat storageFormat;
+    private int blobThreshold;
+    private long counterFlushMillis;
+    private boolean doubleFileMode;
+    private int frameSize;
+    private boolean prewarm;
+    private int loadParallelism = Runtime.getRuntime().availableProcessors();
+    private final CommitExecutor commitExecutor = new CommitExecutor();
+    private ExecutorService loadExecutor;
+    private WriteScheduler writeScheduler;
+    private boolean shutdown;
 
     public StorageFactory setDafaultExceptionHandler(ExceptionHandler handler) {
         exceptionHandler = handler;
@@ -18,15 +47,223 @@ public class StorageFactory {
         return this;
     }
 
+    //the stream wrapper is applied to frames of this size in parallel, unchanged frames are reused on write;
+    //0 wraps the whole file as one stream
+    public StorageFactory setFrameSize(int bytes) {
+        if (bytes < 0) throw new IllegalArgumentException("frame size " + bytes);
+        frameSize = bytes;
+        return this;
+    }
+
     public StorageFactory setStrictWriteMode(boolean strictWrite) {
         strictWriteMode = strictWrite;
         return this;
     }
 
+    //writes alternate between two preallocated slot files instead of a temp file and rename per write
+    public StorageFactory setDoubleFileMode(boolean doubleFile) {
+        doubleFileMode = doubleFile;
+        return this;
+    }
+
+    public StorageFactory setStorageFormat(StorageFormat format) {
+        storageFormat = format;
+        return this;
+    }
+
+    //values of at least this many bytes are kept in append-only blob files next to the storage, 0 disables
+    public StorageFactory setBlobThreshold(int bytes) {
+        if (bytes < 0) throw new IllegalArgumentException("blobThreshold " + bytes);
+        blobThreshold = bytes;
+        return this;
+    }
+
+    //0 by default, every increment is written before incrementAndGet returns. with an interval the increments in
+    //between share one write and are on disk at most this late; a failed flush goes to the exception handler and
+    //is retried after another interval
+    public StorageFactory setCounterFlushInterval(long time, TimeUnit unit) {
+        if (time < 0) throw new IllegalArgumentException("flush interval " + time);
+        counterFlushMillis = unit.toMillis(time);
+        return this;
+    }
+
+    public StorageFactory setPrewarm(boolean prewarm) {
+        this.prewarm = prewarm;
+        return this;
+    }
+
+    public StorageFactory setLoadParallelism(int parallelism) {
+        if (parallelism <= 0) throw new IllegalArgumentException("parallelism " + parallelism);
+        loadParallelism = parallelism;
+        return this;
+    }
+
+    //storages opened afterwards hand their writes to this many shared threads instead of writing on the caller's
+    //thread; repeated writes to a storage before its turn are coalesced, and writers wait while more than
+    //maxPendingBytes are not written yet. a storage is on disk once closed or after flushWrites, 0 threads disables
+    public StorageFactory setDeferredWrites(int threads, long maxPendingBytes) {
+        if (threads < 0) throw new IllegalArgumentException("threads " + threads);
+        writeScheduler = threads > 0 ? new WriteScheduler(threads, maxPendingBytes) : null;
+        return this;
+    }
+
+    //waits until the writes handed over so far by the storages of this factory are on disk
+    public void flushWrites() throws IOException {
+        WriteScheduler scheduler = writeScheduler;
+        if (scheduler != null) {
+            scheduler.flush();
+        }
+    }
+
+    public Map<File, Future<KVStorageAdapter>> openAll(Collection<File> files) throws IOException {
+        Map<File, Future<KVStorageAdapter>> result = new LinkedHashMap<>();
+        List<StorageHandle> handles = new ArrayList<>();
+        try {
+            for (File file : files) {
+                StorageHandle handle = newHandle(file);
+                handles.add(handle);
+                KVStorageAdapter adapter = newAdapter(handle);
+                result.put(file, loadExecutor().submit(() -> {
+                    try {
+                        handle.proxy.getStorage();
+                    } catch (IOException ex) {
+                        handle.close();
+                        throw ex;
+                    }
+                    return adapter;
+                }));
+            }
+        } catch (IOException | RuntimeException ex) {
+            //the loads already submitted fail once their handles are closed
+            for (StorageHandle handle : handles) {
+                try {
+                    handle.close();
+                } catch (IOException closeFailure) {
+                    ex.addSuppressed(closeFailure);
+                }
+            }
+            throw ex;
+        }
+        return result;
+    }
+
     public KVStorageAdapter newStorage(File file) throws IOException {
-        return new KVStorageAdapter(new StorageProxy(() ->
-                new KVByteStorage(new ByteFileStorage(file, strictWriteMode, streamWrapper))),
-                exceptionHandler);
+        StorageHandle handle = newHandle(file);
+        if (prewarm) {
+            loadExecutor().execute(handle.proxy.loader.get());
+        }
+        return newAdapter(handle);
+    }
+
+    private KVStorageAdapter newAdapter(StorageHandle handle) {
+        return new KVStorageAdapter(handle, exceptionHandler != null ? exceptionHandler : KVStorageAdapter::rethrow,
+                commitExecutor, false);
+    }
+
+    //stops the threads of this factory once their queued work is done. close the storages first, the factory
+    //can't open storages afterwards
+    public void shutdown() {
+        ExecutorService loader;
+        WriteScheduler scheduler;
+        synchronized (this) {
+            shutdown = true;
+            loader = loadExecutor;
+            scheduler = writeScheduler;
+        }
+        commitExecutor.shutdown();
+        if (loader != null) {
+            loader.shutdown();
+        }
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    private StorageHandle newHandle(File file) throws IOException {
+        synchronized (this) {
+            if (shutdown) throw new IllegalStateException("factory is shut down");
+        }
+        //blob files are read at random offsets, which a wrapped stream can't provide
+        if (blobThreshold > 0 && streamWrapper != null)
+            throw new IllegalStateException("blob values can't be combined with a stream wrapper");
+        //blob files are dropped once the buffer that no longer points to them is written
+        if (blobThreshold > 0 && writeScheduler != null)
+            throw new IllegalStateException("blob values can't be combined with deferred writes");
+        WriteScheduler scheduler = writeScheduler;
+        String path = file.getCanonicalPath();
+        StorageProxy proxy;
+        while (true) {
+            CountDownLatch closing;
+            synchronized (storages) {
+                proxy = storages.get(path);
+                if (proxy == null) {
+                    proxy = new StorageProxy(path, () -> createStorage(file, scheduler));
+                    storages.put(path, proxy);
+                }
+                if (!proxy.closing) {
+                    proxy.references++;
+                    break;
+                }
+                closing = proxy.closed;
+            }
+            //the released storage still has the file open, a new one is opened once it is closed
+            try {
+                closing.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for " + path + " to close");
+            }
+        }
+        return new StorageHandle(proxy);
+    }
+
+    private KVStorage createStorage(File file, WriteScheduler scheduler) throws IOException {
+        FramePipeline frames = frameSize > 0 && streamWrapper != null
+                ? new FramePipeline(streamWrapper, frameSize, ForkJoinPool.commonPool()) : null;
+        ByteStorage byteStorage = doubleFileMode
+                ? new DoubleFileStorage(file, strictWriteMode, streamWrapper, frames)
+                : new ByteFileStorage(file, strictWriteMode, streamWrapper, frames);
+        if (scheduler != null) {
+            byteStorage = scheduler.wrap(byteStorage);
+        }
+        KVByteStorage storage = new KVByteStorage(byteStorage, storageFormat,
+                blobThreshold > 0 ? new BlobLog(file, blobThreshold, strictWriteMode) : null);
+        storage.setCounterFlushInterval(counterFlushMillis);
+        storage.setFlushFailureHandler(exceptionHandler);
+        return storage;
+    }
+
+    private synchronized ExecutorService loadExecutor() {
+        if (shutdown) throw new IllegalStateException("factory is shut down");
+        if (loadExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(loadParallelism, loadParallelism,
+                    30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), Threads.blocking("kvstorage-loader"));
+            executor.allowCoreThreadTimeOut(true);
+            loadExecutor = executor;
+        }
+        return loadExecutor;
+    }
+
+    public int openedStorages() {
+        synchronized (storages) {
+            return storages.size();
+        }
+    }
+
+    //the proxy stays registered until it is closed, so a storage of the same file isn't opened next to it
+    private void release(StorageProxy proxy) throws IOException {
+        synchronized (storages) {
+            if (--proxy.references > 0) return;
+            proxy.closing = true;
+        }
+        try {
+            proxy.close();
+        } finally {
+            synchronized (storages) {
+                storages.remove(proxy.path, proxy);
+            }
+            proxy.closed.countDown();
+        }
     }
 
     private interface InternalFactory {
@@ -34,39 +271,124 @@ public class StorageFactory {
     }
 
     private class StorageProxy implements KVStorage {
+        final String path;
         final InternalFactory factory;
+        final AtomicReference<FutureTask<KVStorage>> loader = new AtomicReference<>();
 
-        KVStorage actualStorage;
+        final CountDownLatch closed = new CountDownLatch(1);
+        //held while the storage is created, so close waits for a running load and a later load doesn't start
+        final ReentrantLock loadLock = new ReentrantLock();
 
-        private StorageProxy(InternalFactory factory) {
+        volatile KVStorage actualStorage;
+        int references;
+        boolean closing;
+        boolean released;
+
+        private StorageProxy(String path, InternalFactory factory) {
+            this.path = path;
             this.factory = factory;
+            loader.set(newLoader());
+        }
+
+        private FutureTask<KVStorage> newLoader() {
+            return new FutureTask<>(() -> {
+                loadLock.lock();
+                try {
+                    if (released) throw new IOException("storage closed " + path);
+                    return actualStorage = factory.create();
+                } finally {
+                    loadLock.unlock();
+                }
+            });
         }
 
         private KVStorage getStorage() throws IOException {
             KVStorage local = actualStorage;
-            if (local == null) {
-                synchronized (this) {
-                    if (actualStorage == null) {
-                        actualStorage = factory.create();
-                    }
-                    local = actualStorage;
-                }
+            if (local != null) return local;
+            FutureTask<KVStorage> task = loader.get();
+            task.run();//no-op if the storage is already loading on another thread
+            try {
+                return task.get();
+            } catch (ExecutionException ex) {
+                loader.compareAndSet(task, newLoader());//let the next caller retry
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                throw new IOException(cause);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while loading " + path);
             }
-            return local;
         }
 
         @Override public byte[] get(byte[] key) throws IOException {
             return getStorage().get(key);
         }
 
+        @Override public byte[] get(Key key) throws IOException {
+            return getStorage().get(key);
+        }
+
+        @Override public <T> T getObject(byte[] key, Codec<T> codec) throws IOException {
+            return getStorage().getObject(key, codec);
+        }
+
+        @Override public void getAll(byte[][] keys, byte[][] values) throws IOException {
+            getStorage().getAll(keys, values);
+        }
+
+        @Override public InputStream openValue(byte[] key) throws IOException {
+            return getStorage().openValue(key);
+        }
+
         @Override public byte[] snapshot() throws IOException {
             return getStorage().snapshot();
         }
 
+        @Override public void snapshotTo(OutputStream out) throws IOException {
+            getStorage().snapshotTo(out);
+        }
+
+        @Override public void snapshotTo(WritableByteChannel channel) throws IOException {
+            getStorage().snapshotTo(channel);
+        }
+
+        @Override public void snapshotUnder(byte[] prefix, OutputStream out) throws IOException {
+            getStorage().snapshotUnder(prefix, out);
+        }
+
+        @Override public void restoreFrom(InputStream in) throws IOException {
+            getStorage().restoreFrom(in);
+        }
+
+        @Override public void restoreFrom(ReadableByteChannel channel) throws IOException {
+            getStorage().restoreFrom(channel);
+        }
+
+        @Override public long exportSince(long since, OutputStream out) throws IOException {
+            return getStorage().exportSince(since, out);
+        }
+
+        @Override public long applyDelta(InputStream in) throws IOException {
+            return getStorage().applyDelta(in);
+        }
+
         @Override public void put(byte[] key, byte[] value) throws IOException {
             getStorage().put(key, value);
         }
 
+        @Override public void put(Key key, byte[] value) throws IOException {
+            getStorage().put(key, value);
+        }
+
+        @Override public <T> void putObject(byte[] key, T value, Codec<T> codec) throws IOException {
+            getStorage().putObject(key, value, codec);
+        }
+
+        @Override public void put(byte[] key, InputStream value, int length) throws IOException {
+            getStorage().put(key, value, length);
+        }
+
         @Override public void put(KeyValue... keyValues) throws IOException {
             getStorage().put(keyValues);
         }
@@ -75,8 +397,200 @@ public class StorageFactory {
             return getStorage().remove(key);
         }
 
+        @Override public boolean removeAll(byte[] prefix) throws IOException {
+            return getStorage().removeAll(prefix);
+        }
+
+        @Override public byte[] putIfAbsent(byte[] key, byte[] value) throws IOException {
+            return getStorage().putIfAbsent(key, value);
+        }
+
+        @Override public boolean compareAndSet(byte[] key, byte[] expected, byte[] newValue) throws IOException {
+            return getStorage().compareAndSet(key, expected, newValue);
+        }
+
+        @Override public byte[] computeIfPresent(byte[] key, UnaryOperator<byte[]> function) throws IOException {
+            return getStorage().computeIfPresent(key, function);
+        }
+
+        @Override public byte[] merge(byte[] key, byte[] value, BinaryOperator<byte[]> function) throws IOException {
+            return getStorage().merge(key, value, function);
+        }
+
+        @Override public int incrementAndGet(byte[] key, int delta) throws IOException {
+            return getStorage().incrementAndGet(key, delta);
+        }
+
+        @Override public long incrementAndGet(byte[] key, long delta) throws IOException {
+            return getStorage().incrementAndGet(key, delta);
+        }
+
         @Override public void clear() throws IOException {
             getStorage().clear();
         }
+
+        @Override public void addChangeListener(ChangeListener listener, boolean snapshotFirst) throws IOException {
+            getStorage().addChangeListener(listener, snapshotFirst);
+        }
+
+        @Override public void removeChangeListener(ChangeListener listener) {
+            KVStorage local = actualStorage;
+            if (local != null) {
+                local.removeChangeListener(listener);
+            }
+        }
+
+        //a prewarm load may still run for a released handle, the storage it opens is closed here
+        @Override public void close() throws IOException {
+            KVStorage local;
+            loadLock.lock();
+            try {
+                released = true;
+                local = actualStorage;
+            } finally {
+                loadLock.unlock();
+            }
+            if (local != null) {
+                local.close();
+            }
+        }
+    }
+
+    private class StorageHandle implements KVStorage {
+        private final StorageProxy proxy;
+        private volatile boolean closed;
+
+        private StorageHandle(StorageProxy proxy) {
+            this.proxy = proxy;
+        }
+
+        private KVStorage getStorage() throws IOException {
+            if (closed) throw new IOException("storage closed " + proxy.path);
+            return proxy;
+        }
+
+        @Override public byte[] get(byte[] key) throws IOException {
+            return getStorage().get(key);
+        }
+
+        @Override public byte[] get(Key key) throws IOException {
+            return getStorage().get(key);
+        }
+
+        @Override public <T> T getObject(byte[] key, Codec<T> codec) throws IOException {
+            return getStorage().getObject(key, codec);
+        }
+
+        @Override public void getAll(byte[][] keys, byte[][] values) throws IOException {
+            getStorage().getAll(keys, values);
+        }
+
+        @Override public InputStream openValue(byte[] key) throws IOException {
+            return getStorage().openValue(key);
+        }
+
+        @Override public byte[] snapshot() throws IOException {
+            return getStorage().snapshot();
+        }
+
+        @Override public void snapshotTo(OutputStream out) throws IOException {
+            getStorage().snapshotTo(out);
+        }
+
+        @Override public void snapshotTo(WritableByteChannel channel) throws IOException {
+            getStorage().snapshotTo(channel);
+        }
+
+        @Override public void snapshotUnder(byte[] prefix, OutputStream out) throws IOException {
+            getStorage().snapshotUnder(prefix, out);
+        }
+
+        @Override public void restoreFrom(InputStream in) throws IOException {
+            getStorage().restoreFrom(in);
+        }
+
+        @Override public void restoreFrom(ReadableByteChannel channel) throws IOException {
+            getStorage().restoreFrom(channel);
+        }
+
+        @Override public long exportSince(long since, OutputStream out) throws IOException {
+            return getStorage().exportSince(since, out);
+        }
+
+        @Override public long applyDelta(InputStream in) throws IOException {
+            return getStorage().applyDelta(in);
+        }
+
+        @Override public void put(byte[] key, byte[] value) throws IOException {
+            getStorage().put(key, value);
+        }
+
+        @Override public void put(Key key, byte[] value) throws IOException {
+            getStorage().put(key, value);
+        }
+
+        @Override public <T> void putObject(byte[] key, T value, Codec<T> codec) throws IOException {
+            getStorage().putObject(key, value, codec);
+        }
+
+        @Override public void put(byte[] key, InputStream value, int length) throws IOException {
+            getStorage().put(key, value, length);
+        }
+
+        @Override public void put(KeyValue... keyValues) throws IOException {
+            getStorage().put(keyValues);
+        }
+
+        @Override public boolean remove(byte[] key) throws IOException {
+            return getStorage().remove(key);
+        }
+
+        @Override public boolean removeAll(byte[] prefix) throws IOException {
+            return getStorage().removeAll(prefix);
+        }
+
+        @Override public byte[] putIfAbsent(byte[] key, byte[] value) throws IOException {
+            return getStorage().putIfAbsent(key, value);
+        }
+
+        @Override public boolean compareAndSet(byte[] key, byte[] expected, byte[] newValue) throws IOException {
+            return getStorage().compareAndSet(key, expected, newValue);
+        }
+
+        @Override public byte[] computeIfPresent(byte[] key, UnaryOperator<byte[]> function) throws IOException {
+            return getStorage().computeIfPresent(key, function);
+        }
+
+        @Override public byte[] merge(byte[] key, byte[] value, BinaryOperator<byte[]> function) throws IOException {
+            return getStorage().merge(key, value, function);
+        }
+
+        @Override public int incrementAndGet(byte[] key, int delta) throws IOException {
+            return getStorage().incrementAndGet(key, delta);
+        }
+
+        @Override public long incrementAndGet(byte[] key, long delta) throws IOException {
+            return getStorage().incrementAndGet(key, delta);
+        }
+
+        @Override public void clear() throws IOException {
+            getStorage().clear();
+        }
+
+        @Override public void addChangeListener(ChangeListener listener, boolean snapshotFirst) throws IOException {
+            getStorage().addChangeListener(listener, snapshotFirst);
+        }
+
+        @Override public void removeChangeListener(ChangeListener listener) {
+            proxy.removeChangeListener(listener);
+        }
+
+        @Override public void close() throws IOException {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+            }
+            release(proxy);
+        }
     }
 }
@@ -0,0 +1,294 @@
+package kvstorage;
+
+import java.io.IOException;
+
+import static kvstorage.ByteUtils.*;
+
+public final class StorageFormat {
+    static final long MAGIC = 0x4b5653746f726167L;
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 16;
+    static final int LEGACY_ENTRY_HEADER_LENGTH = 14;
+    static final int MAX_ENTRY_HEADER_LENGTH = 28;
+    static final int SEQUENCE_LENGTH = 8;
+    static final int CHECKSUM_LENGTH = 4;
+    //with sequences the file header goes on with the last, the last reset and the last removal sequence
+    static final int LAST_SEQUENCE = 16;
+    static final int RESET_SEQUENCE = 24;
+    static final int REMOVAL_SEQUENCE = 32;
+
+    static final int FLAG_KEY_PREFIXES = 1;
+    static final int FLAG_COMPACT = 2;
+    static final int FLAG_BLOB_VALUES = 4;
+    static final int FLAG_SEQUENCES = 8;
+    static final int FLAG_CHECKSUMS = 16;
+
+    static final int MAX_PREFIX_DEPTH = 0x7f;
+
+    public static final StorageFormat LEGACY = new StorageFormat(0, 0, (byte) 0, 0);
+
+    final int version;
+    final int flags;
+    final byte keyDelimiter;
+    //0 in files written before the depth was stored, their prefixes end at the last delimiter
+    final int prefixDepth;
+
+    private StorageFormat(int version, int flags, byte keyDelimiter, int prefixDepth) {
+        this.version = version;
+        this.flags = flags;
+        this.keyDelimiter = keyDelimiter;
+        this.prefixDepth = prefixDepth;
+    }
+
+    public StorageFormat withKeyPrefixes(char delimiter) {
+        return withKeyPrefixes(delimiter, 1);
+    }
+
+    //the prefix of a key ends at its depth-th delimiter, "user:" for "user:42:name" at depth 1. a store holds up to
+    //32767 prefixes, keys of any further prefix (or of one whose hash collides with a known prefix) are written
+    //whole, so the depth should stop before the unbounded parts of the keys like ids
+    public StorageFormat withKeyPrefixes(char delimiter, int depth) {
+        if (delimiter == 0 || delimiter > 0x7f) throw new IllegalArgumentException("delimiter must be ascii");
+        if (depth < 1 || depth > MAX_PREFIX_DEPTH) throw new IllegalArgumentException("depth " + depth);
+        return new StorageFormat(VERSION, flags | FLAG_KEY_PREFIXES, (byte) delimiter, depth);
+    }
+
+    public StorageFormat withCompactHeaders() {
+        return new StorageFormat(VERSION, flags | FLAG_COMPACT, keyDelimiter, prefixDepth);
+    }
+
+    //the low bit of the stored value length marks values kept in the blob log
+    public StorageFormat withBlobValues() {
+        return new StorageFormat(VERSION, flags | FLAG_BLOB_VALUES, keyDelimiter, prefixDepth);
+    }
+
+    //every record ends its header with the sequence of the change that wrote it
+    public StorageFormat withSequences() {
+        return new StorageFormat(VERSION, flags | FLAG_SEQUENCES, keyDelimiter, prefixDepth);
+    }
+
+    //every record carries a crc32c of its header, sequence, key and value, checked when the storage is opened
+    public StorageFormat withChecksums() {
+        return new StorageFormat(VERSION, flags | FLAG_CHECKSUMS, keyDelimiter, prefixDepth);
+    }
+
+    boolean keyPrefixes() {
+        return (flags & FLAG_KEY_PREFIXES) != 0;
+    }
+
+    boolean compact() {
+        return (flags & FLAG_COMPACT) != 0;
+    }
+
+    boolean blobValues() {
+        return (flags & FLAG_BLOB_VALUES) != 0;
+    }
+
+    boolean sequences() {
+        return (flags & FLAG_SEQUENCES) != 0;
+    }
+
+    boolean checksums() {
+        return (flags & FLAG_CHECKSUMS) != 0;
+    }
+
+    int headerLength() {
+        if (version == 0) return 0;
+        return sequences() ? REMOVAL_SEQUENCE + SEQUENCE_LENGTH : HEADER_LENGTH;
+    }
+
+    byte[] newBuffer() {
+        byte[] buffer = new byte[headerLength()];
+        if (version != 0) {
+            writeLong(buffer, 0, MAGIC);
+            writeShort(buffer, 8, 0);
+            buffer[10] = (byte) version;
+            buffer[11] = (byte) flags;
+            buffer[12] = keyDelimiter;
+            buffer[13] = (byte) prefixDepth;
+        }
+        return buffer;
+    }
+
+    static StorageFormat read(byte[] buffer) throws IOException {
+        //legacy files start with an entry header, its key length can't be zero
+        if (buffer.length < HEADER_LENGTH || readLong(buffer, 0) != MAGIC || readShort(buffer, 8) != 0) {
+            return LEGACY;
+        }
+        int version = buffer[10] & 0xff;
+        if (version != VERSION) throw new IOException("unsupported format version " + version);
+        StorageFormat format = new StorageFormat(version, buffer[11] & 0xff, buffer[12], buffer[13]);
+        if (buffer.length < format.headerLength()) throw new IOException("corrupted header " + buffer.length);
+        return format;
+    }
+
+    int entryHeaderLength(int prefix, int keyLength, int valueLength) {
+        int sequence = (sequences() ? SEQUENCE_LENGTH : 0) + (checksums() ? CHECKSUM_LENGTH : 0);
+        if (compact()) {
+            int length = varIntSize(keyLength) + varIntSize(blobValues() ? valueLength << 1 : valueLength);
+            return sequence + (keyPrefixes() ? length + varIntSize(zigZag(prefix)) : length);
+        }
+        return sequence + (keyPrefixes() ? LEGACY_ENTRY_HEADER_LENGTH + 2 : LEGACY_ENTRY_HEADER_LENGTH);
+    }
+
+    //the sequence sits right before the key
+    long readSequence(byte[] in, int keyPosition) {
+        return sequences() ? readLong(in, keyPosition - SEQUENCE_LENGTH) : 0;
+    }
+
+    void writeSequence(byte[] out, int keyPosition, long sequence) {
+        if (sequences()) {
+            writeLong(out, keyPosition - SEQUENCE_LENGTH, sequence);
+        }
+    }
+
+    //the checksum sits before the sequence and covers the whole record except itself: the entry header with the
+    //hash, prefix id and lengths, the sequence, the key and the value
+    int checksumPosition(int keyPosition) {
+        return keyPosition - (sequences() ? SEQUENCE_LENGTH : 0) - CHECKSUM_LENGTH;
+    }
+
+    //called once the key and the value of the record are in place
+    void writeChecksum(byte[] out, ByteEntry entry) {
+        if (checksums()) {
+            writeInt(out, checksumPosition(entry.keyPosition()),
+                    checksum(out, entry.position, entry.keyPosition(), entry.nextPosition()));
+        }
+    }
+
+    boolean checksumMatches(byte[] in, int position, int keyPosition, int end) {
+        if (!checksums()) return true;
+        return readInt(in, checksumPosition(keyPosition)) == checksum(in, position, keyPosition, end);
+    }
+
+    private int checksum(byte[] in, int position, int keyPosition, int end) {
+        int at = checksumPosition(keyPosition);
+        Crc32c checksum = new Crc32c();
+        checksum.update(in, position, at - position);
+        checksum.update(in, at + CHECKSUM_LENGTH, end - at - CHECKSUM_LENGTH);
+        return (int) checksum.getValue();
+    }
+
+    ByteEntry newEntry(int position, long hash, int prefix, int keyLength, int valueLength) {
+        return newEntry(position, hash, prefix, keyLength, valueLength, false);
+    }
+
+    ByteEntry newEntry(int position, long hash, int prefix, int keyLength, int valueLength, boolean blob) {
+        int headerLength = entryHeaderLength(prefix, keyLength, valueLength);
+        return new ByteEntry(position, hash, prefix, headerLength, keyLength, valueLength, blob);
+    }
+
+    ByteEntry readEntry(byte[] in, int position, int limit, KeyPrefixes prefixes) {
+        if (compact()) return readCompactEntry(in, position, limit, prefixes);
+        if (limit - position < entryHeaderLength(0, 0, 0)) return null;
+        long hash = readLong(in, position);
+        int offset = position + 8;
+        int prefix = 0;
+        if (keyPrefixes()) {
+            prefix = readShort(in, offset);
+            offset += 2;
+        }
+        int keyLength = readShort(in, offset);
+        int valueLength = readInt(in, offset + 2);
+        boolean blob = false;
+        if (blobValues()) {
+            blob = (valueLength & 1) != 0;
+            valueLength >>= 1;
+        }
+        return new ByteEntry(position, hash, prefix, entryHeaderLength(prefix, keyLength, valueLength),
+                keyLength, valueLength, blob);
+    }
+
+    private ByteEntry readCompactEntry(byte[] in, int position, int limit, KeyPrefixes prefixes) {
+        int offset = position;
+        int prefix = 0;
+        if (keyPrefixes()) {
+            int value = readVarInt(in, offset, limit);
+            if (value < 0) return null;
+            offset += varIntSize(value);
+            prefix = (value >>> 1) ^ -(value & 1);
+        }
+        int keyLength = readVarInt(in, offset, limit);
+        if (keyLength < 0) return null;
+        offset += varIntSize(keyLength);
+        int valueLength = readVarInt(in, offset, limit);
+        if (valueLength < 0) return null;
+        offset += varIntSize(valueLength);
+        if (checksums()) {
+            if (limit - offset < CHECKSUM_LENGTH) return null;
+            offset += CHECKSUM_LENGTH;
+        }
+        if (sequences()) {
+            if (limit - offset < SEQUENCE_LENGTH) return null;
+            offset += SEQUENCE_LENGTH;
+        }
+        boolean blob = false;
+        if (blobValues()) {
+            blob = (valueLength & 1) != 0;
+            valueLength >>>= 1;
+        }
+        long hash = 0;
+        if (offset + keyLength <= limit) {
+            long seed = prefix > 0 && prefix <= prefixes.size() ? prefixes.hash(prefix) : 1;
+            hash = hash(seed, in, offset, keyLength);
+        }
+        return new ByteEntry(position, hash, prefix, offset - position, keyLength, valueLength, blob);
+    }
+
+    int writeEntry(byte[] out, int position, ByteEntry entry) {
+        return writeEntry(out, position, entry, 0);
+    }
+
+    //returns the key position
+    int writeEntry(byte[] out, int position, ByteEntry entry, long sequence) {
+        int offset;
+        if (compact()) {
+            offset = position;
+            if (keyPrefixes()) {
+                offset = writeVarInt(out, offset, zigZag(entry.prefix));
+            }
+            offset = writeVarInt(out, offset, entry.keyLength);
+            offset = writeVarInt(out, offset, valueField(entry));
+        } else {
+            writeLong(out, position, entry.hash);
+            offset = position + 8;
+            if (keyPrefixes()) {
+                writeShort(out, offset, entry.prefix);
+                offset += 2;
+            }
+            writeShort(out, offset, entry.keyLength);
+            writeInt(out, offset + 2, valueField(entry));
+            offset += 6;
+        }
+        if (checksums()) {
+            writeInt(out, offset, 0);
+            offset += CHECKSUM_LENGTH;
+        }
+        if (sequences()) {
+            writeLong(out, offset, sequence);
+            offset += SEQUENCE_LENGTH;
+        }
+        return offset;
+    }
+
+    private int valueField(ByteEntry entry) {
+        if (!blobValues()) return entry.valueLength;
+        return entry.valueLength << 1 | (entry.blob ? 1 : 0);
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    @Override public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof StorageFormat)) return false;
+        StorageFormat that = (StorageFormat) o;
+        return version == that.version && flags == that.flags && keyDelimiter == that.keyDelimiter
+                && prefixDepth == that.prefixDepth;
+    }
+
+    @Override public int hashCode() {
+        return 31 * (31 * (31 * version + flags) + keyDelimiter) + prefixDepth;
+    }
+}
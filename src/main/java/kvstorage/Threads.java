@@ -0,0 +1,22 @@
+package kvstorage;
+
+import java.util.concurrent.ThreadFactory;
+
+//the multi-release jar replaces this class on Java 21, where blocking work runs on virtual threads
+final class Threads {
+    private Threads() {
+    }
+
+    //threads that mostly wait on file or socket I/O
+    static ThreadFactory blocking(String name) {
+        return daemon(name);
+    }
+
+    static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,238 @@
+package kvstorage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+//writes the buffers of many storages on a few shared threads. a storage is queued once while it is dirty and
+//only its latest buffer is written, storages take turns in the order they got dirty, and callers wait while
+//more than maxPendingBytes are not on disk yet
+final class WriteScheduler {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition progress = lock.newCondition();
+    private final ArrayDeque<DeferredStorage> dirty = new ArrayDeque<>();
+    private final int threads;
+    private final long maxPendingBytes;
+    private final ThreadPoolExecutor executor;
+    private int running;
+    private int writing;
+    private long pendingBytes;
+    private boolean shutdown;
+
+    WriteScheduler(int threads, long maxPendingBytes) {
+        if (threads <= 0) throw new IllegalArgumentException("threads " + threads);
+        if (maxPendingBytes <= 0) throw new IllegalArgumentException("maxPendingBytes " + maxPendingBytes);
+        this.threads = threads;
+        this.maxPendingBytes = maxPendingBytes;
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                Threads.blocking("kvstorage-writer"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    //the caller reuses an array once a later write is accepted, so the wrapped storage must not keep the arrays
+    //it gets after its write returns (FramePipeline keeps only checksums of the plain bytes)
+    ByteStorage wrap(ByteStorage storage) {
+        return new DeferredStorage(storage);
+    }
+
+    long pendingBytes() {
+        lock.lock();
+        try {
+            return pendingBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //waits until every buffer handed over so far is written
+    void flush() throws IOException {
+        lock.lock();
+        try {
+            while (!dirty.isEmpty() || writing > 0) {
+                await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //a drain already running finishes its queue, later writes are written by their callers
+    void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+        } finally {
+            lock.unlock();
+        }
+        executor.shutdown();
+    }
+
+    //called under lock
+    private void await() throws InterruptedIOException {
+        try {
+            progress.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for deferred writes");
+        }
+    }
+
+    //called under lock
+    private void schedule() {
+        if (running < threads && !dirty.isEmpty()) {
+            running++;
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            DeferredStorage next;
+            byte[] bytes;
+            lock.lock();
+            try {
+                next = dirty.poll();
+                if (next == null) {
+                    running--;
+                    return;
+                }
+                bytes = next.pending;
+                next.pending = null;
+                next.queued = false;
+                next.writing = bytes;
+                writing++;
+            } finally {
+                lock.unlock();
+            }
+            IOException failure = null;
+            try {
+                next.storage.write(bytes);
+            } catch (IOException ex) {
+                failure = ex;
+            } catch (RuntimeException ex) {
+                failure = new IOException("deferred write " + bytes.length, ex);
+            }
+            lock.lock();
+            try {
+                next.writing = null;
+                writing--;
+                pendingBytes -= bytes.length;
+                if (failure != null) {
+                    next.error = failure;
+                }
+                progress.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    //the buffer of the previous write stays in use until it is on disk, so a write waits for the running one
+    //of the same storage; a failed write is reported by the next write, flush or close of that storage
+    private final class DeferredStorage implements ByteStorage, Closeable {
+        final ByteStorage storage;
+        byte[] pending;
+        byte[] writing;
+        boolean queued;
+        IOException error;
+
+        DeferredStorage(ByteStorage storage) {
+            this.storage = storage;
+        }
+
+        @Override public byte[] read() throws IOException {
+            flush();
+            return storage.read();
+        }
+
+        @Override public void write(byte[] bytes) throws IOException {
+            lock.lock();
+            try {
+                checkError();
+                if (shutdown) {
+                    //no drain is started anymore, the queued buffer goes first
+                    while (pending != null || writing != null) {
+                        await();
+                    }
+                    writing = bytes;
+                } else {
+                    defer(bytes);
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                storage.write(bytes);
+            } finally {
+                lock.lock();
+                try {
+                    writing = null;
+                    progress.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        //called under lock
+        private void defer(byte[] bytes) throws InterruptedIOException {
+            while (true) {
+                if (writing != null) {
+                    await();
+                    continue;
+                }
+                long added = bytes.length - (pending != null ? pending.length : 0);
+                if (added > 0 && pendingBytes > 0 && pendingBytes + added > maxPendingBytes) {
+                    await();
+                    continue;
+                }
+                pending = bytes;
+                pendingBytes += added;
+                break;
+            }
+            if (!queued) {
+                queued = true;
+                dirty.add(this);
+                schedule();
+            }
+        }
+
+        void flush() throws IOException {
+            lock.lock();
+            try {
+                while (pending != null || writing != null) {
+                    await();
+                }
+                checkError();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //called under lock
+        private void checkError() throws IOException {
+            IOException failure = error;
+            if (failure != null) {
+                error = null;
+                throw failure;
+            }
+        }
+
+        @Override public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                if (storage instanceof Closeable) {
+                    ((Closeable) storage).close();
+                }
+            }
+        }
+    }
+}
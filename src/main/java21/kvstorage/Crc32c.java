@@ -0,0 +1,31 @@
+package kvstorage;
+
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+//Java 21 version of Crc32c, CRC32C uses the hardware crc32 instructions where the cpu has them
+final class Crc32c implements Checksum {
+    private final CRC32C crc = new CRC32C();
+
+    static int compute(byte[] b, int off, int len) {
+        CRC32C checksum = new CRC32C();
+        checksum.update(b, off, len);
+        return (int) checksum.getValue();
+    }
+
+    @Override public void update(int b) {
+        crc.update(b);
+    }
+
+    @Override public void update(byte[] b, int off, int len) {
+        crc.update(b, off, len);
+    }
+
+    @Override public long getValue() {
+        return crc.getValue();
+    }
+
+    @Override public void reset() {
+        crc.reset();
+    }
+}
@@ -0,0 +1,18 @@
+package kvstorage;
+
+import java.util.concurrent.ThreadFactory;
+
+//Java 21 version of Threads, the file and lock paths it runs don't pin virtual threads
+final class Threads {
+    private Threads() {
+    }
+
+    //virtual threads are always daemon threads
+    static ThreadFactory blocking(String name) {
+        return Thread.ofVirtual().name(name).factory();
+    }
+
+    static ThreadFactory daemon(String name) {
+        return Thread.ofPlatform().name(name).daemon(true).factory();
+    }
+}
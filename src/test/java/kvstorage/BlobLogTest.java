@@ -0,0 +1,224 @@
+package kvstorage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static kvstorage.Utils.getRandomBytes;
+import static org.junit.Assert.*;
+
+public class BlobLogTest {
+    private static final int THRESHOLD = 1024;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private KVByteStorage storage;
+
+    @Before public void setUp() throws IOException {
+        file = new File(folder.getRoot(), "storage");
+        storage = open();
+    }
+
+    @Test public void testSeparatedValues() throws IOException {
+        byte[] small = getRandomBytes(10);
+        byte[] large = getRandomBytes(THRESHOLD * 10);
+        storage.put(key(1), small);
+        storage.put(key(2), large);
+        assertArrayEquals(small, storage.get(key(1)));
+        assertArrayEquals(large, storage.get(key(2)));
+        assertTrue(file.length() < THRESHOLD);
+        assertEquals(1, blobFiles());
+        storage.close();
+
+        storage = open();
+        assertArrayEquals(small, storage.get(key(1)));
+        assertArrayEquals(large, storage.get(key(2)));
+        assertArrayEquals(large, readAll(storage.openValue(key(2))));
+    }
+
+    @Test public void testStructuralChangesKeepValues() throws IOException {
+        byte[] large1 = getRandomBytes(THRESHOLD * 4);
+        byte[] large2 = getRandomBytes(THRESHOLD * 4);
+        storage.put(new KVStorage.KeyValue(key(1), large1), new KVStorage.KeyValue(key(2), large2),
+                new KVStorage.KeyValue(key(3), getRandomBytes(5)));
+        storage.put(key(3), getRandomBytes(THRESHOLD / 2));
+        assertTrue(storage.remove(key(1)));
+        storage.put(key(3), new ByteArrayInputStream(large1), large1.length);
+        assertTrue(file.length() < THRESHOLD);
+        storage = open();
+        assertNull(storage.get(key(1)));
+        assertArrayEquals(large2, storage.get(key(2)));
+        assertArrayEquals(large1, storage.get(key(3)));
+    }
+
+    @Test public void testGetAll() throws IOException {
+        byte[] small = getRandomBytes(10);
+        byte[] large = getRandomBytes(THRESHOLD * 2);
+        storage.put(key(1), small);
+        storage.put(key(2), large);
+        byte[][] values = storage.getAll(key(2), key(3), key(1));
+        assertArrayEquals(large, values[0]);
+        assertNull(values[1]);
+        assertArrayEquals(small, values[2]);
+    }
+
+    @Test public void testDeadFilesCollected() throws IOException {
+        storage.put(key(1), getRandomBytes(THRESHOLD));
+        assertEquals(1, blobFiles());
+        assertTrue(storage.remove(key(1)));
+        assertEquals(0, blobFiles());
+        storage.put(key(1), getRandomBytes(THRESHOLD));
+        storage.clear();
+        assertEquals(0, blobFiles());
+    }
+
+    @Test public void testReplacedValuesCollected() throws IOException {
+        storage.put(new KVStorage.KeyValue(key(1), getRandomBytes(THRESHOLD)));
+        storage.put(key(2), getRandomBytes(10));
+        assertEquals(1, blobFiles());
+        storage.put(new KVStorage.KeyValue(key(1), getRandomBytes(10)));
+        assertEquals(0, blobFiles());
+        storage.put(key(1), getRandomBytes(THRESHOLD));
+        storage.put(key(1), getRandomBytes(10));
+        assertEquals(0, blobFiles());
+        storage.put(key(3), getRandomBytes(THRESHOLD));
+        assertTrue(storage.removeAll(ByteUtils.encodeString("key")));
+        assertEquals(0, blobFiles());
+    }
+
+    @Test public void testPinnedFileCollectedLater() throws IOException {
+        BlobLog blobLog = new BlobLog(file, THRESHOLD, false);
+        storage = new KVByteStorage(new ByteFileStorage(file), null, blobLog);
+        storage.put(key(1), getRandomBytes(THRESHOLD));
+        blobLog.pin();
+        try {
+            assertTrue(storage.remove(key(1)));
+            assertEquals(1, blobFiles());
+        } finally {
+            blobLog.unpin();
+        }
+        storage.put(key(2), getRandomBytes(10));
+        assertEquals(0, blobFiles());
+    }
+
+    @Test public void testCompaction() throws IOException {
+        int valueLength = (int) (BlobLog.MAX_FILE_LENGTH / 4);
+        byte[] kept = getRandomBytes(valueLength);
+        storage.put(key(0), kept);
+        for (int i = 1; i < 6; i++) {
+            storage.put(key(i), new byte[valueLength]);
+        }
+        assertEquals(2, blobFiles());
+        for (int i = 1; i < 6; i++) {
+            storage.remove(key(i));
+        }
+        assertEquals(1, blobFiles());
+        assertFalse(new File(folder.getRoot(), "storage.blob.0").exists());
+        assertArrayEquals(kept, open().get(key(0)));
+    }
+
+    @Test public void testSnapshotInlinesValues() throws IOException {
+        byte[] large = getRandomBytes(THRESHOLD * 3);
+        storage.put(key(1), large);
+        storage.put(key(2), getRandomBytes(3));
+        byte[] snapshot = storage.snapshot();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        storage.snapshotTo(out);
+        assertArrayEquals(snapshot, out.toByteArray());
+        storage.remove(key(1));
+        assertEquals(0, blobFiles());
+        KVStorage restored = new KVByteStorage(new ByteStorage.StorageSnapshot(snapshot));
+        assertArrayEquals(large, restored.get(key(1)));
+        storage.restoreFrom(new ByteArrayInputStream(snapshot));
+        assertArrayEquals(large, storage.get(key(1)));
+    }
+
+    @Test public void testNamespaceSnapshotInlinesValues() throws IOException {
+        byte[] large = getRandomBytes(THRESHOLD * 3);
+        byte[] small = getRandomBytes(3);
+        KVStorage users = storage.namespace("users");
+        users.put(key(1), large);
+        users.put(key(2), small);
+        storage.put(key(1), getRandomBytes(THRESHOLD * 2));
+        storage.namespace("other").put(key(1), small);
+        KVStorage restored = new KVByteStorage(new ByteStorage.StorageSnapshot(users.snapshot()));
+        assertArrayEquals(large, restored.get(key(1)));
+        assertArrayEquals(small, restored.get(key(2)));
+        assertEquals(2, ((KVByteStorage) restored).entriesUnder(new byte[0]).length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        users.snapshotUnder(ByteUtils.encodeString("key2"), out);
+        restored = new KVByteStorage(new ByteStorage.StorageSnapshot(out.toByteArray()));
+        assertEquals(0, ((KVByteStorage) restored).entriesUnder(new byte[0]).length);
+        out.reset();
+        users.snapshotUnder(ByteUtils.encodeString("key"), out);
+        restored = new KVByteStorage(new ByteStorage.StorageSnapshot(out.toByteArray()));
+        assertArrayEquals(large, restored.get(ByteUtils.encodeString("1")));
+    }
+
+    @Test public void testExportInlinesValues() throws IOException {
+        storage = new KVByteStorage(new ByteFileStorage(file), StorageFormat.LEGACY.withSequences(),
+                new BlobLog(file, THRESHOLD, false));
+        storage.put(key(1), getRandomBytes(THRESHOLD * 3));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long since = storage.exportSince(0, out);
+        KVByteStorage backup = new KVByteStorage(new ByteStorage.MemoryStorage());
+        backup.applyDelta(new ByteArrayInputStream(out.toByteArray()));
+        byte[] large = getRandomBytes(THRESHOLD * 2);
+        storage.put(key(2), large);
+        out.reset();
+        storage.exportSince(since, out);
+        assertTrue(out.size() < THRESHOLD * 3);
+        backup.applyDelta(new ByteArrayInputStream(out.toByteArray()));
+        assertArrayEquals(storage.get(key(1)), backup.get(key(1)));
+        assertArrayEquals(large, backup.get(key(2)));
+    }
+
+    @Test public void testConvertFromLegacy() throws IOException {
+        byte[] large = getRandomBytes(THRESHOLD * 2);
+        KVStorage legacy = new ByteFileStorage(file).createStorage();
+        legacy.put(key(1), large);
+        storage = open();
+        assertArrayEquals(large, storage.get(key(1)));
+        storage.put(key(2), large);
+        assertEquals(1, blobFiles());
+        storage = new KVByteStorage(new ByteFileStorage(file), StorageFormat.LEGACY, new BlobLog(file, THRESHOLD, false));
+        assertArrayEquals(large, storage.get(key(2)));
+    }
+
+    @Test(expected = IllegalStateException.class) public void testStreamWrapperRejected() throws IOException {
+        new StorageFactory().setBlobThreshold(THRESHOLD).setDefaultStreamWrapper(new Utils.BrokenStreamWrapper())
+                .newStorage(file);
+    }
+
+    private KVByteStorage open() throws IOException {
+        return new KVByteStorage(new ByteFileStorage(file), null, new BlobLog(file, THRESHOLD, false));
+    }
+
+    private int blobFiles() {
+        return folder.getRoot().list((dir, name) -> name.startsWith("storage.blob.")).length;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[100];
+            int count;
+            while ((count = stream.read(chunk)) != -1) {
+                out.write(chunk, 0, count);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] key(int i) {
+        return ByteUtils.encodeString("key" + i);
+    }
+}
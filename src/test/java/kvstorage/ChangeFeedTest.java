@@ -0,0 +1,223 @@
+package kvstorage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static kvstorage.Utils.getRandomBytes;
+import static org.junit.Assert.*;
+
+public class ChangeFeedTest {
+    private static final int THRESHOLD = 1024;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test public void testListenerOrder() throws IOException {
+        KVByteStorage storage = new KVByteStorage(new ByteStorage.MemoryStorage());
+        storage.put("old".getBytes(), "value".getBytes());
+        List<Change> changes = new ArrayList<>();
+        storage.addChangeListener(changes::add, true);
+        storage.put("a".getBytes(), "1".getBytes());
+        assertFalse(storage.remove("missing".getBytes()));
+        storage.remove("a".getBytes());
+        //the removal of the missing c and the replaced write of b are no changes
+        storage.put(new KVStorage.KeyValue("b".getBytes(), "1".getBytes()),
+                new KVStorage.KeyValue("c".getBytes(), null), new KVStorage.KeyValue("b".getBytes(), "2".getBytes()));
+        storage.incrementAndGet("counter".getBytes(), 5);
+        storage.removeAll("b".getBytes());
+        storage.clear();
+
+        Change.Type[] expected = {Change.Type.SNAPSHOT, Change.Type.PUT, Change.Type.REMOVE, Change.Type.PUT,
+                Change.Type.PUT, Change.Type.REMOVE_ALL, Change.Type.CLEAR};
+        assertEquals(expected.length, changes.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], changes.get(i).getType());
+            if (i > 0) {
+                assertEquals(changes.get(i - 1).getSequence() + 1, changes.get(i).getSequence());
+            }
+        }
+        assertArrayEquals("1".getBytes(), changes.get(1).getValue());
+        assertArrayEquals("2".getBytes(), changes.get(3).getValue());
+        assertArrayEquals(new byte[]{0, 0, 0, 5}, changes.get(4).getValue());
+        assertArrayEquals("value".getBytes(),
+                new KVByteStorage(new ByteStorage.StorageSnapshot(changes.get(0).getValue())).get("old".getBytes()));
+
+        List<Change> other = new ArrayList<>();
+        ChangeListener listener = other::add;
+        storage.addChangeListener(listener, false);
+        storage.removeChangeListener(listener);
+        storage.put("d".getBytes(), "4".getBytes());
+        assertTrue(other.isEmpty());
+    }
+
+    @Test public void testFollowerOverPipe() throws Exception {
+        File file = folder.newFile();
+        KVByteStorage leader = new KVByteStorage(new ByteFileStorage(file), null, new BlobLog(file, THRESHOLD, false));
+        byte[] large = getRandomBytes(THRESHOLD * 4);
+        leader.put("before".getBytes(), large);
+        leader.put("dropped".getBytes(), "x".getBytes());
+
+        PipedInputStream in = new PipedInputStream(64 * 1024);
+        ChangeFeed feed = new ChangeFeed(new PipedOutputStream(in));
+        FollowerStorage follower = new FollowerStorage(in);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread thread = follower.start(error::set);
+        leader.addChangeListener(feed, true);
+
+        leader.put("key".getBytes(), "value".getBytes());
+        leader.put("stream".getBytes(), new ByteArrayInputStream(large), large.length);
+        leader.put(Key.of("handle"), "h".getBytes());
+        leader.remove("dropped".getBytes());
+        leader.putObject("object".getBytes(), "decoded", new Codec<String>() {
+            @Override public int length(String value) {
+                return value.length();
+            }
+
+            @Override public void encode(String value, ByteBuffer dest) {
+                dest.put(value.getBytes());
+            }
+
+            @Override public String decode(ByteBuffer source) {
+                byte[] bytes = new byte[source.remaining()];
+                source.get(bytes);
+                return new String(bytes);
+            }
+        });
+        leader.incrementAndGet("counter".getBytes(), 3L);
+        feed.close();
+        thread.join(TimeUnit.SECONDS.toMillis(10));
+
+        assertNull(error.get());
+        assertNull(feed.getError());
+        assertEquals(8, follower.getSequence());//two changes before the snapshot, six after
+        for (String key : new String[]{"before", "key", "stream", "handle", "object", "counter"}) {
+            assertArrayEquals(key, leader.get(key.getBytes()), follower.get(key.getBytes()));
+        }
+        assertNull(follower.get("dropped".getBytes()));
+        leader.close();
+    }
+
+    @Test public void testFollowerOfFollower() throws Exception {
+        KVByteStorage leader = new KVByteStorage(new ByteStorage.MemoryStorage());
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ChangeFeed feed = new ChangeFeed(first);
+        leader.addChangeListener(feed, true);
+        leader.put("a".getBytes(), "1".getBytes());
+        leader.put("b".getBytes(), "2".getBytes());
+        feed.close();
+
+        FollowerStorage follower = new FollowerStorage(new ByteArrayInputStream(first.toByteArray()));
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        ChangeFeed chainedFeed = new ChangeFeed(second);
+        follower.addChangeListener(chainedFeed, false);
+        follower.applyAll();
+        chainedFeed.close();
+        FollowerStorage chained = new FollowerStorage(new ByteArrayInputStream(second.toByteArray()));
+        chained.applyAll();
+        assertArrayEquals("1".getBytes(), chained.get("a".getBytes()));
+        assertArrayEquals("2".getBytes(), chained.get("b".getBytes()));
+    }
+
+    @Test public void testGapRejected() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChangeFeed feed = new ChangeFeed(out);
+        feed.onChange(new Change(1, Change.Type.PUT, "a".getBytes(), "1".getBytes()));
+        feed.onChange(new Change(3, Change.Type.PUT, "b".getBytes(), "2".getBytes()));
+        feed.close();
+        FollowerStorage follower = new FollowerStorage(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(follower.applyNext());
+        try {
+            follower.applyNext();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(1, follower.getSequence());
+        assertNull(follower.get("b".getBytes()));
+    }
+
+    @Test public void testTruncatedFeed() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChangeFeed feed = new ChangeFeed(out);
+        feed.onChange(new Change(1, Change.Type.PUT, "a".getBytes(), "1".getBytes()));
+        feed.close();
+        byte[] data = out.toByteArray();
+        FollowerStorage follower = new FollowerStorage(new ByteArrayInputStream(data, 0, data.length - 1));
+        try {
+            follower.applyNext();
+            fail();
+        } catch (EOFException expected) {
+        }
+    }
+
+    @Test public void testBrokenFeedKeepsLeaderWriting() throws IOException {
+        KVByteStorage leader = new KVByteStorage(new ByteStorage.MemoryStorage());
+        ChangeFeed feed = new ChangeFeed(new OutputStream() {
+            @Override public void write(int b) throws IOException {
+                throw new IOException("disconnected");
+            }
+        });
+        leader.addChangeListener(feed, false);
+        leader.put("a".getBytes(), "1".getBytes());
+        leader.put("b".getBytes(), "2".getBytes());
+        feed.flush();
+        assertNotNull(feed.getError());
+        assertArrayEquals("2".getBytes(), leader.get("b".getBytes()));
+    }
+
+    @Test public void testSlowFollowerOverflows() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChangeFeed feed = new ChangeFeed(new FilterOutputStream(out) {
+            @Override public void flush() throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+                super.flush();
+            }
+        }, 4);
+        KVByteStorage leader = new KVByteStorage(new ByteStorage.MemoryStorage());
+        leader.addChangeListener(feed, false);
+        for (int i = 0; i < 20; i++) {
+            leader.put(("key" + i).getBytes(), "value".getBytes());
+        }
+        assertArrayEquals("value".getBytes(), leader.get("key19".getBytes()));
+        assertTrue(feed.getError().getMessage().contains("overflow"));
+        release.countDown();
+        feed.close();
+        leader.put("after".getBytes(), "value".getBytes());
+    }
+
+    @Test public void testMissingKeyRemoveNotEmitted() throws IOException {
+        KVByteStorage storage = new KVByteStorage(new ByteStorage.MemoryStorage());
+        List<Change> changes = new ArrayList<>();
+        storage.addChangeListener(changes::add, false);
+        storage.put("missing".getBytes(), null);
+        storage.put(Key.of("missing"), null);
+        assertTrue(changes.isEmpty());
+        storage.put("a".getBytes(), "1".getBytes());
+        storage.put("a".getBytes(), null);
+        assertEquals(2, changes.size());
+        assertEquals(Change.Type.REMOVE, changes.get(1).getType());
+    }
+
+    @Test public void testFollowerReadOnly() throws IOException {
+        FollowerStorage follower = new FollowerStorage(new ByteArrayInputStream(new byte[0]));
+        assertFalse(follower.applyNext());
+        try {
+            follower.put("a".getBytes(), "1".getBytes());
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+        assertEquals(-1, follower.getSequence());
+    }
+}
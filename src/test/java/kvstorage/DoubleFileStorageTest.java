@@ -0,0 +1,165 @@
+package kvstorage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static kvstorage.Utils.getRandomBytes;
+import static org.junit.Assert.*;
+
+public class DoubleFileStorageTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private DoubleFileStorage storage;
+
+    @Before public void setUp() throws IOException {
+        file = new File(folder.getRoot(), "storage");
+        storage = new DoubleFileStorage(file, true, null);
+    }
+
+    @After public void tearDown() throws IOException {
+        storage.close();
+    }
+
+    @Test public void testEmpty() throws IOException {
+        assertEquals(0, storage.read().length);
+    }
+
+    @Test public void testAlternatingWrites() throws IOException {
+        byte[] data1 = getRandomBytes(100);
+        byte[] data2 = getRandomBytes(50);
+        byte[] data3 = getRandomBytes(200);
+        storage.write(data1);
+        storage.write(data2);
+        assertArrayEquals(data2, reopen().read());
+        storage.write(data3);
+        assertArrayEquals(data3, reopen().read());
+        assertEquals(2, folder.getRoot().list().length);
+    }
+
+    @Test public void testTornWriteKeepsPrevious() throws IOException {
+        byte[] data1 = getRandomBytes(100);
+        byte[] data2 = getRandomBytes(100);
+        storage.write(data1);
+        storage.write(data2);
+        storage.close();
+        try (RandomAccessFile slot = new RandomAccessFile(DoubleFileStorage.slotFile(file, 'b'), "rw")) {
+            slot.seek(DoubleFileStorage.SLOT_HEADER_LENGTH + 10);
+            slot.write(~data2[10]);
+        }
+        storage = new DoubleFileStorage(file, true, null);
+        assertArrayEquals(data1, storage.read());
+        byte[] data3 = getRandomBytes(10);
+        storage.write(data3);
+        assertArrayEquals(data3, reopen().read());
+    }
+
+    @Test(expected = IOException.class) public void testBothSlotsCorrupted() throws IOException {
+        storage.write(getRandomBytes(10));
+        storage.write(getRandomBytes(10));
+        storage.close();
+        for (char slot : new char[]{'a', 'b'}) {
+            try (RandomAccessFile slotFile = new RandomAccessFile(DoubleFileStorage.slotFile(file, slot), "rw")) {
+                slotFile.write(0);
+            }
+        }
+        reopen().read();
+    }
+
+    @Test public void testMigratesFileStorage() throws IOException {
+        KVStorage legacy = new ByteFileStorage(file).createStorage();
+        byte[] key = getRandomBytes(5);
+        byte[] value = getRandomBytes(10);
+        legacy.put(key, value);
+        KVStorage migrated = new KVByteStorage(storage);
+        assertArrayEquals(value, migrated.get(key));
+        migrated.put(getRandomBytes(6), value);
+        assertFalse(file.exists());
+        assertArrayEquals(value, new KVByteStorage(reopen()).get(key));
+    }
+
+    @Test public void testStreamWrapper() throws IOException {
+        StreamWrapper deflate = new StreamWrapper() {
+            @Override public InputStream input(InputStream is) {
+                return new InflaterInputStream(is);
+            }
+
+            @Override public OutputStream output(OutputStream os) {
+                return new DeflaterOutputStream(os);
+            }
+        };
+        storage.close();
+        storage = new DoubleFileStorage(file, false, deflate);
+        byte[] data = new byte[10000];
+        storage.write(data);
+        assertTrue(DoubleFileStorage.slotFile(file, 'a').length() < data.length);
+        storage.close();
+        storage = new DoubleFileStorage(file, false, deflate);
+        assertArrayEquals(data, storage.read());
+    }
+
+    @Test public void testFactoryMode() throws IOException {
+        try (KVStorageAdapter adapter = new StorageFactory().setDoubleFileMode(true).newStorage(file)) {
+            adapter.put("key1", "value1");
+            adapter.put("key2", "value2");
+        }
+        try (KVStorageAdapter adapter = new StorageFactory().setDoubleFileMode(true).newStorage(file)) {
+            assertEquals("value1", adapter.getString("key1"));
+            assertEquals("value2", adapter.getString("key2"));
+        }
+        assertFalse(file.exists());
+    }
+
+    @Test public void testModeToggled() throws IOException {
+        storage.close();
+        try (KVStorageAdapter adapter = new StorageFactory().setDoubleFileMode(true).newStorage(file)) {
+            adapter.put("key1", "slots");
+        }
+        try (KVStorageAdapter adapter = new StorageFactory().newStorage(file)) {
+            assertEquals("slots", adapter.getString("key1"));
+            adapter.put("key2", "file");
+        }
+        assertTrue(file.exists());
+        assertFalse(DoubleFileStorage.slotFile(file, 'a').exists());
+        try (KVStorageAdapter adapter = new StorageFactory().setDoubleFileMode(true).newStorage(file)) {
+            assertEquals("slots", adapter.getString("key1"));
+            assertEquals("file", adapter.getString("key2"));
+            adapter.put("key3", "slots");
+        }
+        assertFalse(file.exists());
+
+        //a single file newer than the slots is read instead of them
+        File other = new File(folder.getRoot(), "other");
+        KVStorage built = new KVByteStorage(new ByteFileStorage(other));
+        built.put("key1".getBytes(), ByteUtils.encodeString("built"));
+        assertTrue(other.renameTo(file));
+        assertTrue(file.setLastModified(DoubleFileStorage.slotFile(file, 'a').lastModified() + 2000));
+        try (KVStorageAdapter adapter = new StorageFactory().setDoubleFileMode(true).newStorage(file)) {
+            assertEquals("built", adapter.getString("key1"));
+            assertNull(adapter.getString("key3"));
+            adapter.put("key2", "slots");
+        }
+        assertFalse(file.exists());
+        try (KVStorageAdapter adapter = new StorageFactory().setDoubleFileMode(true).newStorage(file)) {
+            assertEquals("built", adapter.getString("key1"));
+            assertEquals("slots", adapter.getString("key2"));
+        }
+    }
+
+    private DoubleFileStorage reopen() throws IOException {
+        storage.close();
+        storage = new DoubleFileStorage(file, true, null);
+        return storage;
+    }
+}
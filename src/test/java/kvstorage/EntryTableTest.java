@@ -0,0 +1,74 @@
+package kvstorage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EntryTableTest {
+
+    @Test public void testAddGrowsAndKeepsFields() {
+        EntryTable table = new EntryTable(1);
+        for (int i = 0; i < 100; i++) {
+            table.add(entry(i * 10, i));
+        }
+        assertEquals(100, table.size());
+        ByteEntry entry = table.get(42);
+        assertEquals(420, entry.position);
+        assertEquals(42L, entry.hash);
+        assertEquals(42, entry.getIndex());
+        assertEquals(5, entry.valueLength);
+        assertEquals(2, table.keyLength(42));
+        assertEquals(420 + entry.headerLength, table.keyPosition(42));
+        assertTrue(table.get(1).blob);
+        assertFalse(table.get(2).blob);
+    }
+
+    @Test public void testRemoveAndShift() {
+        EntryTable table = new EntryTable();
+        for (int i = 0; i < 5; i++) {
+            table.add(entry(i * 10, i));
+        }
+        table.remove(1);
+        table.shift(1, -10);
+        assertEquals(4, table.size());
+        assertEquals(0L, table.hash(0));
+        assertEquals(2L, table.hash(1));
+        assertEquals(10, table.get(1).position);
+        assertEquals(30, table.get(3).position);
+        table.set(3, entry(30, 7));
+        assertEquals(7L, table.hash(3));
+        int count = 0;
+        for (ByteEntry entry : table) {
+            assertEquals(count++, entry.getIndex());
+        }
+        assertEquals(4, count);
+    }
+
+    @Test public void testAddRangeAndReplace() {
+        EntryTable table = new EntryTable();
+        for (int i = 0; i < 5; i++) {
+            table.add(entry(i * 10, i));
+        }
+        EntryTable copy = new EntryTable(2);
+        copy.addRange(table, 0, 2, 0);
+        copy.addRange(table, 3, 5, -10);
+        table.replaceWith(copy);
+        assertEquals(4, table.size());
+        assertEquals(3L, table.hash(2));
+        assertEquals(20, table.get(2).position);
+        assertEquals(30, table.get(3).position);
+        table.clear();
+        assertEquals(0, table.size());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class) public void testGetOutOfRange() {
+        EntryTable table = new EntryTable();
+        table.add(entry(0, 1));
+        table.remove(0);
+        table.get(0);
+    }
+
+    private static ByteEntry entry(int position, long hash) {
+        return new ByteEntry(position, hash, 0, 9, 2, 5, hash % 2 == 1);
+    }
+}
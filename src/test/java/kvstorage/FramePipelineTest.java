@@ -0,0 +1,139 @@
+package kvstorage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static kvstorage.Utils.getRandomBytes;
+import static org.junit.Assert.*;
+
+public class FramePipelineTest {
+    private static final int FRAME_SIZE = 1024;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger encoded = new AtomicInteger();
+    private final StreamWrapper deflate = new StreamWrapper() {
+        @Override public InputStream input(InputStream is) {
+            return new InflaterInputStream(is);
+        }
+
+        @Override public OutputStream output(OutputStream os) {
+            encoded.incrementAndGet();
+            return new DeflaterOutputStream(os);
+        }
+    };
+
+    @Test public void testRoundTrip() throws IOException {
+        FramePipeline pipeline = new FramePipeline(deflate, FRAME_SIZE, ForkJoinPool.commonPool());
+        for (int length : new int[]{0, 1, FRAME_SIZE, FRAME_SIZE * 10 + 7}) {
+            byte[] plain = getRandomBytes(length);
+            byte[] data = pipeline.write(plain);
+            assertTrue(FramePipeline.isFramed(data));
+            assertArrayEquals(plain, new FramePipeline(deflate, FRAME_SIZE, ForkJoinPool.commonPool()).read(data));
+        }
+    }
+
+    @Test public void testUnchangedFramesReused() throws IOException {
+        FramePipeline pipeline = new FramePipeline(deflate, FRAME_SIZE, ForkJoinPool.commonPool());
+        byte[] plain = getRandomBytes(FRAME_SIZE * 8);
+        pipeline.write(plain);
+        assertEquals(8, encoded.get());
+        byte[] changed = plain.clone();
+        changed[FRAME_SIZE * 5 + 3]++;
+        byte[] data = pipeline.write(changed);
+        assertEquals(9, encoded.get());
+        byte[] appended = new byte[changed.length + 10];
+        ByteUtils.fill(changed, appended, 0);
+        pipeline.write(appended);
+        assertEquals(10, encoded.get());
+
+        FramePipeline reopened = new FramePipeline(deflate, FRAME_SIZE, ForkJoinPool.commonPool());
+        assertArrayEquals(changed, reopened.read(data));
+        encoded.set(0);
+        reopened.write(appended);
+        assertEquals(1, encoded.get());
+    }
+
+    @Test public void testArrayRewrittenInPlace() throws IOException {
+        FramePipeline pipeline = new FramePipeline(deflate, FRAME_SIZE, ForkJoinPool.commonPool());
+        byte[] plain = getRandomBytes(FRAME_SIZE * 4);
+        pipeline.write(plain);
+        byte[] expected = getRandomBytes(plain.length);
+        ByteUtils.fill(expected, plain, 0);
+        byte[] data = pipeline.write(plain);
+        assertArrayEquals(expected, new FramePipeline(deflate, FRAME_SIZE, ForkJoinPool.commonPool()).read(data));
+
+        byte[] read = pipeline.read(data);
+        ByteUtils.fill(getRandomBytes(read.length), read, 0);
+        assertArrayEquals(expected, pipeline.read(pipeline.write(expected)));
+    }
+
+    @Test(expected = IOException.class) public void testCorruptedFrame() throws IOException {
+        FramePipeline pipeline = new FramePipeline(deflate, FRAME_SIZE, ForkJoinPool.commonPool());
+        byte[] data = pipeline.write(new byte[FRAME_SIZE * 3]);
+        data[data.length - 2]++;
+        pipeline.read(data);
+    }
+
+    @Test public void testReadsSerialFile() throws IOException {
+        File file = new File(folder.getRoot(), "storage");
+        byte[] key = getRandomBytes(10);
+        byte[] value = getRandomBytes(5000);
+        new KVByteStorage(new ByteFileStorage(file, true, deflate)).put(key, value);
+        FramePipeline frames = new FramePipeline(deflate, FRAME_SIZE, ForkJoinPool.commonPool());
+        KVByteStorage storage = new KVByteStorage(new ByteFileStorage(file, false, deflate, frames));
+        assertArrayEquals(value, storage.get(key));
+        storage.put(getRandomBytes(11), value);
+        assertArrayEquals(value, new KVByteStorage(new ByteFileStorage(file, false, deflate, frames)).get(key));
+    }
+
+    @Test public void testFactory() throws IOException {
+        File file = new File(folder.getRoot(), "storage");
+        for (boolean doubleFile : new boolean[]{false, true}) {
+            StorageFactory factory = new StorageFactory().setDefaultStreamWrapper(deflate).setFrameSize(FRAME_SIZE)
+                    .setDoubleFileMode(doubleFile);
+            try (KVStorageAdapter adapter = factory.newStorage(file)) {
+                for (int i = 0; i < 100; i++) {
+                    adapter.put("key" + i, "value" + i);
+                }
+            }
+            try (KVStorageAdapter adapter = factory.newStorage(file)) {
+                for (int i = 0; i < 100; i++) {
+                    assertEquals("value" + i, adapter.getString("key" + i));
+                }
+            }
+        }
+    }
+
+    @Test public void testDeferredWritesReopened() throws IOException {
+        for (boolean doubleFile : new boolean[]{false, true}) {
+            File file = new File(folder.getRoot(), "storage" + doubleFile);
+            StorageFactory factory = new StorageFactory().setDefaultStreamWrapper(deflate).setFrameSize(256)
+                    .setDoubleFileMode(doubleFile).setDeferredWrites(2, 1 << 20);
+            try (KVStorageAdapter adapter = factory.newStorage(file)) {
+                for (int round = 0; round < 5; round++) {
+                    for (int i = 0; i < 40; i++) {
+                        adapter.put("key" + i, "value" + round + "-" + i);
+                    }
+                }
+            }
+            factory.flushWrites();
+            try (KVStorageAdapter adapter = new StorageFactory().setDefaultStreamWrapper(deflate).setFrameSize(256)
+                    .setDoubleFileMode(doubleFile).newStorage(file)) {
+                for (int i = 0; i < 40; i++) {
+                    assertEquals("value4-" + i, adapter.getString("key" + i));
+                }
+            }
+        }
+    }
+}
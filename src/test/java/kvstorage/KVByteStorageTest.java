@@ -3,13 +3,46 @@ package kvstorage;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import static kvstorage.ByteUtils.subArray;
 import static kvstorage.Utils.getRandomBytes;
 import static kvstorage.Utils.getRandomKV;
 import static org.junit.Assert.*;
 
 public class KVByteStorageTest {
+    private static final Codec<int[]> POINT_CODEC = new Codec<int[]>() {
+        @Override public int length(int[] value) {
+            return 8;
+        }
+
+        @Override public void encode(int[] value, ByteBuffer dest) {
+            dest.putInt(value[0]).putInt(value[1]);
+        }
+
+        @Override public int[] decode(ByteBuffer source) {
+            return new int[]{source.getInt(), source.getInt()};
+        }
+    };
+
     private KVStorageImpl kvStorage;
 
     @Before public void setUp() throws IOException {
@@ -332,4 +365,675 @@ public class KVByteStorageTest {
         assertArrayEquals(new byte[]{3}, kvStorage.get(new byte[]{2}));
         assertNull(snapshot.get(new byte[]{2}));
     }
+
+    @Test public void testSnapshotTo() throws IOException {
+        kvStorage.put(getRandomKV(20));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        kvStorage.snapshotTo(out);
+        assertArrayEquals(kvStorage.snapshot(), out.toByteArray());
+        out.reset();
+        kvStorage.snapshotTo(Channels.newChannel(out));
+        assertArrayEquals(kvStorage.snapshot(), out.toByteArray());
+    }
+
+    @Test public void testRestoreFrom() throws IOException {
+        KVStorageImpl source = new KVStorageImpl(new byte[0], StorageFormat.LEGACY.withCompactHeaders());
+        KVByteStorage.KeyValue[] keyValues = getRandomKV(3000);
+        source.put(keyValues);
+        kvStorage.put(getRandomBytes(5), getRandomBytes(5));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        source.snapshotTo(out);
+        kvStorage.restoreFrom(new ByteArrayInputStream(out.toByteArray()));
+        assertArrayEquals(out.toByteArray(), kvStorage.newBuffer);
+        for (KVByteStorage.KeyValue kv : keyValues) {
+            assertArrayEquals(kv.value, kvStorage.get(kv.key));
+        }
+        kvStorage.put(keyValues[0].key, getRandomBytes(3));
+        kvStorage = new KVStorageImpl(kvStorage.newBuffer);
+        assertArrayEquals(keyValues[1].value, kvStorage.get(keyValues[1].key));
+    }
+
+    @Test public void testRestoreFromSlowStream() throws IOException {
+        KVStorageImpl source = new KVStorageImpl();
+        KVByteStorage.KeyValue[] keyValues = getRandomKV(10);
+        source.put(keyValues);
+        kvStorage.restoreFrom(Channels.newChannel(new FilterInputStream(new ByteArrayInputStream(source.snapshot())) {
+            @Override public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(1, len));
+            }
+        }));
+        for (KVByteStorage.KeyValue kv : keyValues) {
+            assertArrayEquals(kv.value, kvStorage.get(kv.key));
+        }
+    }
+
+    @Test public void testRestoreCorrupted() throws IOException {
+        byte[] key = getRandomBytes(5);
+        byte[] value = getRandomBytes(5);
+        kvStorage.put(key, value);
+        KVStorageImpl source = new KVStorageImpl();
+        source.put(getRandomKV(3));
+        byte[] corrupted = subArray(source.snapshot(), 0, source.snapshot().length - 1);
+        try {
+            kvStorage.restoreFrom(new ByteArrayInputStream(corrupted));
+            fail();
+        } catch (IOException ignored) {//expected
+        }
+        assertArrayEquals(value, kvStorage.get(key));
+    }
+
+    @Test public void testPutStream() throws IOException {
+        KVByteStorage.KeyValue[] keyValues = getRandomKV(5);
+        kvStorage.put(keyValues);
+        byte[] value = getRandomBytes(100000);
+        kvStorage.put(keyValues[2].key, new ByteArrayInputStream(value), value.length);
+        byte[] key = getRandomBytes(7);
+        kvStorage.put(key, new ByteArrayInputStream(value), 10);
+        assertArrayEquals(value, kvStorage.get(keyValues[2].key));
+        assertArrayEquals(subArray(value, 0, 10), kvStorage.get(key));
+        kvStorage = new KVStorageImpl(kvStorage.newBuffer);
+        assertArrayEquals(value, kvStorage.get(keyValues[2].key));
+        assertArrayEquals(keyValues[1].value, kvStorage.get(keyValues[1].key));
+        assertArrayEquals(keyValues[3].value, kvStorage.get(keyValues[3].key));
+        assertArrayEquals(subArray(value, 0, 10), kvStorage.get(key));
+    }
+
+    @Test public void testPutStreamPrefixes() throws IOException {
+        kvStorage = new KVStorageImpl(new byte[0], StorageFormat.LEGACY.withKeyPrefixes(':').withCompactHeaders());
+        byte[] key1 = ByteUtils.encodeString("blob:1");
+        byte[] key2 = ByteUtils.encodeString("blob:2");
+        byte[] value = getRandomBytes(300);
+        kvStorage.put(key1, new ByteArrayInputStream(value), value.length);
+        kvStorage.put(key2, getRandomBytes(3));
+        kvStorage.put(key1, new ByteArrayInputStream(value), 200);
+        kvStorage = new KVStorageImpl(kvStorage.newBuffer);
+        assertArrayEquals(subArray(value, 0, 200), kvStorage.get(key1));
+        assertNotNull(kvStorage.get(key2));
+    }
+
+    @Test public void testPutStreamTooShort() throws IOException {
+        byte[] key = getRandomBytes(5);
+        byte[] value = getRandomBytes(5);
+        kvStorage.put(key, value);
+        try {
+            kvStorage.put(key, new ByteArrayInputStream(getRandomBytes(10)), 11);
+            fail();
+        } catch (IOException ignored) {//expected
+        }
+        assertArrayEquals(value, kvStorage.get(key));
+    }
+
+    @Test public void testOpenValue() throws IOException {
+        byte[] key = getRandomBytes(5);
+        byte[] value = getRandomBytes(5000);
+        assertNull(kvStorage.openValue(key));
+        kvStorage.put(key, value);
+        InputStream stream = kvStorage.openValue(key);
+        kvStorage.put(key, getRandomBytes(3));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[128];
+        int read;
+        while ((read = stream.read(chunk)) != -1) {
+            out.write(chunk, 0, read);
+        }
+        assertArrayEquals(value, out.toByteArray());
+    }
+
+    @Test public void testPutIfAbsent() throws IOException {
+        byte[] key = getRandomBytes(5);
+        byte[] value1 = getRandomBytes(5);
+        byte[] value2 = getRandomBytes(7);
+        assertNull(kvStorage.putIfAbsent(key, value1));
+        assertArrayEquals(value1, kvStorage.putIfAbsent(key, value2));
+        kvStorage = new KVStorageImpl(kvStorage.newBuffer);
+        assertArrayEquals(value1, kvStorage.get(key));
+    }
+
+    @Test public void testCompareAndSet() throws IOException {
+        byte[] key = getRandomBytes(5);
+        byte[] value1 = getRandomBytes(5);
+        byte[] value2 = getRandomBytes(7);
+        assertFalse(kvStorage.compareAndSet(key, value1, value2));
+        assertTrue(kvStorage.compareAndSet(key, null, value1));
+        assertFalse(kvStorage.compareAndSet(key, value2, value2));
+        assertTrue(kvStorage.compareAndSet(key, value1.clone(), value2));
+        assertArrayEquals(value2, kvStorage.get(key));
+        assertTrue(kvStorage.compareAndSet(key, value2, null));
+        assertNull(kvStorage.get(key));
+        kvStorage = new KVStorageImpl(kvStorage.newBuffer);
+        assertNull(kvStorage.get(key));
+    }
+
+    @Test public void testComputeIfPresent() throws IOException {
+        byte[] key = getRandomBytes(5);
+        assertNull(kvStorage.computeIfPresent(key, value -> getRandomBytes(3)));
+        assertNull(kvStorage.get(key));
+        kvStorage.put(key, new byte[]{1});
+        assertArrayEquals(new byte[]{1, 1}, kvStorage.computeIfPresent(key, value -> new byte[]{1, 1}));
+        byte[] buffer = kvStorage.newBuffer;
+        kvStorage.computeIfPresent(key, value -> value);
+        assertSame(buffer, kvStorage.newBuffer);
+        assertNull(kvStorage.computeIfPresent(key, value -> null));
+        assertNull(kvStorage.get(key));
+    }
+
+    @Test public void testMerge() throws IOException {
+        byte[] key = getRandomBytes(5);
+        assertArrayEquals(new byte[]{1}, kvStorage.merge(key, new byte[]{1}, KVByteStorageTest::concat));
+        assertArrayEquals(new byte[]{1, 2}, kvStorage.merge(key, new byte[]{2}, KVByteStorageTest::concat));
+        kvStorage = new KVStorageImpl(kvStorage.newBuffer);
+        assertArrayEquals(new byte[]{1, 2}, kvStorage.get(key));
+        assertNull(kvStorage.merge(key, new byte[]{3}, (value1, value2) -> null));
+        assertNull(kvStorage.get(key));
+    }
+
+    @Test public void testInPlaceRemapping() throws IOException {
+        byte[] key = getRandomBytes(5);
+        kvStorage.put(key, new byte[]{1});
+        assertArrayEquals(new byte[]{2}, kvStorage.computeIfPresent(key, value -> {
+            value[0]++;
+            return value;
+        }));
+        assertArrayEquals(new byte[]{5}, kvStorage.merge(key, new byte[]{3}, (value1, value2) -> {
+            value1[0] += value2[0];
+            return value1;
+        }));
+        kvStorage = new KVStorageImpl(kvStorage.newBuffer);
+        assertArrayEquals(new byte[]{5}, kvStorage.get(key));
+    }
+
+    @Test public void testConcurrentMerge() throws Exception {
+        byte[] key = getRandomBytes(5);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100; j++) {
+                    try {
+                        kvStorage.merge(key, intValue(1), (value1, value2) ->
+                                intValue(ByteUtils.readInt(value1, 0) + ByteUtils.readInt(value2, 0)));
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400, ByteUtils.readInt(kvStorage.get(key), 0));
+    }
+
+    @Test public void testIncrementAndGet() throws IOException {
+        byte[] key = getRandomBytes(5);
+        assertEquals(1, kvStorage.incrementAndGet(key, 1));
+        assertEquals(-4, kvStorage.incrementAndGet(key, -5));
+        kvStorage = new KVStorageImpl(kvStorage.newBuffer);
+        assertEquals(-4, ByteUtils.readInt(kvStorage.get(key), 0));
+        assertEquals(Integer.MIN_VALUE, kvStorage.incrementAndGet(key, Integer.MIN_VALUE + 4));
+        kvStorage.put(key, intValue(10));
+        assertEquals(11, kvStorage.incrementAndGet(key, 1));
+        assertTrue(kvStorage.remove(key));
+        assertNull(kvStorage.get(key));
+        assertEquals(3L, kvStorage.incrementAndGet(key, 3L));
+        try {
+            kvStorage.incrementAndGet(key, 1);
+            fail();
+        } catch (IllegalArgumentException ignored) {//expected
+        }
+        kvStorage = new KVStorageImpl(kvStorage.newBuffer);
+        assertEquals(3L, ByteUtils.readLong(kvStorage.get(key), 0));
+    }
+
+    @Test public void testCounterFlushInterval() throws Exception {
+        KVStorageImpl byteStorage = new KVStorageImpl();
+        KVByteStorage storage = new KVByteStorage(byteStorage);
+        storage.setCounterFlushInterval(TimeUnit.HOURS.toMillis(1));
+        byte[] key1 = getRandomBytes(5);
+        byte[] key2 = getRandomBytes(6);
+        storage.put(key1, new byte[8]);
+        byte[] written = byteStorage.newBuffer;
+        Set<Long> results = Collections.synchronizedSet(new HashSet<>());
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    try {
+                        results.add(storage.incrementAndGet(key1, 1L));
+                        storage.incrementAndGet(key2, 2);
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4000, results.size());
+        assertSame(written, byteStorage.newBuffer);
+        assertEquals(4000L, ByteUtils.readLong(storage.get(key1), 0));
+        storage.close();
+        KVStorage reloaded = new KVStorageImpl(byteStorage.newBuffer);
+        assertEquals(4000L, ByteUtils.readLong(reloaded.get(key1), 0));
+        assertEquals(8000, ByteUtils.readInt(reloaded.get(key2), 0));
+    }
+
+    @Test public void testFailedCounterFlushRetried() throws Exception {
+        ByteStorage.MemoryStorage memory = new ByteStorage.MemoryStorage();
+        AtomicBoolean failing = new AtomicBoolean();
+        KVByteStorage storage = new KVByteStorage(new ByteStorage() {
+            @Override public byte[] read() throws IOException {
+                return memory.read();
+            }
+
+            @Override public void write(byte[] bytes) throws IOException {
+                if (failing.get()) throw new IOException("disk full");
+                memory.write(bytes);
+            }
+        });
+        CountDownLatch reported = new CountDownLatch(1);
+        storage.setFlushFailureHandler(ex -> reported.countDown());
+        storage.setCounterFlushInterval(10);
+        byte[] key = getRandomBytes(5);
+        failing.set(true);
+        assertEquals(5L, storage.incrementAndGet(key, 5L));
+        assertTrue(reported.await(5, TimeUnit.SECONDS));
+        failing.set(false);
+        long deadline = System.currentTimeMillis() + 5000;
+        byte[] flushed = null;
+        while (flushed == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            flushed = new KVByteStorage(new ByteStorage.StorageSnapshot(memory.read())).get(key);
+        }
+        assertNotNull(flushed);
+        assertEquals(5L, ByteUtils.readLong(flushed, 0));
+        storage.close();
+    }
+
+    @Test public void testCounterDroppedByWrites() throws Exception {
+        KVByteStorage storage = new KVByteStorage(new KVStorageImpl());
+        storage.setCounterFlushInterval(TimeUnit.HOURS.toMillis(1));
+        byte[] key = "counter".getBytes();
+        assertEquals(5L, storage.incrementAndGet(key, 5L));
+        storage.removeAll("count".getBytes());
+        assertNull(storage.get(key));
+        assertEquals(1L, storage.incrementAndGet(key, 1L));
+        storage.clear();
+        assertEquals(2L, storage.incrementAndGet(key, 2L));
+        storage.put(key, new byte[8]);
+        assertEquals(3L, storage.incrementAndGet(key, 3L));
+        assertEquals(3L, ByteUtils.readLong(storage.get(key), 0));
+        storage.close();
+    }
+
+    @Test public void testGetAll() throws IOException {
+        KVStorage.KeyValue[] keyValues = getRandomKV(50);
+        kvStorage.put(keyValues);
+        byte[][] keys = new byte[keyValues.length + 2][];
+        for (int i = 0; i < keyValues.length; i++) {
+            keys[i] = keyValues[keyValues.length - 1 - i].key;
+        }
+        keys[keyValues.length] = getRandomBytes(16);
+        keys[keyValues.length + 1] = keyValues[0].key;
+        byte[][] values = kvStorage.getAll(keys);
+        for (int i = 0; i < keyValues.length; i++) {
+            assertArrayEquals(keyValues[keyValues.length - 1 - i].value, values[i]);
+        }
+        assertNull(values[keyValues.length]);
+        assertArrayEquals(keyValues[0].value, values[keyValues.length + 1]);
+    }
+
+    @Test public void testGetAllPrefixes() throws IOException {
+        kvStorage = new KVStorageImpl(new byte[0], StorageFormat.LEGACY.withKeyPrefixes(':'));
+        byte[] value1 = getRandomBytes(3);
+        byte[] value2 = getRandomBytes(4);
+        kvStorage.put(ByteUtils.encodeString("user:1:name"), value1);
+        kvStorage.put(ByteUtils.encodeString("name"), value2);
+        kvStorage.incrementAndGet(ByteUtils.encodeString("user:1:visits"), 3);
+        byte[][] values = new byte[][]{getRandomBytes(1), null, null, null};
+        kvStorage.getAll(new byte[][]{ByteUtils.encodeString("name"), ByteUtils.encodeString("user:1:name"),
+                ByteUtils.encodeString("user:2:name"), ByteUtils.encodeString("user:1:visits")}, values);
+        assertArrayEquals(value2, values[0]);
+        assertArrayEquals(value1, values[1]);
+        assertNull(values[2]);
+        assertArrayEquals(intValue(3), values[3]);
+    }
+
+    @Test public void testBatchMatchesModel() throws IOException {
+        StorageFormat[] formats = {null, StorageFormat.LEGACY.withKeyPrefixes(':'),
+                StorageFormat.LEGACY.withKeyPrefixes(':').withCompactHeaders()};
+        Random random = new Random(42);
+        for (StorageFormat format : formats) {
+            kvStorage = new KVStorageImpl(new byte[0], format);
+            Map<String, byte[]> model = new HashMap<>();
+            for (int round = 0; round < 30; round++) {
+                KVStorage.KeyValue[] batch = new KVStorage.KeyValue[random.nextInt(20) + 2];
+                for (int i = 0; i < batch.length; i++) {
+                    String key = "group" + random.nextInt(3) + ":key" + random.nextInt(15);
+                    byte[] value = random.nextInt(4) == 0 ? null : getRandomBytes(random.nextInt(300));
+                    batch[i] = new KVStorage.KeyValue(ByteUtils.encodeString(key), value);
+                    if (value == null) {
+                        model.remove(key);
+                    } else {
+                        model.put(key, value);
+                    }
+                }
+                kvStorage.put(batch);
+                KVStorageImpl reloaded = new KVStorageImpl(kvStorage.newBuffer);
+                for (int group = 0; group < 3; group++) {
+                    for (int i = 0; i < 15; i++) {
+                        String key = "group" + group + ":key" + i;
+                        assertArrayEquals(model.get(key), kvStorage.get(ByteUtils.encodeString(key)));
+                        assertArrayEquals(model.get(key), reloaded.get(ByteUtils.encodeString(key)));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test public void testKeyHandles() throws IOException {
+        KVStorage.KeyValue[] keyValues = getRandomKV(10);
+        kvStorage.put(keyValues);
+        Key key = Key.of(keyValues[5].key);
+        assertArrayEquals(keyValues[5].value, kvStorage.get(key));
+        Key.Slot slot = key.slot;
+        assertNotNull(slot);
+        byte[] value = getRandomBytes(7);
+        kvStorage.put(key, value);
+        assertSame(slot, key.slot);
+        assertArrayEquals(value, kvStorage.get(keyValues[5].key));
+        //removing an earlier entry shifts the index, the stale hint must not be used
+        assertTrue(kvStorage.remove(keyValues[2].key));
+        assertArrayEquals(value, kvStorage.get(key));
+        assertNotSame(slot, key.slot);
+        assertEquals(slot.index - 1, key.slot.index);
+        kvStorage.put(key, null);
+        assertNull(kvStorage.get(key));
+        assertNull(kvStorage.get(keyValues[5].key));
+        assertArrayEquals(keyValues[6].value, kvStorage.get(keyValues[6].key));
+
+        KVStorageImpl other = new KVStorageImpl();
+        other.put(getRandomBytes(5), getRandomBytes(5));
+        other.put(key, value);
+        assertArrayEquals(value, other.get(key));
+        assertNull(kvStorage.get(key));
+        kvStorage.put(key, keyValues[5].value);
+        assertArrayEquals(keyValues[5].value, kvStorage.get(key));
+        assertArrayEquals(value, other.get(key));
+        assertArrayEquals(keyValues[5].value, new KVStorageImpl(kvStorage.newBuffer).get(key));
+    }
+
+    @Test public void testObjectCodec() throws IOException {
+        byte[] key = getRandomBytes(8);
+        assertNull(kvStorage.getObject(key, POINT_CODEC));
+        kvStorage.put(getRandomBytes(9), getRandomBytes(20));
+        kvStorage.putObject(key, new int[]{3, -4}, POINT_CODEC);
+        assertArrayEquals(new int[]{3, -4}, kvStorage.getObject(key, POINT_CODEC));
+        assertArrayEquals(new byte[]{0, 0, 0, 3, -1, -1, -1, -4}, kvStorage.get(key));
+        assertArrayEquals(new int[]{3, -4}, new KVStorageImpl(kvStorage.newBuffer).getObject(key, POINT_CODEC));
+        kvStorage.incrementAndGet(key, 1L);
+        assertArrayEquals(new int[]{3, -3}, kvStorage.getObject(key, POINT_CODEC));
+        kvStorage.putObject(key, null, POINT_CODEC);
+        assertNull(kvStorage.get(key));
+    }
+
+    @Test public void testObjectCodecShortWrite() throws IOException {
+        byte[] key = getRandomBytes(8);
+        kvStorage.putObject(key, new int[]{1, 2}, POINT_CODEC);
+        Codec<int[]> broken = new Codec<int[]>() {
+            @Override public int length(int[] value) {
+                return 8;
+            }
+
+            @Override public void encode(int[] value, ByteBuffer dest) {
+                dest.putInt(value[0]);
+            }
+
+            @Override public int[] decode(ByteBuffer source) {
+                assertTrue(source.isReadOnly());
+                return new int[]{source.getInt()};
+            }
+        };
+        try {
+            kvStorage.putObject(key, new int[]{5, 6}, broken);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertArrayEquals(new int[]{1}, kvStorage.getObject(key, broken));
+        assertArrayEquals(new int[]{1, 2}, new KVStorageImpl(kvStorage.newBuffer).getObject(key, POINT_CODEC));
+    }
+
+    @Test public void testExportSince() throws IOException {
+        ByteStorage.MemoryStorage memory = new ByteStorage.MemoryStorage();
+        KVByteStorage source = new KVByteStorage(memory, StorageFormat.LEGACY.withKeyPrefixes(':').withSequences());
+        KVByteStorage backup = new KVByteStorage(new ByteStorage.MemoryStorage());
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            keys.add((i % 2 == 0 ? "a:" : "b:") + i);
+            source.put(ByteUtils.encodeString((i % 2 == 0 ? "a:" : "b:") + i), getRandomBytes(100));
+        }
+        ByteArrayOutputStream full = new ByteArrayOutputStream();
+        long since = source.exportSince(0, full);
+        assertEquals(200, since);
+        assertEquals(since, backup.applyDelta(new ByteArrayInputStream(full.toByteArray())));
+        assertSameValues(source, backup, keys);
+
+        source.put(ByteUtils.encodeString("b:1"), getRandomBytes(50));
+        source.remove(ByteUtils.encodeString("b:3"));
+        source.put(ByteUtils.encodeString("c"), getRandomBytes(10));
+        source.incrementAndGet(ByteUtils.encodeString("counter"), 7);
+        assertTrue(source.removeAll(ByteUtils.encodeString("a:1")));
+        source.put(ByteUtils.encodeString("a:10"), getRandomBytes(10));
+        keys.add("c");
+        keys.add("counter");
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        since = source.exportSince(since, delta);
+        assertTrue(delta.size() * 20 < full.size());
+        backup.applyDelta(new ByteArrayInputStream(delta.toByteArray()));
+        assertSameValues(source, backup, keys);
+
+        //nothing changed
+        delta.reset();
+        assertEquals(since, source.exportSince(since, delta));
+        backup.applyDelta(new ByteArrayInputStream(delta.toByteArray()));
+        assertSameValues(source, backup, keys);
+
+        //a reopened store doesn't know the removals before it, the export falls back to a snapshot
+        long beforeRemoval = since;
+        source.remove(ByteUtils.encodeString("b:5"));
+        KVByteStorage reopened = new KVByteStorage(memory);
+        reopened.put(ByteUtils.encodeString("d"), getRandomBytes(10));
+        keys.add("d");
+        delta.reset();
+        since = reopened.exportSince(beforeRemoval, delta);
+        assertTrue(delta.size() > full.size() / 2);
+        backup.applyDelta(new ByteArrayInputStream(delta.toByteArray()));
+        assertSameValues(reopened, backup, keys);
+        //later exports are incremental again
+        reopened.put(ByteUtils.encodeString("e"), getRandomBytes(10));
+        reopened.remove(ByteUtils.encodeString("d"));
+        keys.add("e");
+        delta.reset();
+        since = reopened.exportSince(since, delta);
+        assertTrue(delta.size() * 20 < full.size());
+        backup.applyDelta(new ByteArrayInputStream(delta.toByteArray()));
+        assertSameValues(reopened, backup, keys);
+
+        reopened.clear();
+        delta.reset();
+        reopened.exportSince(since, delta);
+        backup.applyDelta(new ByteArrayInputStream(delta.toByteArray()));
+        assertSameValues(reopened, backup, keys);
+        assertNull(backup.get(ByteUtils.encodeString("e")));
+    }
+
+    @Test public void testDeltaOrderChecked() throws IOException {
+        KVByteStorage source = new KVByteStorage(new ByteStorage.MemoryStorage(), StorageFormat.LEGACY.withSequences());
+        ByteStorage.MemoryStorage memory = new ByteStorage.MemoryStorage();
+        KVByteStorage backup = new KVByteStorage(memory);
+        source.put(ByteUtils.encodeString("a"), getRandomBytes(10));
+        ByteArrayOutputStream full = new ByteArrayOutputStream();
+        long since = source.exportSince(0, full);
+        source.put(ByteUtils.encodeString("b"), getRandomBytes(10));
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        long next = source.exportSince(since, first);
+        source.put(ByteUtils.encodeString("c"), getRandomBytes(10));
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        source.exportSince(next, second);
+
+        assertDeltaRejected(backup, first);
+        backup.applyDelta(new ByteArrayInputStream(full.toByteArray()));
+        assertDeltaRejected(backup, second);
+        assertEquals(next, backup.applyDelta(new ByteArrayInputStream(first.toByteArray())));
+        backup.put(ByteUtils.encodeString("local"), getRandomBytes(10));
+        assertDeltaRejected(backup, second);
+
+        backup = new KVByteStorage(memory);
+        assertDeltaRejected(backup, first);
+        backup.applyDelta(new ByteArrayInputStream(full.toByteArray()));
+        backup.applyDelta(new ByteArrayInputStream(first.toByteArray()));
+        backup.applyDelta(new ByteArrayInputStream(second.toByteArray()));
+        assertSameValues(source, backup, new HashSet<>(Arrays.asList("a", "b", "c")));
+        assertNull(backup.get(ByteUtils.encodeString("local")));
+    }
+
+    private static void assertDeltaRejected(KVStorage storage, ByteArrayOutputStream delta) {
+        try {
+            storage.applyDelta(new ByteArrayInputStream(delta.toByteArray()));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test public void testExportWithoutSequences() throws IOException {
+        KVByteStorage source = new KVByteStorage(new ByteStorage.MemoryStorage());
+        source.put(ByteUtils.encodeString("a"), getRandomBytes(10));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(0, source.exportSince(42, out));
+        KVByteStorage backup = new KVByteStorage(new ByteStorage.MemoryStorage());
+        backup.put(ByteUtils.encodeString("stale"), getRandomBytes(10));
+        assertEquals(0, backup.applyDelta(new ByteArrayInputStream(out.toByteArray())));
+        assertSameValues(source, backup, new HashSet<>(Collections.singletonList("a")));
+        assertNull(backup.get(ByteUtils.encodeString("stale")));
+    }
+
+    private static void assertSameValues(KVStorage expected, KVStorage actual, Set<String> keys) throws IOException {
+        for (String key : keys) {
+            assertArrayEquals(key, expected.get(ByteUtils.encodeString(key)), actual.get(ByteUtils.encodeString(key)));
+        }
+    }
+
+    @Test public void testRemoveAll() throws IOException {
+        StorageFormat[] formats = {null, StorageFormat.LEGACY.withKeyPrefixes(':').withCompactHeaders()};
+        for (StorageFormat format : formats) {
+            int[] writes = new int[1];
+            byte[][] persisted = new byte[1][];
+            KVByteStorage storage = new KVByteStorage(new ByteStorage() {
+                @Override public byte[] read() {
+                    return new byte[0];
+                }
+
+                @Override public void write(byte[] bytes) {
+                    writes[0]++;
+                    persisted[0] = bytes;
+                }
+            }, format);
+            for (int i = 0; i < 20; i++) {
+                storage.put(ByteUtils.encodeString((i % 2 == 0 ? "a:" : "b:") + i), getRandomBytes(i));
+            }
+            storage.put(ByteUtils.encodeString("a"), getRandomBytes(3));
+            storage.incrementAndGet(ByteUtils.encodeString("a:counter"), 5);
+            writes[0] = 0;
+            assertTrue(storage.removeAll(ByteUtils.encodeString("a:")));
+            assertEquals(1, writes[0]);
+            assertFalse(storage.removeAll(ByteUtils.encodeString("a:")));
+            assertEquals(1, writes[0]);
+            KVByteStorage reloaded = new KVByteStorage(new ByteStorage.StorageSnapshot(persisted[0]));
+            for (int i = 0; i < 20; i++) {
+                byte[] key = ByteUtils.encodeString((i % 2 == 0 ? "a:" : "b:") + i);
+                if (i % 2 == 0) {
+                    assertNull(storage.get(key));
+                    assertNull(reloaded.get(key));
+                } else {
+                    assertEquals(i, storage.get(key).length);
+                    assertEquals(i, reloaded.get(key).length);
+                }
+            }
+            assertNull(storage.get(ByteUtils.encodeString("a:counter")));
+            assertEquals(3, reloaded.get(ByteUtils.encodeString("a")).length);
+        }
+    }
+
+    @Test public void testBuffersReused() throws IOException {
+        List<byte[]> written = new ArrayList<>();
+        KVByteStorage storage = new KVByteStorage(new ByteStorage() {
+            @Override public byte[] read() {
+                return new byte[0];
+            }
+
+            @Override public void write(byte[] bytes) {
+                written.add(bytes);
+            }
+        });
+        byte[] key = getRandomBytes(8);
+        storage.put(key, getRandomBytes(32));
+        for (int i = 0; i < 4; i++) {
+            storage.put(key, getRandomBytes(32));
+        }
+        //equal-length updates alternate between two arrays
+        assertSame(written.get(1), written.get(3));
+        assertSame(written.get(2), written.get(4));
+        byte[] other = getRandomBytes(8);
+        storage.put(other, getRandomBytes(16));
+        storage.remove(other);
+        storage.put(other, getRandomBytes(16));
+        int last = written.size() - 1;
+        assertSame(written.get(last - 2), written.get(last));
+        assertEquals(16, storage.get(other).length);
+    }
+
+    @Test public void testLeasedBufferNotReused() throws IOException {
+        KVByteStorage storage = new KVByteStorage(new ByteStorage.MemoryStorage());
+        byte[] key = getRandomBytes(8);
+        byte[] value = getRandomBytes(64);
+        storage.put(key, value);
+        byte[] expected = storage.snapshot();
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override public void write(byte[] b) throws IOException {
+                for (int i = 0; i < 4; i++) {
+                    storage.put(key, getRandomBytes(64));
+                }
+                super.write(b);
+            }
+        };
+        storage.snapshotTo(out);
+        assertArrayEquals(expected, out.toByteArray());
+        InputStream stream = storage.openValue(key);
+        byte[] streamed = storage.get(key);
+        for (int i = 0; i < 4; i++) {
+            storage.put(key, getRandomBytes(64));
+        }
+        byte[] read = new byte[64];
+        assertEquals(64, stream.read(read));
+        assertArrayEquals(streamed, read);
+        assertEquals(1, Utils.leasedBuffers(storage));
+        stream.close();
+        stream.close();
+        assertEquals(0, Utils.leasedBuffers(storage));
+    }
+
+    private static byte[] concat(byte[] value1, byte[] value2) {
+        byte[] result = new byte[value1.length + value2.length];
+        ByteUtils.fill(value1, result, 0);
+        ByteUtils.fill(value2, result, value1.length);
+        return result;
+    }
+
+    private static byte[] intValue(int value) {
+        byte[] result = new byte[4];
+        ByteUtils.writeInt(result, 0, value);
+        return result;
+    }
 }
@@ -3,7 +3,15 @@ package kvstorage;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.Assert.*;
 
@@ -71,6 +79,7 @@ public class KVStorageAdapterTest {
 
     @Test public void testBytes2() {
         byte[] key = Utils.getRandomBytes(9);
+        key[0] |= 1;//keys starting with \0 are reserved for namespaces
         byte[] value = Utils.getRandomBytes(13);
         adapter.put(key, value);
         assertArrayEquals(value, adapter.getBytes(key));
@@ -132,4 +141,253 @@ public class KVStorageAdapterTest {
         assertEquals("value1", snapshot.getString("key1"));
         assertEquals("value2", adapter.snapshot().getString("key1"));
     }
+
+    @Test public void testStreams() throws IOException {
+        byte[] value = Utils.getRandomBytes(1000);
+        adapter.put("key1", new ByteArrayInputStream(value), value.length);
+        InputStream stream = adapter.openValue("key1");
+        byte[] result = new byte[value.length];
+        assertEquals(value.length, stream.read(result));
+        assertArrayEquals(value, result);
+        assertNull(adapter.openValue("key2"));
+    }
+
+    @Test public void testAtomicOperations() {
+        assertTrue(adapter.putIfAbsent("key1", new byte[]{1}));
+        assertFalse(adapter.putIfAbsent("key1", new byte[]{2}));
+        assertTrue(adapter.compareAndSet("key1", new byte[]{1}, new byte[]{3}));
+        assertFalse(adapter.compareAndSet("key1", new byte[]{1}, new byte[]{4}));
+        assertArrayEquals(new byte[]{4}, adapter.computeIfPresent("key1", value -> new byte[]{(byte) (value[0] + 1)}));
+        assertNull(adapter.computeIfPresent("key2", value -> value));
+        adapter.putInt("counter", 1);
+        adapter.merge("counter", adapter.getBytes("counter"), (value1, value2) -> {
+            byte[] result = new byte[4];
+            ByteUtils.writeInt(result, 0, ByteUtils.readInt(value1, 0) + ByteUtils.readInt(value2, 0));
+            return result;
+        });
+        assertEquals(2, adapter.getInt("counter"));
+    }
+
+    @Test public void testIncrementAndGet() {
+        adapter.putInt("int", 5);
+        assertEquals(7, adapter.incrementAndGet("int", 2));
+        assertEquals(7, adapter.getInt("int"));
+        assertEquals(-1L, adapter.incrementAndGet("long", -1L));
+        assertEquals(-1L, adapter.getLong("long"));
+    }
+
+    @Test public void testGetAll() {
+        adapter.put("key1", "value1");
+        adapter.put("key3", "value3");
+        assertArrayEquals(new String[]{"value1", null, "value3"}, adapter.getStrings("key1", "key2", "key3"));
+        byte[][] values = adapter.getAll("key3");
+        assertEquals("value3", ByteUtils.decodeString(values[0]));
+    }
+
+    @Test public void testKeyHandles() {
+        Key flag = adapter.key("flag");
+        Key count = adapter.key("count");
+        adapter.put(flag, true).putInt(count, 3).putLong(adapter.key("long"), 4L)
+                .putDouble(adapter.key("double"), 0.5).put(adapter.key("string"), "value");
+        assertTrue(adapter.getBoolean(flag));
+        assertTrue(adapter.getBoolean("flag"));
+        assertEquals(3, adapter.getInt(count));
+        assertEquals(4L, adapter.getLong(adapter.key("long")));
+        assertEquals(0.5, adapter.getDouble(adapter.key("double")), 0);
+        assertEquals("value", adapter.getString(Key.of("string")));
+        adapter.remove(count);
+        assertEquals(-1, adapter.getInt(count, -1));
+        assertNull(adapter.getBytes(count));
+        assertEquals(adapter.key("flag"), flag);
+    }
+
+    @Test public void testObjects() {
+        Codec<String[]> pair = new Codec<String[]>() {
+            @Override public int length(String[] value) {
+                return 2 + value[0].length() + value[1].length();
+            }
+
+            @Override public void encode(String[] value, ByteBuffer dest) {
+                for (String part : value) {
+                    dest.put((byte) part.length());
+                    dest.put(ByteUtils.encodeString(part));
+                }
+            }
+
+            @Override public String[] decode(ByteBuffer source) {
+                String[] result = new String[2];
+                for (int i = 0; i < result.length; i++) {
+                    byte[] part = new byte[source.get()];
+                    source.get(part);
+                    result[i] = ByteUtils.decodeString(part);
+                }
+                return result;
+            }
+        };
+        adapter.putObject("pair", new String[]{"a", "bc"}, pair);
+        assertArrayEquals(new String[]{"a", "bc"}, adapter.getObject("pair", pair));
+        assertArrayEquals(new String[]{"a", "bc"}, adapter.getObject(adapter.key("pair"), pair));
+        assertNull(adapter.getObject("other", pair));
+        adapter.bulkInsert().putObject("other", new String[]{"d", ""}, pair).commit();
+        assertArrayEquals(new String[]{"d", ""}, adapter.getObject("other", pair));
+    }
+
+    @Test public void testNamespaces() throws IOException {
+        KVStorageImpl storage = new KVStorageImpl();
+        adapter = new KVStorageAdapter(storage);
+        KVStorageAdapter sessions = adapter.namespace("sessions");
+        KVStorageAdapter users = adapter.namespace("users");
+        adapter.put("key", "root");
+        sessions.put("key", "session");
+        users.put("key", "user").putInt("count", 2);
+        assertEquals("root", adapter.getString("key"));
+        assertEquals("session", sessions.getString("key"));
+        assertEquals("user", users.getString("key"));
+        assertEquals(3, users.incrementAndGet("count", 1));
+        assertArrayEquals(new String[]{"user", null}, users.getStrings("key", "missing"));
+
+        KVStorageAdapter nested = users.namespace("admins");
+        nested.put("key", "admin");
+        sessions.close();
+        sessions.clear();
+        assertNull(sessions.getString("key"));
+        assertEquals("root", adapter.getString("key"));
+        assertEquals("admin", nested.getString("key"));
+
+        assertTrue(users.dropNamespace("admins"));
+        assertNull(nested.getString("key"));
+        assertEquals("user", users.getString("key"));
+        assertTrue(adapter.dropNamespace("users"));
+        assertFalse(adapter.dropNamespace("users"));
+        assertNull(users.getString("key"));
+        assertEquals(0, users.getInt("count"));
+        KVStorageAdapter reloaded = new KVStorageAdapter(new KVStorageImpl(storage.newBuffer));
+        assertEquals("root", reloaded.getString("key"));
+        assertNull(reloaded.namespace("users").getString("key"));
+    }
+
+    @Test public void testNamespaceSnapshot() throws IOException {
+        KVStorageAdapter users = adapter.namespace("users");
+        adapter.put("key", "root");
+        users.put("key", "user").putInt("count", 2);
+        users.namespace("admins").put("key", "admin");
+        adapter.namespace("sessions").put("key", "session");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(users.snapshotTo(out));
+
+        KVStorageAdapter snapshot = users.snapshot();
+        assertEquals("user", snapshot.getString("key"));
+        assertEquals(2, snapshot.getInt("count"));
+        assertEquals("admin", snapshot.namespace("admins").getString("key"));
+        assertNull(snapshot.namespace("sessions").getString("key"));
+
+        users.put("key", "changed").put("other", "other");
+        users.namespace("admins").remove("key");
+        assertTrue(users.restoreFrom(new ByteArrayInputStream(out.toByteArray())));
+        assertEquals("user", users.getString("key"));
+        assertNull(users.getString("other"));
+        assertEquals("admin", users.namespace("admins").getString("key"));
+        assertEquals("root", adapter.getString("key"));
+        assertEquals("session", adapter.namespace("sessions").getString("key"));
+
+        KVStorageAdapter copy = new KVStorageAdapter(new KVStorageImpl()).namespace("copy");
+        assertTrue(copy.restoreFrom(new ByteArrayInputStream(out.toByteArray())));
+        assertEquals(2, copy.getInt("count"));
+    }
+
+    @Test public void testNamespaceChanges() throws IOException {
+        adapter = new KVStorageAdapter(new KVByteStorage(new ByteStorage.MemoryStorage(),
+                StorageFormat.LEGACY.withSequences()));
+        KVStorageAdapter users = adapter.namespace("users");
+        users.put("key", "user");
+        List<Change> changes = new ArrayList<>();
+        ChangeListener listener = changes::add;
+        assertTrue(users.addChangeListener(listener, true));
+        adapter.put("key", "root");
+        users.put("other", "other");
+        adapter.namespace("sessions").put("key", "session");
+        adapter.dropNamespace("users");
+        users.removeChangeListener(listener);
+        users.put("key", "ignored");
+        assertEquals(3, changes.size());
+        KVStorageAdapter snapshot = new KVStorageAdapter(new KVStorageImpl(changes.get(0).getValue()));
+        assertEquals("user", snapshot.getString("key"));
+        assertEquals(Change.Type.PUT, changes.get(1).getType());
+        assertEquals("other", ByteUtils.decodeString(changes.get(1).getKey()));
+        assertEquals(Change.Type.CLEAR, changes.get(2).getType());
+
+        ByteArrayOutputStream full = new ByteArrayOutputStream();
+        long since = users.exportSince(0, full);
+        KVStorageAdapter follower = new KVStorageAdapter(new KVStorageImpl());
+        follower.applyDelta(new ByteArrayInputStream(full.toByteArray()));
+        assertEquals("ignored", follower.getString("key"));
+        assertNull(follower.getString("other"));
+        adapter.put("key", "changed");
+        users.put("other", "added");
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        users.exportSince(since, delta);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta.toByteArray()));
+        in.skipBytes(24);
+        Change change = ChangeFeed.read(in);
+        assertEquals("other", ByteUtils.decodeString(change.getKey()));
+        assertNull(ChangeFeed.read(in));
+    }
+
+    @Test public void testReservedKeys() throws IOException {
+        List<Exception> errors = new ArrayList<>();
+        adapter = new KVStorageAdapter(new KVStorageImpl(), errors::add);
+        KVStorageAdapter users = adapter.namespace("users");
+        adapter.put("\0users\0key", "forged");
+        users.put("\0admins\0key", "forged");
+        assertNull(users.getString("key"));
+        assertNull(users.namespace("admins").getString("key"));
+        assertNull(adapter.getString("\0users\0key"));
+        assertEquals(3, errors.size());
+        for (Exception error : errors) {
+            assertTrue(error instanceof IllegalArgumentException);
+        }
+        try {
+            adapter.bulkInsert().putInt("\0users\0count", 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test public void testBulkCoalescing() throws IOException {
+        KVStorageImpl storage = new KVStorageImpl();
+        adapter = new KVStorageAdapter(storage);
+        KVStorageAdapter.BulkEditor editor = adapter.bulkInsert().reserve(100);
+        for (int i = 0; i < 100; i++) {
+            editor.putInt("counter", i);
+        }
+        editor.put("key1", "value1").remove("key1").put("key2", "value1").put("key2", "value2").remove("key3");
+        assertEquals(4, editor.size());
+        assertTrue(editor.commit());
+        assertEquals(99, adapter.getInt("counter"));
+        assertNull(adapter.getString("key1"));
+        assertEquals("value2", adapter.getString("key2"));
+        KVStorageAdapter reloaded = new KVStorageAdapter(new KVStorageImpl(storage.newBuffer));
+        assertEquals(99, reloaded.getInt("counter"));
+    }
+
+    @Test public void testBulkKeyReused() {
+        byte[] key = ByteUtils.encodeString("key1");
+        KVStorageAdapter.BulkEditor editor = adapter.bulkInsert().put(key, ByteUtils.encodeString("value1"));
+        key[3] = '2';
+        editor.put(key, ByteUtils.encodeString("value2"));
+        assertEquals(2, editor.size());
+        assertTrue(editor.commit());
+        assertEquals("value1", adapter.getString("key1"));
+        assertEquals("value2", adapter.getString("key2"));
+    }
+
+    @Test public void testCommitAsync() throws Exception {
+        KVStorageAdapter.BulkEditor editor = adapter.bulkInsert().putInt("key1", 1);
+        CompletableFuture<Boolean> first = editor.commitAsync();
+        editor.putInt("key1", 2);
+        CompletableFuture<Boolean> second = editor.commitAsync();
+        assertTrue(first.get());
+        assertTrue(second.get());
+        assertEquals(2, adapter.getInt("key1"));
+    }
 }
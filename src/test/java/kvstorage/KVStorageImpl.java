@@ -1,12 +1,19 @@
 package kvstorage;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.BinaryOperator;
+import java.util.function.UnaryOperator;
 
 public class KVStorageImpl implements KVStorage, ByteStorage {
 
     private KVStorage actualStorage;
 
     private byte[] initBuffer;
+    private StorageFormat format;
 
     byte[] newBuffer;
 
@@ -15,12 +22,17 @@ public class KVStorageImpl implements KVStorage, ByteStorage {
     }
 
     KVStorageImpl(byte[] initBuffer) throws IOException {
+        this(initBuffer, null);
+    }
+
+    KVStorageImpl(byte[] initBuffer, StorageFormat format) throws IOException {
         this.initBuffer = initBuffer;
+        this.format = format;
         init();
     }
 
     private void init() throws IOException {
-        this.actualStorage = new KVByteStorage(this);
+        this.actualStorage = new KVByteStorage(this, format);
     }
 
     @Override public byte[] read() throws IOException {
@@ -35,22 +47,114 @@ public class KVStorageImpl implements KVStorage, ByteStorage {
         return actualStorage.get(key);
     }
 
+    @Override public byte[] get(Key key) throws IOException {
+        return actualStorage.get(key);
+    }
+
+    @Override public void put(Key key, byte[] value) throws IOException {
+        actualStorage.put(key, value);
+    }
+
+    @Override public <T> T getObject(byte[] key, Codec<T> codec) throws IOException {
+        return actualStorage.getObject(key, codec);
+    }
+
+    @Override public <T> void putObject(byte[] key, T value, Codec<T> codec) throws IOException {
+        actualStorage.putObject(key, value, codec);
+    }
+
+    @Override public void getAll(byte[][] keys, byte[][] values) throws IOException {
+        actualStorage.getAll(keys, values);
+    }
+
+    @Override public InputStream openValue(byte[] key) throws IOException {
+        return actualStorage.openValue(key);
+    }
+
     @Override public byte[] snapshot() throws IOException {
         return actualStorage.snapshot();
     }
 
+    @Override public void snapshotTo(OutputStream out) throws IOException {
+        actualStorage.snapshotTo(out);
+    }
+
+    @Override public void snapshotTo(WritableByteChannel channel) throws IOException {
+        actualStorage.snapshotTo(channel);
+    }
+
+    @Override public void snapshotUnder(byte[] prefix, OutputStream out) throws IOException {
+        actualStorage.snapshotUnder(prefix, out);
+    }
+
+    @Override public void restoreFrom(InputStream in) throws IOException {
+        actualStorage.restoreFrom(in);
+    }
+
+    @Override public void restoreFrom(ReadableByteChannel channel) throws IOException {
+        actualStorage.restoreFrom(channel);
+    }
+
     @Override public void put(byte[] key, byte[] value) throws IOException {
         actualStorage.put(key, value);
     }
 
+    @Override public void put(byte[] key, InputStream value, int length) throws IOException {
+        actualStorage.put(key, value, length);
+    }
+
     @Override public void put(KeyValue... keyValues) throws IOException {
         actualStorage.put(keyValues);
     }
 
+    @Override public boolean removeAll(byte[] prefix) throws IOException {
+        return actualStorage.removeAll(prefix);
+    }
+
+    @Override public long exportSince(long since, OutputStream out) throws IOException {
+        return actualStorage.exportSince(since, out);
+    }
+
+    @Override public long applyDelta(InputStream in) throws IOException {
+        return actualStorage.applyDelta(in);
+    }
+
+    @Override public void addChangeListener(ChangeListener listener, boolean snapshotFirst) throws IOException {
+        actualStorage.addChangeListener(listener, snapshotFirst);
+    }
+
+    @Override public void removeChangeListener(ChangeListener listener) {
+        actualStorage.removeChangeListener(listener);
+    }
+
     @Override public boolean remove(byte[] key) throws IOException {
         return actualStorage.remove(key);
     }
 
+    @Override public byte[] putIfAbsent(byte[] key, byte[] value) throws IOException {
+        return actualStorage.putIfAbsent(key, value);
+    }
+
+    @Override public boolean compareAndSet(byte[] key, byte[] expected, byte[] newValue) throws IOException {
+        return actualStorage.compareAndSet(key, expected, newValue);
+    }
+
+    @Override public byte[] computeIfPresent(byte[] key, UnaryOperator<byte[]> function) throws IOException {
+        return actualStorage.computeIfPresent(key, function);
+    }
+
+    @Override public byte[] merge(byte[] key, byte[] value, BinaryOperator<byte[]> function) throws IOException {
+        return actualStorage.merge(key, value, function);
+    }
+
+    @Override public int incrementAndGet(byte[] key, int delta) throws IOException {
+        return actualStorage.incrementAndGet(key, delta);
+    }
+
+    @Override public long incrementAndGet(byte[] key, long delta) throws IOException {
+        return actualStorage.incrementAndGet(key, delta);
+    }
+
     @Override public void clear() throws IOException {
         actualStorage.clear();
     }
@@ -0,0 +1,109 @@
+package kvstorage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class StorageBuilderTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before public void setUp() {
+        file = new File(folder.getRoot(), "storage");
+    }
+
+    @Test public void testBuild() throws IOException {
+        KVStorage.KeyValue[] keyValues = Utils.getRandomKV(100);
+        new StorageBuilder(file).build(Arrays.asList(keyValues).iterator());
+        KVStorage storage = newStorage(file);
+        for (KVStorage.KeyValue kv : keyValues) {
+            assertArrayEquals(kv.value, storage.get(kv.key));
+        }
+    }
+
+    @Test public void testBuildEmpty() throws IOException {
+        new StorageBuilder(file).build(Collections.emptyIterator());
+        assertEquals(0, file.length());
+        assertNull(newStorage(file).get(key(1)));
+    }
+
+    @Test public void testLastWriteWins() throws IOException {
+        List<KVStorage.KeyValue> input = new ArrayList<>();
+        input.add(new KVStorage.KeyValue(key(1), value(1)));
+        input.add(new KVStorage.KeyValue(key(2), value(2)));
+        input.add(new KVStorage.KeyValue(key(1), value(3)));
+        input.add(new KVStorage.KeyValue(key(2), null));
+        input.add(new KVStorage.KeyValue(key(3), null));
+        input.add(new KVStorage.KeyValue(key(3), value(4)));
+        new StorageBuilder(file).build(input.iterator());
+        KVStorage storage = newStorage(file);
+        assertArrayEquals(value(3), storage.get(key(1)));
+        assertNull(storage.get(key(2)));
+        assertArrayEquals(value(4), storage.get(key(3)));
+    }
+
+    @Test public void testSpillAndMerge() throws IOException {
+        int count = 5000;
+        new StorageBuilder(file)
+                .setMemoryLimit(16 * 1024)
+                .setStorageFormat(StorageFormat.LEGACY.withCompactHeaders())
+                .build(IntStream.range(0, count * 2)
+                        .mapToObj(i -> new KVStorage.KeyValue(key(i % count), value(i))));
+        assertEquals(0, folder.getRoot().list((dir, name) -> name.endsWith(".run")).length);
+        KVStorage storage = newStorage(file);
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(value(i + count), storage.get(key(i)));
+        }
+    }
+
+    @Test public void testReplaceExisting() throws IOException {
+        KVStorage storage = newStorage(file);
+        storage.put(key(1), value(1));
+        storage.put(key(2), value(2));
+        new StorageBuilder(file)
+                .setStorageFormat(StorageFormat.LEGACY.withKeyPrefixes(':'))
+                .build(Collections.singletonList(new KVStorage.KeyValue(key(3), value(3))).iterator());
+        storage = newStorage(file);
+        assertNull(storage.get(key(1)));
+        assertArrayEquals(value(3), storage.get(key(3)));
+        assertEquals(1, folder.getRoot().list().length);
+    }
+
+    @Test public void testStreamWrapper() throws IOException {
+        Utils.BrokenStreamWrapper streamWrapper = new Utils.BrokenStreamWrapper();
+        streamWrapper.brokenOutput = true;
+        try {
+            new StorageBuilder(file).setStreamWrapper(streamWrapper).build(Arrays.asList(Utils.getRandomKV(3)).iterator());
+            fail();
+        } catch (IOException ignored) {//expected
+        }
+        assertFalse(file.exists());
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    private static KVStorage newStorage(File file) throws IOException {
+        return new ByteFileStorage(file).createStorage();
+    }
+
+    private static byte[] key(int i) {
+        return ByteUtils.encodeString("user:" + i);
+    }
+
+    private static byte[] value(int i) {
+        byte[] value = new byte[4];
+        ByteUtils.writeInt(value, 0, i);
+        return value;
+    }
+}
@@ -0,0 +1,264 @@
+package kvstorage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class StorageFactoryTest {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private StorageFactory factory;
+    private Utils.ExceptionHandlerImpl exceptionHandler;
+
+    @Before public void setUp() {
+        exceptionHandler = Utils.createExceptionHandler();
+        factory = new StorageFactory().setDafaultExceptionHandler(exceptionHandler);
+    }
+
+    @Test public void testSharedInstance() throws IOException {
+        File file = new File(folder.getRoot(), "storage");
+        KVStorageAdapter first = factory.newStorage(file);
+        KVStorageAdapter second = factory.newStorage(new File(new File(folder.getRoot(), "dir/.."), "storage"));
+        assertEquals(1, factory.openedStorages());
+        first.putInt("key1", 42);
+        assertEquals(42, second.getInt("key1"));
+        second.putInt("key2", 43);
+        assertEquals(43, first.getInt("key2"));
+        assertEquals(42, first.getInt("key1"));
+    }
+
+    @Test public void testDifferentFiles() throws IOException {
+        KVStorageAdapter first = factory.newStorage(new File(folder.getRoot(), "storage1"));
+        KVStorageAdapter second = factory.newStorage(new File(folder.getRoot(), "storage2"));
+        assertEquals(2, factory.openedStorages());
+        first.putInt("key1", 42);
+        assertEquals(0, second.getInt("key1"));
+    }
+
+    @Test public void testClose() throws IOException {
+        File file = new File(folder.getRoot(), "storage");
+        KVStorageAdapter first = factory.newStorage(file);
+        KVStorageAdapter second = factory.newStorage(file);
+        first.put("key1", "value1");
+        first.close();
+        first.close();
+        assertEquals(1, factory.openedStorages());
+        assertEquals("value1", second.getString("key1"));
+        assertNull(exceptionHandler.exception);
+        assertNull(first.getString("key1"));
+        assertNotNull(exceptionHandler.exception);
+        second.close();
+        assertEquals(0, factory.openedStorages());
+
+        try (KVStorageAdapter reopened = factory.newStorage(file)) {
+            assertEquals("value1", reopened.getString("key1"));
+            assertEquals(1, factory.openedStorages());
+        }
+        assertEquals(0, factory.openedStorages());
+    }
+
+    @Test public void testDefaultExceptionHandler() throws IOException {
+        KVStorageAdapter adapter = new StorageFactory().newStorage(new File(folder.getRoot(), "storage"));
+        adapter.put("key1", true);
+        assertTrue(adapter.getBoolean("key1"));
+    }
+
+    @Test public void testOpenAll() throws Exception {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            File file = new File(folder.getRoot(), "storage" + i);
+            try (KVStorageAdapter adapter = factory.newStorage(file)) {
+                adapter.putInt("index", i);
+            }
+            files.add(file);
+        }
+        Map<File, Future<KVStorageAdapter>> storages = factory.setLoadParallelism(3).openAll(files);
+        assertEquals(10, factory.openedStorages());
+        for (int i = 0; i < files.size(); i++) {
+            assertEquals(i, storages.get(files.get(i)).get().getInt("index"));
+        }
+    }
+
+    @Test public void testOpenAllFailure() throws Exception {
+        File directory = folder.newFolder("directory");
+        Future<KVStorageAdapter> future = factory.openAll(Collections.singleton(directory)).get(directory);
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IOException);
+        }
+        assertEquals(0, factory.openedStorages());
+    }
+
+    @Test public void testOpenAllClosesHandlesOnFailure() throws Exception {
+        File broken = new File(folder.getRoot(), "broken") {
+            @Override public String getCanonicalPath() throws IOException {
+                throw new IOException("broken path");
+            }
+        };
+        try {
+            factory.openAll(Arrays.asList(new File(folder.getRoot(), "storage1"),
+                    new File(folder.getRoot(), "storage2"), broken));
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(0, factory.openedStorages());
+    }
+
+    @Test public void testDeferredWrites() throws IOException {
+        factory.setDeferredWrites(2, 4096);
+        List<KVStorageAdapter> adapters = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            KVStorageAdapter adapter = factory.newStorage(new File(folder.getRoot(), "storage" + i));
+            for (int j = 0; j < 20; j++) {
+                adapter.putInt("key" + j, i * j);
+            }
+            adapters.add(adapter);
+        }
+        factory.flushWrites();
+        for (int i = 0; i < 50; i++) {
+            try (KVStorageAdapter reader = new StorageFactory().newStorage(new File(folder.getRoot(), "storage" + i))) {
+                assertEquals(i * 19, reader.getInt("key19"));
+            }
+            adapters.get(i).putInt("key0", -i);
+            adapters.get(i).close();
+        }
+        for (int i = 0; i < 50; i++) {
+            try (KVStorageAdapter reader = new StorageFactory().newStorage(new File(folder.getRoot(), "storage" + i))) {
+                assertEquals(-i, reader.getInt("key0"));
+            }
+        }
+        assertNull(exceptionHandler.exception);
+        try {
+            factory.setBlobThreshold(100).newStorage(new File(folder.getRoot(), "blobs"));
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test public void testReopenWaitsForClose() throws Exception {
+        File file = new File(folder.getRoot(), "storage");
+        AtomicBoolean block = new AtomicBoolean();
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        factory.setCounterFlushInterval(1, TimeUnit.HOURS).setDefaultStreamWrapper(new StreamWrapper() {
+            @Override public InputStream input(InputStream is) {
+                return is;
+            }
+
+            @Override public OutputStream output(OutputStream os) throws IOException {
+                if (block.get()) {
+                    writing.countDown();
+                    try {
+                        proceed.await();
+                    } catch (InterruptedException ex) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                return os;
+            }
+        });
+        KVStorageAdapter adapter = factory.newStorage(file);
+        adapter.incrementAndGet("counter", 1);
+        adapter.incrementAndGet("counter", 1);
+        block.set(true);
+        new Thread(adapter::close).start();
+        assertTrue(writing.await(10, TimeUnit.SECONDS));
+        FutureTask<KVStorageAdapter> reopen = new FutureTask<>(() -> factory.newStorage(file));
+        new Thread(reopen).start();
+        Thread.sleep(100);
+        assertFalse(reopen.isDone());
+        block.set(false);
+        proceed.countDown();
+        assertEquals(2, reopen.get(10, TimeUnit.SECONDS).getInt("counter"));
+        assertEquals(1, factory.openedStorages());
+        assertNull(exceptionHandler.exception);
+    }
+
+    @Test public void testPrewarm() throws IOException {
+        File file = new File(folder.getRoot(), "storage");
+        try (KVStorageAdapter adapter = factory.newStorage(file)) {
+            adapter.put("key1", "value1");
+        }
+        KVStorageAdapter adapter = factory.setPrewarm(true).newStorage(file);
+        assertEquals("value1", adapter.getString("key1"));
+        assertEquals("value1", factory.newStorage(file).getString("key1"));
+    }
+
+    @Test public void testCloseDuringPrewarm() throws Exception {
+        File file = new File(folder.getRoot(), "storage");
+        try (KVStorageAdapter adapter = factory.newStorage(file)) {
+            adapter.put("key1", "value1");
+        }
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        factory.setPrewarm(true).setDefaultStreamWrapper(new StreamWrapper() {
+            @Override public InputStream input(InputStream is) throws IOException {
+                loading.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+                return is;
+            }
+
+            @Override public OutputStream output(OutputStream os) {
+                return os;
+            }
+        });
+        KVStorageAdapter adapter = factory.newStorage(file);
+        assertTrue(loading.await(10, TimeUnit.SECONDS));
+        Thread closer = new Thread(adapter::close);
+        closer.start();
+        closer.join(100);
+        assertTrue(closer.isAlive());//the storage being loaded is closed once the load ends
+        proceed.countDown();
+        closer.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(closer.isAlive());
+        assertEquals(0, factory.openedStorages());
+        assertNull(exceptionHandler.exception);
+    }
+
+    @Test public void testShutdown() throws Exception {
+        File file = new File(folder.getRoot(), "storage");
+        factory.setDeferredWrites(1, 1 << 20).setPrewarm(true);
+        KVStorageAdapter adapter = factory.newStorage(file);
+        KVStorageAdapter.BulkEditor editor = adapter.bulkInsert().putInt("key1", 1);
+        CompletableFuture<Boolean> committed = editor.commitAsync();
+        assertTrue(committed.get());
+        adapter.close();
+        factory.shutdown();
+        assertFalse(editor.commitAsync().get());
+        assertTrue(exceptionHandler.exception instanceof RejectedExecutionException);
+        try {
+            factory.newStorage(file);
+            fail();
+        } catch (IllegalStateException ignored) {//expected
+        }
+        assertEquals(1, new StorageFactory().newStorage(file).getInt("key1"));
+    }
+}
@@ -0,0 +1,313 @@
+package kvstorage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static kvstorage.Utils.getRandomBytes;
+import static org.junit.Assert.*;
+
+public class StorageFormatTest {
+    private static final StorageFormat PREFIXES = StorageFormat.LEGACY.withKeyPrefixes(':');
+    private static final StorageFormat COMPACT = StorageFormat.LEGACY.withCompactHeaders();
+    private static final StorageFormat COMPACT_PREFIXES = PREFIXES.withCompactHeaders();
+
+    private KVStorageImpl kvStorage;
+
+    @Before public void setUp() throws IOException {
+        kvStorage = new KVStorageImpl(new byte[0], PREFIXES);
+    }
+
+    @Test public void testLegacyDetected() throws IOException {
+        KVStorageImpl legacy = new KVStorageImpl();
+        legacy.put(key("user:1:name"), getRandomBytes(10));
+        assertEquals(StorageFormat.LEGACY, StorageFormat.read(legacy.newBuffer));
+    }
+
+    @Test public void testPrefixedKeys() throws IOException {
+        byte[] value1 = getRandomBytes(10);
+        byte[] value2 = getRandomBytes(20);
+        byte[] value3 = getRandomBytes(30);
+        kvStorage.put(key("user:1:name"), value1);
+        kvStorage.put(key("user:1:mail"), value2);
+        kvStorage.put(key("plain"), value3);
+        assertArrayEquals(value1, kvStorage.get(key("user:1:name")));
+        assertArrayEquals(value2, kvStorage.get(key("user:1:mail")));
+        assertArrayEquals(value3, kvStorage.get(key("plain")));
+        assertNull(kvStorage.get(key("user:1:")));
+        assertNull(kvStorage.get(key("user:2:name")));
+        assertNull(kvStorage.get(key("name")));
+        assertEquals(PREFIXES, StorageFormat.read(kvStorage.newBuffer));
+    }
+
+    @Test public void testReplaceAndRemove() throws IOException {
+        byte[] value1 = getRandomBytes(10);
+        byte[] value2 = getRandomBytes(20);
+        byte[] value3 = getRandomBytes(30);
+        kvStorage.put(key("a:b:1"), value1);
+        kvStorage.put(key("a:c:1"), value2);
+        kvStorage.put(key("a:b:2"), value3);
+        kvStorage.put(key("a:b:1"), value3);
+        assertArrayEquals(value3, kvStorage.get(key("a:b:1")));
+        assertTrue(kvStorage.remove(key("a:c:1")));
+        assertNull(kvStorage.get(key("a:c:1")));
+        assertArrayEquals(value3, kvStorage.get(key("a:b:2")));
+        kvStorage = new KVStorageImpl(kvStorage.newBuffer, PREFIXES);
+        assertArrayEquals(value3, kvStorage.get(key("a:b:1")));
+        assertArrayEquals(value3, kvStorage.get(key("a:b:2")));
+        kvStorage.put(key("a:c:2"), value1);
+        kvStorage = new KVStorageImpl(kvStorage.newBuffer);
+        assertArrayEquals(value1, kvStorage.get(key("a:c:2")));
+    }
+
+    @Test public void testSmallerThanLegacy() throws IOException {
+        KVStorageImpl legacy = new KVStorageImpl();
+        for (int i = 0; i < 100; i++) {
+            byte[] key = key("user:123456:profile:field" + i);
+            byte[] value = getRandomBytes(4);
+            legacy.put(key, value);
+            kvStorage.put(key, value);
+        }
+        assertTrue(kvStorage.newBuffer.length < legacy.newBuffer.length);
+    }
+
+    @Test public void testConvertLegacy() throws IOException {
+        KVStorageImpl legacy = new KVStorageImpl();
+        byte[] value1 = getRandomBytes(10);
+        byte[] value2 = getRandomBytes(20);
+        legacy.put(key("user:1:name"), value1);
+        legacy.put(key("user:2:name"), value2);
+        kvStorage = new KVStorageImpl(legacy.newBuffer, PREFIXES);
+        assertEquals(PREFIXES, StorageFormat.read(kvStorage.snapshot()));
+        assertArrayEquals(value1, kvStorage.get(key("user:1:name")));
+        assertArrayEquals(value2, kvStorage.get(key("user:2:name")));
+        kvStorage = new KVStorageImpl(kvStorage.snapshot(), StorageFormat.LEGACY);
+        assertArrayEquals(legacy.newBuffer, kvStorage.snapshot());
+    }
+
+    @Test public void testClearKeepsFormat() throws IOException {
+        kvStorage.put(key("a:b"), getRandomBytes(3));
+        kvStorage.clear();
+        assertNull(kvStorage.get(key("a:b")));
+        assertEquals(PREFIXES, StorageFormat.read(kvStorage.newBuffer));
+    }
+
+    @Test public void testPrefixDepth() throws IOException {
+        byte[] value = getRandomBytes(10);
+        kvStorage.put(key("user:1:name"), value);
+        kvStorage.put(key("user:2:name"), value);
+        kvStorage.put(key("user:2:mail"), value);
+        assertEquals(1, prefixCount(kvStorage.snapshot()));
+        StorageFormat depth2 = StorageFormat.LEGACY.withKeyPrefixes(':', 2);
+        kvStorage = new KVStorageImpl(kvStorage.snapshot(), depth2);
+        assertEquals(2, prefixCount(kvStorage.snapshot()));
+        assertEquals(depth2, StorageFormat.read(kvStorage.snapshot()));
+        assertArrayEquals(value, kvStorage.get(key("user:2:mail")));
+        kvStorage.put(key("user:"), value);
+        kvStorage = new KVStorageImpl(kvStorage.snapshot());
+        assertArrayEquals(value, kvStorage.get(key("user:")));
+        assertArrayEquals(value, kvStorage.get(key("user:1:name")));
+    }
+
+    @Test public void testLastDelimiterPrefixesRead() throws IOException {
+        byte[] value = getRandomBytes(10);
+        kvStorage.put(key("a:1"), value);
+        byte[] buffer = kvStorage.snapshot();
+        buffer[13] = 0;//a file written before the depth was stored
+        kvStorage = new KVStorageImpl(buffer);
+        kvStorage.put(key("a:b:1"), value);
+        assertEquals(2, prefixCount(kvStorage.snapshot()));
+        kvStorage = new KVStorageImpl(kvStorage.snapshot());
+        assertArrayEquals(value, kvStorage.get(key("a:1")));
+        assertArrayEquals(value, kvStorage.get(key("a:b:1")));
+        kvStorage = new KVStorageImpl(kvStorage.snapshot(), PREFIXES);
+        assertEquals(PREFIXES, StorageFormat.read(kvStorage.snapshot()));
+        assertEquals(1, prefixCount(kvStorage.snapshot()));
+        assertArrayEquals(value, kvStorage.get(key("a:b:1")));
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void testPrefixDepthChecked() {
+        StorageFormat.LEGACY.withKeyPrefixes(':', 0);
+    }
+
+    @Test public void testCompactReplace() throws IOException {
+        kvStorage = new KVStorageImpl(new byte[0], COMPACT);
+        byte[] key1 = getRandomBytes(5);
+        byte[] key2 = getRandomBytes(200);
+        byte[] key3 = getRandomBytes(7);
+        byte[] value1 = getRandomBytes(127);
+        byte[] value2 = getRandomBytes(128);
+        byte[] value3 = getRandomBytes(20000);
+        kvStorage.put(key1, value1);
+        kvStorage.put(key2, value1);
+        kvStorage.put(key3, value1);
+        kvStorage.put(key2, value2);
+        assertArrayEquals(value2, kvStorage.get(key2));
+        kvStorage.put(key1, value3);
+        assertArrayEquals(value3, kvStorage.get(key1));
+        assertTrue(kvStorage.remove(key2));
+        kvStorage = new KVStorageImpl(kvStorage.newBuffer, COMPACT);
+        assertArrayEquals(value3, kvStorage.get(key1));
+        assertNull(kvStorage.get(key2));
+        assertArrayEquals(value1, kvStorage.get(key3));
+    }
+
+    @Test public void testCompactPrefixes() throws IOException {
+        kvStorage = new KVStorageImpl(new byte[0], COMPACT_PREFIXES);
+        byte[] value1 = getRandomBytes(1);
+        byte[] value2 = getRandomBytes(300);
+        kvStorage.put(key("user:1:name"), value1);
+        kvStorage.put(key("user:1:mail"), value1);
+        kvStorage.put(key("user:1:name"), value2);
+        kvStorage = new KVStorageImpl(kvStorage.newBuffer);
+        assertArrayEquals(value2, kvStorage.get(key("user:1:name")));
+        assertArrayEquals(value1, kvStorage.get(key("user:1:mail")));
+        assertEquals(COMPACT_PREFIXES, StorageFormat.read(kvStorage.snapshot()));
+    }
+
+    @Test public void testCompactSmallEntries() throws IOException {
+        KVStorageImpl legacy = new KVStorageImpl();
+        kvStorage = new KVStorageImpl(new byte[0], COMPACT);
+        KVStorage.KeyValue[] keyValues = new KVStorage.KeyValue[100];
+        for (int i = 0; i < keyValues.length; i++) {
+            keyValues[i] = new KVStorage.KeyValue(key("flag" + i), new byte[]{1});
+        }
+        legacy.put(keyValues);
+        kvStorage.put(keyValues);
+        assertTrue(kvStorage.newBuffer.length * 2 < legacy.newBuffer.length);
+        kvStorage = new KVStorageImpl(legacy.newBuffer, COMPACT);
+        assertArrayEquals(new byte[]{1}, kvStorage.get(key("flag42")));
+        kvStorage.put(key("flag42"), new byte[]{0});
+        kvStorage = new KVStorageImpl(kvStorage.newBuffer);
+        assertArrayEquals(new byte[]{0}, kvStorage.get(key("flag42")));
+        assertArrayEquals(new byte[]{1}, kvStorage.get(key("flag99")));
+    }
+
+    @Test(expected = IOException.class) public void testCompactTruncated() throws IOException {
+        kvStorage = new KVStorageImpl(new byte[0], COMPACT);
+        kvStorage.put(getRandomBytes(3), getRandomBytes(300));
+        new KVStorageImpl(ByteUtils.subArray(kvStorage.newBuffer, 0, StorageFormat.HEADER_LENGTH + 2));
+    }
+
+    @Test public void testSequences() throws IOException {
+        for (StorageFormat format : new StorageFormat[]{StorageFormat.LEGACY.withSequences(),
+                COMPACT_PREFIXES.withSequences()}) {
+            kvStorage = new KVStorageImpl(new byte[0], format);
+            byte[] value = getRandomBytes(300);
+            kvStorage.put(key("a:1"), getRandomBytes(10));
+            kvStorage.put(key("a:2"), value);
+            kvStorage.put(key("a:1"), getRandomBytes(20));
+            kvStorage.remove(key("a:2"));
+            kvStorage.put(key("b"), value);
+            byte[] buffer = kvStorage.newBuffer;
+            assertEquals(format, StorageFormat.read(buffer));
+            assertEquals(5, ByteUtils.readLong(buffer, StorageFormat.LAST_SEQUENCE));
+            assertEquals(4, ByteUtils.readLong(buffer, StorageFormat.REMOVAL_SEQUENCE));
+            EntryTable entries = new EntryTable();
+            new EntryParser(format, entries).parse(buffer, buffer.length, true);
+            assertEquals(2, entries.size());
+            assertEquals(3, format.readSequence(buffer, entries.keyPosition(0)));
+            assertEquals(5, format.readSequence(buffer, entries.keyPosition(1)));
+            kvStorage = new KVStorageImpl(buffer);
+            assertArrayEquals(value, kvStorage.get(key("b")));
+            assertNull(kvStorage.get(key("a:2")));
+        }
+    }
+
+    @Test(expected = IOException.class) public void testSequenceHeaderTruncated() throws IOException {
+        new KVStorageImpl(ByteUtils.subArray(StorageFormat.LEGACY.withSequences().newBuffer(), 0,
+                StorageFormat.HEADER_LENGTH));
+    }
+
+    @Test public void testChecksums() throws IOException {
+        for (StorageFormat format : new StorageFormat[]{StorageFormat.LEGACY.withChecksums(),
+                COMPACT_PREFIXES.withChecksums().withSequences()}) {
+            kvStorage = new KVStorageImpl(new byte[0], format);
+            byte[] value = getRandomBytes(300);
+            kvStorage.put(key("a:1"), getRandomBytes(10));
+            kvStorage.put(key("a:2"), getRandomBytes(30));
+            kvStorage.put(key("a:1"), getRandomBytes(10));
+            kvStorage.put(key("a:2"), value);
+            kvStorage.put(new KVStorage.KeyValue(key("b:1"), getRandomBytes(5)),
+                    new KVStorage.KeyValue(key("a:1"), getRandomBytes(7)));
+            kvStorage.incrementAndGet(key("c"), 5);
+            kvStorage.remove(key("b:1"));
+            byte[] buffer = kvStorage.newBuffer;
+            assertEquals(format, StorageFormat.read(buffer));
+            kvStorage = new KVStorageImpl(buffer);
+            assertArrayEquals(value, kvStorage.get(key("a:2")));
+            assertEquals(6, kvStorage.incrementAndGet(key("c"), 1));
+            buffer = kvStorage.newBuffer;
+            for (int position : new int[]{buffer.length - 1, buffer.length - 200}) {
+                byte[] corrupted = ByteUtils.subArray(buffer, 0, buffer.length);
+                corrupted[position] ^= 1;
+                try {
+                    new KVStorageImpl(corrupted);
+                    fail();
+                } catch (IOException expected) {
+                    assertTrue(expected.getMessage().startsWith("checksum mismatch"));
+                }
+            }
+        }
+    }
+
+    @Test public void testChecksumCoversHeader() throws IOException {
+        for (StorageFormat format : new StorageFormat[]{StorageFormat.LEGACY.withChecksums(),
+                COMPACT_PREFIXES.withChecksums().withSequences()}) {
+            kvStorage = new KVStorageImpl(new byte[0], format);
+            kvStorage.put(key("key"), getRandomBytes(10));
+            byte[] buffer = kvStorage.newBuffer;
+            int position = format.headerLength();
+            int keyPosition = position + format.entryHeaderLength(0, 3, 10);
+            int checksumPosition = format.checksumPosition(keyPosition);
+            for (int i = position; i < keyPosition; i++) {
+                if (i >= checksumPosition && i < checksumPosition + StorageFormat.CHECKSUM_LENGTH) continue;
+                byte[] corrupted = ByteUtils.subArray(buffer, 0, buffer.length);
+                corrupted[i] ^= 1;
+                try {
+                    new KVStorageImpl(corrupted);
+                    fail(format + " " + i);
+                } catch (IOException expected) {
+                }
+            }
+        }
+    }
+
+    @Test public void testChecksumsConverted() throws IOException {
+        KVStorageImpl legacy = new KVStorageImpl();
+        for (int i = 0; i < 300; i++) {
+            legacy.put(key("key" + i), getRandomBytes(4096));
+        }
+        StorageFormat format = StorageFormat.LEGACY.withChecksums();
+        kvStorage = new KVStorageImpl(legacy.newBuffer, format);
+        kvStorage.put(key("key0"), getRandomBytes(1));
+        byte[] buffer = kvStorage.newBuffer;
+        assertEquals(format, StorageFormat.read(buffer));
+        assertArrayEquals(legacy.get(key("key150")), new KVStorageImpl(buffer).get(key("key150")));
+        buffer[buffer.length / 2] ^= 1;
+        try {
+            new KVStorageImpl(buffer);
+            fail();
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().startsWith("checksum mismatch"));
+        }
+        assertEquals(0xe3069283, Crc32c.compute(key("123456789"), 0, 9));
+    }
+
+    @Test(expected = IOException.class) public void testUnknownVersion() throws IOException {
+        byte[] buffer = PREFIXES.newBuffer();
+        buffer[10] = 42;
+        new KVStorageImpl(buffer);
+    }
+
+    private static int prefixCount(byte[] buffer) throws IOException {
+        EntryParser parser = new EntryParser(StorageFormat.read(buffer), new EntryTable());
+        parser.parse(buffer, buffer.length, true);
+        return parser.prefixes.size();
+    }
+
+    private static byte[] key(String key) {
+        return ByteUtils.encodeString(key);
+    }
+}
@@ -2,6 +2,7 @@ package kvstorage;
 
 import java.io.*;
 import java.lang.reflect.Field;
+import java.util.Map;
 import java.util.Random;
 
 public class Utils {
@@ -82,6 +83,10 @@ public class Utils {
         }
     }
 
+    public static int leasedBuffers(KVByteStorage storage) {
+        return ((Map<?, ?>) readField(storage, KVByteStorage.class, "leases")).size();
+    }
+
     private static Object readField(Object instance, Class clazz, String fieldName) {
         try {
             Field f = clazz.getDeclaredField(fieldName);
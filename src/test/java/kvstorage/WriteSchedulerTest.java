@@ -0,0 +1,165 @@
+package kvstorage;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static kvstorage.Utils.getRandomBytes;
+import static org.junit.Assert.*;
+
+public class WriteSchedulerTest {
+
+    @Test public void testCoalescedWrites() throws Exception {
+        WriteScheduler scheduler = new WriteScheduler(1, 1 << 20);
+        BlockingStorage blocker = new BlockingStorage();
+        ByteStorage blocked = scheduler.wrap(blocker);
+        RecordingStorage recorder = new RecordingStorage();
+        ByteStorage storage = scheduler.wrap(recorder);
+        blocked.write(new byte[10]);
+        assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+        byte[] last = null;
+        for (int i = 0; i < 5; i++) {
+            last = getRandomBytes(20);
+            storage.write(last);
+        }
+        assertEquals(30, scheduler.pendingBytes());
+        blocker.release.countDown();
+        scheduler.flush();
+        assertEquals(1, recorder.written.size());
+        assertSame(last, recorder.written.get(0));
+        assertSame(last, storage.read());
+        assertEquals(0, scheduler.pendingBytes());
+    }
+
+    @Test public void testStoragesTakeTurns() throws Exception {
+        WriteScheduler scheduler = new WriteScheduler(1, 1 << 20);
+        BlockingStorage blocker = new BlockingStorage();
+        ByteStorage blocked = scheduler.wrap(blocker);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        List<ByteStorage> storages = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            int index = i;
+            storages.add(scheduler.wrap(new RecordingStorage() {
+                @Override public void write(byte[] bytes) {
+                    order.add(index);
+                }
+            }));
+        }
+        blocked.write(new byte[1]);
+        assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+        for (int round = 0; round < 3; round++) {
+            for (int i = 2; i >= 0; i--) {
+                storages.get(i).write(new byte[1]);
+            }
+        }
+        blocker.release.countDown();
+        scheduler.flush();
+        assertEquals(3, order.size());
+        assertEquals(Integer.valueOf(2), order.get(0));
+        assertEquals(Integer.valueOf(1), order.get(1));
+        assertEquals(Integer.valueOf(0), order.get(2));
+    }
+
+    @Test public void testPendingBytesLimit() throws Exception {
+        WriteScheduler scheduler = new WriteScheduler(1, 100);
+        BlockingStorage blocker = new BlockingStorage();
+        ByteStorage blocked = scheduler.wrap(blocker);
+        ByteStorage storage = scheduler.wrap(new RecordingStorage());
+        blocked.write(new byte[60]);
+        assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+        storage.write(new byte[40]);
+        CountDownLatch written = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            try {
+                storage.write(new byte[50]);
+                written.countDown();
+            } catch (IOException ignored) {
+            }
+        });
+        writer.start();
+        assertFalse(written.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(100, scheduler.pendingBytes());
+        blocker.release.countDown();
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        scheduler.flush();
+        assertEquals(0, scheduler.pendingBytes());
+    }
+
+    @Test public void testFailureReported() throws Exception {
+        WriteScheduler scheduler = new WriteScheduler(2, 1 << 20);
+        RecordingStorage recorder = new RecordingStorage();
+        recorder.fail = true;
+        ByteStorage storage = scheduler.wrap(recorder);
+        storage.write(new byte[10]);
+        scheduler.flush();
+        try {
+            storage.write(new byte[10]);
+            fail();
+        } catch (IOException expected) {
+            assertEquals("recorder", expected.getMessage());
+        }
+        recorder.fail = false;
+        byte[] data = getRandomBytes(10);
+        storage.write(data);
+        scheduler.flush();
+        assertSame(data, storage.read());
+    }
+
+    @Test public void testWritesAfterShutdown() throws Exception {
+        WriteScheduler scheduler = new WriteScheduler(1, 1 << 20);
+        BlockingStorage blocker = new BlockingStorage();
+        ByteStorage blocked = scheduler.wrap(blocker);
+        RecordingStorage recorder = new RecordingStorage();
+        ByteStorage storage = scheduler.wrap(recorder);
+        blocked.write(new byte[10]);
+        assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+        byte[] queued = getRandomBytes(10);
+        storage.write(queued);
+        scheduler.shutdown();
+        blocker.release.countDown();
+        byte[] last = getRandomBytes(10);
+        storage.write(last);
+        assertEquals(2, recorder.written.size());
+        assertSame(queued, recorder.written.get(0));
+        assertSame(last, recorder.written.get(1));
+        scheduler.flush();
+        assertSame(last, storage.read());
+    }
+
+    private static class RecordingStorage implements ByteStorage {
+        final List<byte[]> written = Collections.synchronizedList(new ArrayList<>());
+        volatile boolean fail;
+
+        @Override public byte[] read() {
+            return written.isEmpty() ? new byte[0] : written.get(written.size() - 1);
+        }
+
+        @Override public void write(byte[] bytes) throws IOException {
+            if (fail) throw new IOException("recorder");
+            written.add(bytes);
+        }
+    }
+
+    private static class BlockingStorage implements ByteStorage {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override public byte[] read() {
+            return new byte[0];
+        }
+
+        @Override public void write(byte[] bytes) throws IOException {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+        }
+    }
+}